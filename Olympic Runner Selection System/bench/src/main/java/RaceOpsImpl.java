@@ -0,0 +1,150 @@
+import bench.RaceOps;
+import java.util.Random;
+
+// The RaceOps the JMH benchmarks call, see RaceOps for why it is in the default package
+public class RaceOpsImpl implements RaceOps {
+    private RunnerID[] ids;
+    private float[][] times;
+    private RunnerID[] lookups;
+    private int runsPerRunner;
+    private Race race;
+
+    @Override
+    public void prepare(int roster, int runsPerRunner, String order, String idKind, long seed) {
+        Random random = new Random(seed);
+        this.ids = createIds(roster, order, idKind, random);
+        this.times = createTimes(roster, runsPerRunner, order, random);
+        this.lookups = ids.clone();
+        shuffle(lookups, random);
+        this.runsPerRunner = runsPerRunner;
+    }
+
+    @Override
+    public void emptyRace() {
+        race = new Race();
+        race.init();
+    }
+
+    @Override
+    public void runnersWithoutRuns() {
+        emptyRace();
+        addRunners();
+    }
+
+    @Override
+    public void fullRace() {
+        runnersWithoutRuns();
+        addRuns();
+    }
+
+    @Override
+    public void addRunners() {
+        for (RunnerID id : ids) {
+            race.addRunner(id);
+        }
+    }
+
+    @Override
+    public void addRuns() {
+        for (int run = 0; run < runsPerRunner; run++) {
+            for (int i = 0; i < ids.length; i++) {
+                race.addRunToRunner(ids[i], times[i][run]);
+            }
+        }
+    }
+
+    @Override
+    public void removeFirstRuns() {
+        for (int i = 0; i < ids.length; i++) {
+            race.removeRunFromRunner(ids[i], times[i][0]);
+        }
+    }
+
+    @Override
+    public void removeRunners() {
+        for (RunnerID id : lookups) {
+            race.removeRunner(id);
+        }
+    }
+
+    @Override
+    public float getAvgRun(int lookup) {
+        return race.getAvgRun(lookups[lookup]);
+    }
+
+    @Override
+    public float getMinRun(int lookup) {
+        return race.getMinRun(lookups[lookup]);
+    }
+
+    @Override
+    public boolean hasRunner(int lookup) {
+        return race.hasRunner(lookups[lookup]);
+    }
+
+    @Override
+    public int getRankAvg(int lookup) {
+        return race.getRankAvg(lookups[lookup]);
+    }
+
+    @Override
+    public int getRankMin(int lookup) {
+        return race.getRankMin(lookups[lookup]);
+    }
+
+    @Override
+    public Object getFastestRunnerAvg() {
+        return race.getFastestRunnerAvg();
+    }
+
+    @Override
+    public Object getFastestRunnerMin() {
+        return race.getFastestRunnerMin();
+    }
+
+    // IDs in the order they are added to the race
+    private static RunnerID[] createIds(int size, String order, String idKind, Random random) {
+        RunnerID[] ids = new RunnerID[size];
+        for (int i = 0; i < size; i++) {
+            int number = order.equals("reverse") ? size - 1 - i : i;
+            ids[i] = idKind.equals("int") ? new RunnerIDInt(number) : new RunnerIDString(number);
+        }
+        if (order.equals("random") || order.equals("ties")) {
+            shuffle(ids, random);
+        }
+        return ids;
+    }
+
+    // times[i][run] is the run'th time of the i'th runner added
+    private static float[][] createTimes(int size, int runsPerRunner, String order, Random random) {
+        float[][] times = new float[size][runsPerRunner];
+        for (int i = 0; i < size; i++) {
+            for (int run = 0; run < runsPerRunner; run++) {
+                switch (order) {
+                    case "sorted":
+                        times[i][run] = 10.0f + i * 0.001f + run;
+                        break;
+                    case "reverse":
+                        times[i][run] = 10.0f + (size - i) * 0.001f + run;
+                        break;
+                    case "ties":
+                        // A handful of distinct times, so most runners share their score with many others
+                        times[i][run] = 10.0f + random.nextInt(4);
+                        break;
+                    default:
+                        times[i][run] = 9.0f + random.nextFloat() * 10.0f;
+                }
+            }
+        }
+        return times;
+    }
+
+    private static void shuffle(RunnerID[] ids, Random random) {
+        for (int i = ids.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            RunnerID swap = ids[i];
+            ids[i] = ids[j];
+            ids[j] = swap;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package bench;
+
+// What the benchmarks do to a race. JMH does not allow benchmarks in the default package, and code
+// in a package cannot refer to the race classes, which are all in the default package. So
+// RaceOpsImpl, in the default package, implements this interface and is loaded by name once per
+// trial. Every call the benchmarks time is then a plain interface call with a single
+// implementation, which the JIT inlines.
+public interface RaceOps {
+    // Builds the IDs, run times and lookup order. order is random, sorted, reverse or ties (four
+    // distinct times), idKind is int (hashed) or string (compared through the ID tree)
+    void prepare(int roster, int runsPerRunner, String order, String idKind, long seed);
+
+    // Replace the race with a fresh one in the given state
+    void emptyRace();
+
+    void runnersWithoutRuns();
+
+    void fullRace();
+
+    // One pass over the roster each
+    void addRunners();
+
+    void addRuns();
+
+    void removeFirstRuns();
+
+    void removeRunners();
+
+    // Queries about the lookup'th runner of a shuffled order
+    float getAvgRun(int lookup);
+
+    float getMinRun(int lookup);
+
+    boolean hasRunner(int lookup);
+
+    int getRankAvg(int lookup);
+
+    int getRankMin(int lookup);
+
+    Object getFastestRunnerAvg();
+
+    Object getFastestRunnerMin();
+
+    static RaceOps load() {
+        try {
+            return (RaceOps) Class.forName("RaceOpsImpl").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("RaceOpsImpl is missing from the benchmark jar.", e);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Queries on a race built once per trial with every runner and all its runs. Each call asks about
+// the next runner of a shuffled order, so successive lookups take different paths through the
+// trees. Results are returned, so JMH consumes them. Scores are nanoseconds per query.
+//
+// Rosters up to 10M: java -jar target/benchmarks.jar RaceQueryBenchmark -p roster=10000000 -jvmArgs -Xmx16g
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Thread)
+public class RaceQueryBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int roster;
+
+    @Param({"4"})
+    public int runsPerRunner;
+
+    @Param({"random", "sorted", "reverse", "ties"})
+    public String order;
+
+    // int IDs are hashed and cheap to compare, string IDs have no hash and compare slowly
+    @Param({"int", "string"})
+    public String idKind;
+
+    private RaceOps race;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        race = RaceOps.load();
+        race.prepare(roster, runsPerRunner, order, idKind, 42);
+        race.fullRace();
+        cursor = 0;
+    }
+
+    private int nextLookup() {
+        int lookup = cursor;
+        cursor = lookup + 1 == roster ? 0 : lookup + 1;
+        return lookup;
+    }
+
+    @Benchmark
+    public boolean hasRunner() {
+        return race.hasRunner(nextLookup());
+    }
+
+    @Benchmark
+    public float getAvgRun() {
+        return race.getAvgRun(nextLookup());
+    }
+
+    @Benchmark
+    public float getMinRun() {
+        return race.getMinRun(nextLookup());
+    }
+
+    @Benchmark
+    public int getRankAvg() {
+        return race.getRankAvg(nextLookup());
+    }
+
+    @Benchmark
+    public int getRankMin() {
+        return race.getRankMin(nextLookup());
+    }
+
+    @Benchmark
+    public Object getFastestRunnerAvg() {
+        return race.getFastestRunnerAvg();
+    }
+
+    @Benchmark
+    public Object getFastestRunnerMin() {
+        return race.getFastestRunnerMin();
+    }
+}
@@ -0,0 +1,86 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+// Updates, each timed as one pass over the whole roster: every runner added, every run added,
+// the first run of every runner removed, or every runner removed. The race each pass starts from
+// is rebuilt before every invocation, outside the timing. Scores are microseconds per pass;
+// divide by roster (and by runsPerRunner for addRunToRunner) for the cost of one call.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Thread)
+public class RaceUpdateBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int roster;
+
+    @Param({"4"})
+    public int runsPerRunner;
+
+    @Param({"random", "sorted", "reverse", "ties"})
+    public String order;
+
+    @Param({"int", "string"})
+    public String idKind;
+
+    private RaceOps race;
+    private String benchmark;
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkParams params) {
+        race = RaceOps.load();
+        race.prepare(roster, runsPerRunner, order, idKind, 42);
+        String name = params.getBenchmark();
+        benchmark = name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    // Each benchmark starts from the race its pass needs
+    @Setup(Level.Invocation)
+    public void resetRace() {
+        switch (benchmark) {
+            case "addRunner":
+                race.emptyRace();
+                break;
+            case "addRunToRunner":
+                race.runnersWithoutRuns();
+                break;
+            default:
+                race.fullRace();
+        }
+    }
+
+    @Benchmark
+    public void addRunner() {
+        race.addRunners();
+    }
+
+    @Benchmark
+    public void addRunToRunner() {
+        race.addRuns();
+    }
+
+    @Benchmark
+    public void removeRunFromRunner() {
+        race.removeFirstRuns();
+    }
+
+    @Benchmark
+    public void removeRunner() {
+        race.removeRunners();
+    }
+}
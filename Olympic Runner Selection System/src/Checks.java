@@ -0,0 +1,53 @@
+import java.nio.ByteBuffer;
+
+// Helpers shared by the check programs. check fails with an AssertionError, same runs a query on
+// two implementations and fails unless both return equal results or throw the same message.
+class Checks {
+    interface Query {
+        Object run();
+    }
+
+    // Sends RunnerIDInts as their four byte number
+    static class IntCodec implements RunnerIDCodec {
+        @Override
+        public byte[] encode(RunnerID id) {
+            return ByteBuffer.allocate(Integer.BYTES).putInt(Integer.parseInt(id.toString())).array();
+        }
+
+        @Override
+        public RunnerID decode(byte[] bytes) {
+            return new RunnerIDInt(ByteBuffer.wrap(bytes).getInt());
+        }
+    }
+
+    private Checks() {
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    // Lets a void operation be compared with same
+    static Object run(Runnable operation) {
+        operation.run();
+        return "done";
+    }
+
+    static void same(String label, Query expected, Query actual) {
+        String expectedResult = outcome(expected);
+        String actualResult = outcome(actual);
+        if (!expectedResult.equals(actualResult)) {
+            throw new AssertionError(label + ": expected " + expectedResult + " but got " + actualResult);
+        }
+    }
+
+    static String outcome(Query query) {
+        try {
+            return String.valueOf(query.run());
+        } catch (IllegalArgumentException e) {
+            return "IllegalArgumentException: " + e.getMessage();
+        }
+    }
+}
@@ -0,0 +1,689 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+// Thread safe Race. Updates take the write lock, queries share the read lock, and the O(1)
+// fastest runner queries first try an optimistic read that never blocks the ingest thread.
+//
+// Adding or removing a run is split in two. The runner's own run tree is updated under its
+// stripe lock and the shared read lock, so ingest threads working on different runners run in
+// parallel. Only the short aggregate and score tree update takes the write lock. Stripe locks are
+// always taken before the StampedLock.
+//
+// Events for a listener are queued under the write lock and handed to it after every lock is
+// released, so a listener may query the race, and one slow listener only holds up the thread
+// delivering to it, never the other writers.
+public class ConcurrentRace {
+    private static final int DEFAULT_STRIPES = 64;
+
+    private final Race race;
+    private final StampedLock lock;
+    private final ReentrantLock[] stripes;
+    private final ConcurrentLinkedQueue<RaceEvent> events; // Queued in the order of the changes
+    private final AtomicBoolean delivering; // Set while a thread hands queued events to the listener
+    private volatile RaceListener listener;
+
+    public ConcurrentRace() {
+        this(DEFAULT_STRIPES);
+    }
+
+    public ConcurrentRace(int stripeCount) {
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("At least one stripe is required.");
+        }
+        this.race = new Race();
+        this.lock = new StampedLock();
+        this.stripes = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.events = new ConcurrentLinkedQueue<>();
+        this.delivering = new AtomicBoolean(false);
+    }
+
+    // IDs without a hash consistent with isSmaller cannot be spread safely, they share stripe 0
+    private ReentrantLock stripeOf(RunnerID id) {
+        if (!(id instanceof HashableRunnerID)) {
+            return stripes[0];
+        }
+        int hash = id.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes[Math.floorMod(hash, stripes.length)];
+    }
+
+    private void lockAllStripes() {
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+    }
+
+    private void unlockAllStripes() {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].unlock();
+        }
+    }
+
+    public void init() {
+        lockAllStripes();
+        try {
+            long stamp = lock.writeLock();
+            try {
+                race.init();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        } finally {
+            unlockAllStripes();
+        }
+    }
+
+    public void setMetrics(RaceMetrics metrics) {
+        long stamp = lock.writeLock();
+        try {
+            race.setMetrics(metrics);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Events arrive in the order of the changes, but on whichever mutating thread is delivering at
+    // the time and after the locks are released, so possibly after the change's method returned
+    public void setListener(RaceListener listener, int topThreshold) {
+        long stamp = lock.writeLock();
+        try {
+            race.setListener(listener == null ? null : events::add, topThreshold);
+            this.listener = listener;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        deliverEvents();
+    }
+
+    // Hands queued events to the listener one at a time. A thread that finds another one delivering
+    // leaves its events to it, and the delivering thread looks again after it stops so none are stranded.
+    private void deliverEvents() {
+        while (!events.isEmpty() && delivering.compareAndSet(false, true)) {
+            try {
+                RaceEvent event;
+                while ((event = events.poll()) != null) {
+                    RaceListener current = listener;
+                    if (current != null) {
+                        current.onEvent(event);
+                    }
+                }
+            } finally {
+                delivering.set(false);
+            }
+        }
+    }
+
+    public void setFormWindow(FormWindow window) {
+        long stamp = lock.writeLock();
+        try {
+            race.setFormWindow(window);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public ScoreIndex addScoreIndex(String name, RunnerMetric metric) {
+        long stamp = lock.writeLock();
+        try {
+            return race.addScoreIndex(name, metric);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void removeScoreIndex(ScoreIndex scoreIndex) {
+        long stamp = lock.writeLock();
+        try {
+            race.removeScoreIndex(scoreIndex);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Turning the index on fills it from the runners' run trees, which stageRun changes under the
+    // read lock. Holding every stripe keeps a staged run from being counted there and again by applyRun.
+    public void setRunTimeIndex(boolean on) {
+        lockAllStripes();
+        try {
+            long stamp = lock.writeLock();
+            try {
+                race.setRunTimeIndex(on);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        } finally {
+            unlockAllStripes();
+        }
+    }
+
+    public RaceStructure structure() {
+        long stamp = lock.readLock();
+        try {
+            return race.structure();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public void addRunner(RunnerID id) {
+        ReentrantLock stripe = stripeOf(id);
+        stripe.lock();
+        try {
+            long stamp = lock.writeLock();
+            try {
+                race.addRunner(id);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        } finally {
+            stripe.unlock();
+        }
+        deliverEvents();
+    }
+
+    public void removeRunner(RunnerID id) {
+        // The stripe keeps the runner from being removed between the two halves of a run update
+        ReentrantLock stripe = stripeOf(id);
+        stripe.lock();
+        try {
+            long stamp = lock.writeLock();
+            try {
+                race.removeRunner(id);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        } finally {
+            stripe.unlock();
+        }
+        deliverEvents();
+    }
+
+    public void addRunToRunner(RunnerID id, float time) {
+        ReentrantLock stripe = stripeOf(id);
+        stripe.lock();
+        try {
+            // The two halves call into Race directly, so the operation is timed here
+            long start = race.startTimer();
+            Race.Node runnerNode;
+            long stamp = lock.readLock();
+            try {
+                runnerNode = race.stageRun(id, time);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+
+            stamp = lock.writeLock();
+            try {
+                race.applyRun(runnerNode, time);
+                race.record(RaceMetrics.Operation.ADD_RUN, start);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        } finally {
+            stripe.unlock();
+        }
+        deliverEvents();
+    }
+
+    // Staged like an untimed run. Moving the race's time on affects every runner, so only that and
+    // applying the run take the write lock
+    public void addRunToRunner(RunnerID id, float time, long timestamp) {
+        ReentrantLock stripe = stripeOf(id);
+        stripe.lock();
+        try {
+            long start = race.startTimer();
+            Race.Node runnerNode;
+            long stamp = lock.readLock();
+            try {
+                race.checkTimedRun(timestamp);
+                runnerNode = race.stageRun(id, time);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+
+            stamp = lock.writeLock();
+            try {
+                race.applyTimedRun(runnerNode, time, timestamp);
+                race.record(RaceMetrics.Operation.ADD_RUN, start);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        } finally {
+            stripe.unlock();
+        }
+        deliverEvents();
+    }
+
+    public void advanceTime(long now) {
+        long stamp = lock.writeLock();
+        try {
+            race.advanceTime(now);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        deliverEvents();
+    }
+
+    public void removeRunFromRunner(RunnerID id, float time) {
+        ReentrantLock stripe = stripeOf(id);
+        stripe.lock();
+        try {
+            // The two halves call into Race directly, so the operation is timed here
+            long start = race.startTimer();
+            Race.Node runnerNode;
+            long stamp = lock.readLock();
+            try {
+                runnerNode = race.stageRunRemoval(id, time);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+
+            stamp = lock.writeLock();
+            try {
+                race.applyRunRemoval(runnerNode, time);
+                race.record(RaceMetrics.Operation.REMOVE_RUN, start);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        } finally {
+            stripe.unlock();
+        }
+        deliverEvents();
+    }
+
+    public void addRunsBulk(RunnerID[] ids, float[] times) {
+        lockAllStripes();
+        try {
+            long stamp = lock.writeLock();
+            try {
+                race.addRunsBulk(ids, times);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        } finally {
+            unlockAllStripes();
+        }
+        deliverEvents();
+    }
+
+    public void addRunsBulk(Iterable<RunResult> results) {
+        lockAllStripes();
+        try {
+            long stamp = lock.writeLock();
+            try {
+                race.addRunsBulk(results);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        } finally {
+            unlockAllStripes();
+        }
+        deliverEvents();
+    }
+
+    public void removeRunsBulk(RunnerID[] ids, float[] times) {
+        lockAllStripes();
+        try {
+            long stamp = lock.writeLock();
+            try {
+                race.removeRunsBulk(ids, times);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        } finally {
+            unlockAllStripes();
+        }
+        deliverEvents();
+    }
+
+    public void removeRunsBulk(Iterable<RunResult> results) {
+        lockAllStripes();
+        try {
+            long stamp = lock.writeLock();
+            try {
+                race.removeRunsBulk(results);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        } finally {
+            unlockAllStripes();
+        }
+        deliverEvents();
+    }
+
+    // Run stores change under the read lock, so saving also holds every stripe to keep them still
+    public void save(Path path, RunnerIDCodec codec) throws IOException {
+        lockAllStripes();
+        try {
+            long stamp = lock.readLock();
+            try {
+                race.save(path, codec);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        } finally {
+            unlockAllStripes();
+        }
+    }
+
+    public void load(Path path, RunnerIDCodec codec) throws IOException {
+        lockAllStripes();
+        try {
+            long stamp = lock.writeLock();
+            try {
+                race.load(path, codec);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        } finally {
+            unlockAllStripes();
+        }
+    }
+
+    // The snapshot is taken under the write lock and its queries share the read lock
+    public RaceSnapshot snapshot() {
+        long stamp = lock.writeLock();
+        try {
+            return race.snapshot(lock);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Timed here and recorded once, whether the optimistic read held or had to be retried
+    public RunnerID getFastestRunnerAvg() {
+        long start = race.startTimer();
+        RunnerID fastest = readFastestRunnerAvg();
+        race.record(RaceMetrics.Operation.FASTEST_AVG, start);
+        return fastest;
+    }
+
+    private RunnerID readFastestRunnerAvg() {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                RunnerID fastest = race.fastestRunnerAvg();
+                if (lock.validate(stamp)) {
+                    return fastest;
+                }
+            } catch (RuntimeException e) {
+                // Only trust the exception if no writer ran meanwhile, otherwise retry under the read lock
+                if (lock.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return race.fastestRunnerAvg();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Timed here and recorded once, whether the optimistic read held or had to be retried
+    public RunnerID getFastestRunnerMin() {
+        long start = race.startTimer();
+        RunnerID fastest = readFastestRunnerMin();
+        race.record(RaceMetrics.Operation.FASTEST_MIN, start);
+        return fastest;
+    }
+
+    private RunnerID readFastestRunnerMin() {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                RunnerID fastest = race.fastestRunnerMin();
+                if (lock.validate(stamp)) {
+                    return fastest;
+                }
+            } catch (RuntimeException e) {
+                // Only trust the exception if no writer ran meanwhile, otherwise retry under the read lock
+                if (lock.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return race.fastestRunnerMin();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public boolean hasRunner(RunnerID id) {
+        long stamp = lock.readLock();
+        try {
+            return race.hasRunner(id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public float getMinRun(RunnerID id) {
+        long stamp = lock.readLock();
+        try {
+            return race.getMinRun(id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public float getAvgRun(RunnerID id) {
+        long stamp = lock.readLock();
+        try {
+            return race.getAvgRun(id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public long countRunsBelow(float time) {
+        long stamp = lock.readLock();
+        try {
+            return race.countRunsBelow(time);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public float getRunPercentile(double p) {
+        long stamp = lock.readLock();
+        try {
+            return race.getRunPercentile(p);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public long[] runHistogram(float[] bounds) {
+        long stamp = lock.readLock();
+        try {
+            return race.runHistogram(bounds);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Run order statistics read the runner's run tree, which stageRun changes under the read lock,
+    // so they also take the runner's stripe
+    public float getMedianRun(RunnerID id) {
+        ReentrantLock stripe = stripeOf(id);
+        stripe.lock();
+        try {
+            long stamp = lock.readLock();
+            try {
+                return race.getMedianRun(id);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    public float getPercentileRun(RunnerID id, double p) {
+        ReentrantLock stripe = stripeOf(id);
+        stripe.lock();
+        try {
+            long stamp = lock.readLock();
+            try {
+                return race.getPercentileRun(id, p);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    public float getKthBestRun(RunnerID id, int k) {
+        ReentrantLock stripe = stripeOf(id);
+        stripe.lock();
+        try {
+            long stamp = lock.readLock();
+            try {
+                return race.getKthBestRun(id, k);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    public int getRankAvg(RunnerID id) {
+        long stamp = lock.readLock();
+        try {
+            return race.getRankAvg(id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public int getRankMin(RunnerID id) {
+        long stamp = lock.readLock();
+        try {
+            return race.getRankMin(id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public float getWindowedMin(RunnerID id) {
+        long stamp = lock.readLock();
+        try {
+            return race.getWindowedMin(id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public float getWindowedAvg(RunnerID id) {
+        long stamp = lock.readLock();
+        try {
+            return race.getWindowedAvg(id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public int getRankWindowedAvg(RunnerID id) {
+        long stamp = lock.readLock();
+        try {
+            return race.getRankWindowedAvg(id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public int getRankWindowedMin(RunnerID id) {
+        long stamp = lock.readLock();
+        try {
+            return race.getRankWindowedMin(id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public RunnerID getFastestRunnerWindowedAvg() {
+        long stamp = lock.readLock();
+        try {
+            return race.getFastestRunnerWindowedAvg();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public RunnerID getFastestRunnerWindowedMin() {
+        long stamp = lock.readLock();
+        try {
+            return race.getFastestRunnerWindowedMin();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public float getScore(ScoreIndex scoreIndex, RunnerID id) {
+        long stamp = lock.readLock();
+        try {
+            return race.getScore(scoreIndex, id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public int getRank(ScoreIndex scoreIndex, RunnerID id) {
+        long stamp = lock.readLock();
+        try {
+            return race.getRank(scoreIndex, id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public RunnerID selectByRank(ScoreIndex scoreIndex, int rank) {
+        long stamp = lock.readLock();
+        try {
+            return race.selectByRank(scoreIndex, rank);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public RunnerID getFastestRunner(ScoreIndex scoreIndex) {
+        long stamp = lock.readLock();
+        try {
+            return race.getFastestRunner(scoreIndex);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public RunnerID selectByRankAvg(int rank) {
+        long stamp = lock.readLock();
+        try {
+            return race.selectByRankAvg(rank);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public RunnerID selectByRankMin(int rank) {
+        long stamp = lock.readLock();
+        try {
+            return race.selectByRankMin(rank);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+}
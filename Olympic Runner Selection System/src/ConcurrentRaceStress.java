@@ -0,0 +1,320 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hammers a ConcurrentRace with ingest threads while reader threads query it, then checks the
+// result against a single threaded Race given the same runs. Each ingest thread owns the runners
+// whose ID is its index modulo the thread count and adds, removes, runs and bulk loads them at
+// random, so the final race does not depend on how the threads interleaved. Midway the main
+// thread turns the run time index off and on again many times and adds two score indexes, all of
+// which are filled from the run trees while other runs are being staged.
+//
+// Readers check what can be checked while the race moves: ranks and selects agree inside a
+// snapshot, its leaderboard is in order, and the fastest runner queries never fail once the race
+// has runners. At the end every runner's min, average, ranks and scores must match the single
+// threaded race, and so must the run time index.
+//
+// A second round adds timed runs to a race with a form window, stamped from one shared clock. A
+// run whose stamp another thread overtook between staging and applying it is refused, and must
+// leave nothing behind. The race must equal a single threaded race given the accepted runs in
+// stamp order.
+//
+// Usage: java ConcurrentRaceStress [ingest threads] [reader threads] [runners] [operations per thread] [seed]
+public class ConcurrentRaceStress {
+    private static final float[] BOUNDS = {10, 25, 50, 75, 90};
+    private static final int TIMED_RUNNERS = 50;
+
+    public static void main(String[] args) throws InterruptedException {
+        int writers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int readers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int runners = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int operations = args.length > 3 ? Integer.parseInt(args[3]) : 50000;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 1;
+
+        ConcurrentRace race = new ConcurrentRace();
+        race.init();
+        race.addRunner(new RunnerIDInt(0)); // Stays, so the fastest runner queries always have an answer
+        race.setRunTimeIndex(true);
+
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong progress = new AtomicLong();
+        AtomicLong reads = new AtomicLong();
+        ArrayList<Throwable> failures = new ArrayList<>();
+        ArrayList<HashMap<Integer, ArrayList<Float>>> owned = new ArrayList<>();
+        ArrayList<Thread> threads = new ArrayList<>();
+        long started = System.nanoTime();
+        for (int w = 0; w < writers; w++) {
+            HashMap<Integer, ArrayList<Float>> runs = new HashMap<>();
+            if (w == 0) {
+                runs.put(0, new ArrayList<>());
+            }
+            owned.add(runs);
+            int index = w;
+            Random random = new Random(seed * 1000 + w);
+            threads.add(start(failures, "ingest-" + w,
+                    () -> ingest(race, random, index, writers, runners, operations, runs, progress)));
+        }
+        for (int r = 0; r < readers; r++) {
+            Random random = new Random(seed * 1000 + writers + r);
+            threads.add(start(failures, "reader-" + r, () -> read(race, random, runners, stop, reads)));
+        }
+
+        // Switch the indexes while the writers are in full swing
+        long total = (long) writers * operations;
+        waitFor(progress, total / 4, failures);
+        while (progress.get() < total / 3 && threads.get(0).isAlive()) {
+            race.setRunTimeIndex(false);
+            race.setRunTimeIndex(true);
+            Thread.sleep(1);
+        }
+        ScoreIndex median = race.addScoreIndex("median", RunnerMetric.median());
+        waitFor(progress, total / 2, failures);
+        ScoreIndex bestOfThree = race.addScoreIndex("best of 3", RunnerMetric.bestOf(3));
+        race.setRunTimeIndex(false);
+        race.setRunTimeIndex(true);
+
+        for (int w = 0; w < writers; w++) {
+            threads.get(w).join();
+        }
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+        synchronized (failures) {
+            if (!failures.isEmpty()) {
+                throw new AssertionError("a thread failed", failures.get(0));
+            }
+        }
+
+        Race expected = new Race();
+        expected.init();
+        ScoreIndex expectedMedian = expected.addScoreIndex("median", RunnerMetric.median());
+        ScoreIndex expectedBestOfThree = expected.addScoreIndex("best of 3", RunnerMetric.bestOf(3));
+        expected.setRunTimeIndex(true);
+        for (HashMap<Integer, ArrayList<Float>> runs : owned) {
+            for (Integer number : runs.keySet()) {
+                RunnerIDInt id = new RunnerIDInt(number);
+                expected.addRunner(id);
+                for (float time : runs.get(number)) {
+                    expected.addRunToRunner(id, time);
+                }
+            }
+        }
+        compare(expected, race, runners, expectedMedian, median, expectedBestOfThree, bestOfThree);
+        System.out.printf("%d ingest threads, %d readers: %d operations, %d reads in %.2f s%n",
+                writers, readers, total, reads.get(), seconds);
+        checkTimedRuns(writers, operations / 10, seed);
+        System.out.println("ConcurrentRaceStress OK");
+    }
+
+    private interface Work {
+        void run() throws Exception;
+    }
+
+    private static Thread start(ArrayList<Throwable> failures, String name, Work work) {
+        Thread thread = new Thread(() -> {
+            try {
+                work.run();
+            } catch (Throwable failure) {
+                synchronized (failures) {
+                    failures.add(failure);
+                }
+            }
+        }, name);
+        thread.start();
+        return thread;
+    }
+
+    private static void waitFor(AtomicLong progress, long operations, ArrayList<Throwable> failures)
+            throws InterruptedException {
+        while (progress.get() < operations) {
+            synchronized (failures) {
+                if (!failures.isEmpty()) {
+                    return;
+                }
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private static void ingest(ConcurrentRace race, Random random, int index, int writers, int runners, int operations,
+                               HashMap<Integer, ArrayList<Float>> runs, AtomicLong progress) {
+        int ownRunners = (runners - index + writers - 1) / writers;
+        ArrayList<Integer> present = new ArrayList<>(runs.keySet());
+        for (int op = 0; op < operations; op++) {
+            int number = index + writers * random.nextInt(ownRunners);
+            RunnerIDInt id = new RunnerIDInt(number);
+            ArrayList<Float> runnerRuns = runs.get(number);
+            int kind = random.nextInt(100);
+            if (runnerRuns == null) {
+                race.addRunner(id);
+                runs.put(number, new ArrayList<>());
+                present.add(number);
+            } else if (kind < 3 && number != 0) {
+                race.removeRunner(id);
+                runs.remove(number);
+                present.remove(Integer.valueOf(number));
+            } else if (kind < 8) {
+                // A few runs for runners of this thread in one bulk call
+                RunnerID[] ids = new RunnerID[1 + random.nextInt(8)];
+                float[] times = new float[ids.length];
+                for (int i = 0; i < ids.length; i++) {
+                    int bulkNumber = present.get(random.nextInt(present.size()));
+                    ids[i] = new RunnerIDInt(bulkNumber);
+                    times[i] = randomTime(random);
+                    runs.get(bulkNumber).add(times[i]);
+                }
+                race.addRunsBulk(ids, times);
+            } else if (kind < 30 && !runnerRuns.isEmpty()) {
+                race.removeRunFromRunner(id, runnerRuns.remove(random.nextInt(runnerRuns.size())));
+            } else {
+                float time = randomTime(random);
+                race.addRunToRunner(id, time);
+                runnerRuns.add(time);
+            }
+            progress.incrementAndGet();
+        }
+    }
+
+    // Half second steps, so runs and averages often tie
+    private static float randomTime(Random random) {
+        return random.nextInt(200) * 0.5f;
+    }
+
+    private static void read(ConcurrentRace race, Random random, int runners, AtomicBoolean stop, AtomicLong reads) {
+        while (!stop.get()) {
+            Checks.check(race.getFastestRunnerAvg() != null, "no fastest runner by average");
+            Checks.check(race.getFastestRunnerMin() != null, "no fastest runner by minimum");
+            RunnerIDInt id = new RunnerIDInt(random.nextInt(runners));
+            if (race.hasRunner(id)) {
+                try {
+                    Checks.check(race.getRankAvg(id) >= 1, "rank below 1");
+                } catch (IllegalArgumentException removed) {
+                    // Removed since hasRunner
+                }
+            }
+            try (RaceSnapshot snapshot = race.snapshot()) {
+                int size = snapshot.size();
+                int rank = 0;
+                float previous = -1;
+                for (RunnerID leader : snapshot.runnersByAvg()) {
+                    rank++;
+                    Checks.check(snapshot.getRankAvg(leader) == rank, "snapshot rank of " + leader + " is not " + rank);
+                    Checks.check(snapshot.selectByRankAvg(rank).equals(leader), "snapshot select at " + rank + " differs");
+                    float avg = snapshot.getAvgRun(leader);
+                    Checks.check(avg >= previous, "snapshot averages out of order at rank " + rank);
+                    previous = avg;
+                    if (rank == 20) {
+                        break;
+                    }
+                }
+                Checks.check(rank == Math.min(20, size), "snapshot leaderboard ended at " + rank + " of " + size);
+            }
+            reads.incrementAndGet();
+        }
+    }
+
+    private static void checkTimedRuns(int writers, int operations, long seed) throws InterruptedException {
+        FormWindow window = new FormWindow(5, 40, 0);
+        ConcurrentRace race = new ConcurrentRace();
+        race.init();
+        race.setFormWindow(window);
+        for (int number = 0; number < TIMED_RUNNERS; number++) {
+            race.addRunner(new RunnerIDInt(number));
+        }
+
+        AtomicLong clock = new AtomicLong();
+        AtomicLong refused = new AtomicLong();
+        ArrayList<Throwable> failures = new ArrayList<>();
+        ArrayList<ArrayList<long[]>> accepted = new ArrayList<>();
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            ArrayList<long[]> runs = new ArrayList<>();
+            accepted.add(runs);
+            Random random = new Random(seed * 1000 + 500 + w);
+            threads.add(start(failures, "timed-" + w, () -> {
+                for (int op = 0; op < operations; op++) {
+                    int number = random.nextInt(TIMED_RUNNERS);
+                    float time = randomTime(random);
+                    long timestamp = clock.addAndGet(random.nextInt(3));
+                    try {
+                        race.addRunToRunner(new RunnerIDInt(number), time, timestamp);
+                        runs.add(new long[] {timestamp, number, Float.floatToIntBits(time)});
+                    } catch (IllegalArgumentException overtaken) {
+                        refused.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        synchronized (failures) {
+            if (!failures.isEmpty()) {
+                throw new AssertionError("a timed thread failed", failures.get(0));
+            }
+        }
+
+        // Accepted runs were applied in stamp order, runs with the same stamp in any order
+        ArrayList<long[]> all = new ArrayList<>();
+        for (ArrayList<long[]> runs : accepted) {
+            all.addAll(runs);
+        }
+        all.sort((a, b) -> Long.compare(a[0], b[0]));
+        Race expected = new Race();
+        expected.init();
+        expected.setFormWindow(window);
+        for (int number = 0; number < TIMED_RUNNERS; number++) {
+            expected.addRunner(new RunnerIDInt(number));
+        }
+        for (long[] run : all) {
+            expected.addRunToRunner(new RunnerIDInt((int) run[1]), Float.intBitsToFloat((int) run[2]), run[0]);
+        }
+        for (int number = 0; number < TIMED_RUNNERS; number++) {
+            RunnerIDInt id = new RunnerIDInt(number);
+            Checks.check(expected.getMinRun(id) == race.getMinRun(id), "minimum of timed runner " + id + " differs");
+            Checks.check(expected.getAvgRun(id) == race.getAvgRun(id), "average of timed runner " + id + " differs");
+            Checks.check(expected.getMedianRun(id) == race.getMedianRun(id), "median of timed runner " + id + " differs");
+            Checks.check(expected.getWindowedMin(id) == race.getWindowedMin(id), "form minimum of " + id + " differs");
+            Checks.check(expected.getWindowedAvg(id) == race.getWindowedAvg(id), "form average of " + id + " differs");
+            Checks.check(expected.getRankWindowedAvg(id) == race.getRankWindowedAvg(id), "form rank of " + id + " differs");
+        }
+        System.out.printf("%d timed runs accepted, %d refused as overtaken%n", all.size(), refused.get());
+    }
+
+    private static void compare(Race expected, ConcurrentRace race, int runners, ScoreIndex expectedMedian,
+                                ScoreIndex median, ScoreIndex expectedBestOfThree, ScoreIndex bestOfThree) {
+        for (int number = 0; number < runners; number++) {
+            RunnerIDInt id = new RunnerIDInt(number);
+            Checks.check(expected.hasRunner(id) == race.hasRunner(id), "runner " + id + " differs");
+            if (!expected.hasRunner(id)) {
+                continue;
+            }
+            Checks.check(expected.getMinRun(id) == race.getMinRun(id), "minimum of " + id + " differs");
+            Checks.check(expected.getAvgRun(id) == race.getAvgRun(id), "average of " + id + " differs");
+            Checks.check(expected.getRankAvg(id) == race.getRankAvg(id), "average rank of " + id + " differs");
+            Checks.check(expected.getRankMin(id) == race.getRankMin(id), "minimum rank of " + id + " differs");
+            Checks.check(expected.getScore(expectedMedian, id) == race.getScore(median, id), "median of " + id + " differs");
+            Checks.check(expected.getRank(expectedMedian, id) == race.getRank(median, id), "median rank of " + id + " differs");
+            Checks.check(expected.getScore(expectedBestOfThree, id) == race.getScore(bestOfThree, id),
+                    "best of 3 of " + id + " differs");
+            Checks.check(expected.getRank(expectedBestOfThree, id) == race.getRank(bestOfThree, id),
+                    "best of 3 rank of " + id + " differs");
+        }
+        Checks.check(expected.getFastestRunnerAvg().equals(race.getFastestRunnerAvg()), "fastest runner by average differs");
+        Checks.check(expected.getFastestRunnerMin().equals(race.getFastestRunnerMin()), "fastest runner by minimum differs");
+        for (float bound : BOUNDS) {
+            Checks.check(expected.countRunsBelow(bound) == race.countRunsBelow(bound),
+                    "runs below " + bound + ": " + race.countRunsBelow(bound) + " instead of " + expected.countRunsBelow(bound));
+        }
+        long[] expectedCounts = expected.runHistogram(BOUNDS);
+        long[] counts = race.runHistogram(BOUNDS);
+        for (int i = 0; i < counts.length; i++) {
+            Checks.check(expectedCounts[i] == counts[i], "run histogram bucket " + i + " differs");
+        }
+        Checks.check(expected.getRunPercentile(0.5) == race.getRunPercentile(0.5), "median run of the race differs");
+    }
+}
@@ -0,0 +1,10 @@
+import java.io.IOException;
+
+// Test hook for crash recovery. DurableRace and RaceLog call reached() between the steps of a
+// checkpoint and of a log sync, and a test can throw from it to stop the work right there, as a
+// crash would. The default does nothing.
+interface CrashPoint {
+    CrashPoint NONE = step -> { };
+
+    void reached(String step) throws IOException;
+}
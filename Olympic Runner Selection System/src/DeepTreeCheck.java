@@ -0,0 +1,59 @@
+import java.util.Iterator;
+
+// Regression check for trees that degenerate under sorted input: loads 1M runners in ascending ID
+// order, gives them 1M runs in ascending time order, then gives one runner 1M runs of its own in
+// ascending time order, checking ranks, minimums, averages and order statistics along the way.
+// Recursive tree code overflows the stack long before this size. Exits with an AssertionError on
+// the first wrong answer.
+//
+// Usage: java -Xss256k DeepTreeCheck [size]
+public class DeepTreeCheck {
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        long start = System.nanoTime();
+
+        Race race = new Race();
+        race.init();
+        for (int i = 0; i < size; i++) {
+            race.addRunner(new RunnerIDInt(i));
+        }
+        // Runner i gets time i, so both score orders match the ID order
+        for (int i = 0; i < size; i++) {
+            race.addRunToRunner(new RunnerIDInt(i), i);
+        }
+        Checks.check(race.getFastestRunnerAvg().equals(new RunnerIDInt(0)), "wrong fastest by average");
+        Checks.check(race.getFastestRunnerMin().equals(new RunnerIDInt(0)), "wrong fastest by minimum");
+        for (int i = 0; i < size; i += Math.max(1, size / 1000)) {
+            RunnerIDInt id = new RunnerIDInt(i);
+            Checks.check(race.getRankAvg(id) == i + 1, "wrong getRankAvg(" + i + ")");
+            Checks.check(race.getRankMin(id) == i + 1, "wrong getRankMin(" + i + ")");
+            Checks.check(race.selectByRankAvg(i + 1).equals(id), "wrong selectByRankAvg(" + (i + 1) + ")");
+            Checks.check(race.getMinRun(id) == i, "wrong getMinRun(" + i + ")");
+        }
+        Iterator<RunnerID> leaders = race.topKByAvg(3).iterator();
+        for (int i = 0; i < 3 && i < size; i++) {
+            Checks.check(leaders.next().equals(new RunnerIDInt(i)), "wrong topKByAvg position " + i);
+        }
+
+        // One runner with size runs in ascending time order, times 0..size-1 after its first run
+        RunnerIDInt last = new RunnerIDInt(size - 1);
+        for (int i = 0; i < size; i++) {
+            race.addRunToRunner(last, i);
+        }
+        int runs = size + 1;
+        Checks.check(race.getMinRun(last) == 0, "wrong getMinRun of the runner with " + runs + " runs");
+        Checks.check(race.getKthBestRun(last, 1) == 0, "wrong fastest run");
+        Checks.check(race.getKthBestRun(last, runs) == size - 1, "wrong slowest run");
+        Checks.check(race.getKthBestRun(last, size / 2 + 1) == size / 2, "wrong middle run");
+        double expectedAvg = ((double) size * (size - 1) / 2 + (size - 1)) / runs;
+        Checks.check(Math.abs(race.getAvgRun(last) - expectedAvg) <= expectedAvg * 1e-6,
+                "wrong getAvgRun of the runner with " + runs + " runs");
+
+        // Removing every runner in ascending ID order empties all the trees
+        for (int i = 0; i < size; i++) {
+            race.removeRunner(new RunnerIDInt(i));
+        }
+        Checks.check(!race.topKByAvg(1).iterator().hasNext(), "race is not empty");
+        System.out.printf("DeepTreeCheck OK, %d runners in %.1f s%n", size, (System.nanoTime() - start) / 1e9);
+    }
+}
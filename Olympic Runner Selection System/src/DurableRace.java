@@ -0,0 +1,364 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+// ConcurrentRace that survives crashes. Every mutation is applied and then appended to a RaceLog
+// in the race's directory, and checkpoint() saves the whole race so the log can start over.
+//
+// A mutation holds the stripe lock of its runner while it is applied and appended, so the log has
+// each runner's mutations in the order they were applied. Mutations of different runners do not
+// depend on each other and replay to the same race in either order, so they take different
+// stripes and are staged in parallel as in a ConcurrentRace. Only the append itself is serial.
+//
+// The directory holds snapshot-<g> and log-<g> files of numbered generations. snapshot-<g> is the
+// race after every log before generation g (there is no snapshot-0), and log-<g> holds what came
+// after it. Opening the directory loads the newest snapshot and replays the log of its generation.
+//
+// With syncEveryOperation a mutation only returns once its record is on disk. Threads mutating at
+// the same time share one fsync. Without it records are forced by sync(), checkpoint() and
+// close(), and a crash loses at most what was appended since the last of those.
+//
+// A checkpoint forces the directory after renaming the snapshot into place and after creating the
+// new log, so both names are on disk before the older generation is deleted.
+public class DurableRace implements AutoCloseable {
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String LOG_PREFIX = "log-";
+    private static final int STRIPES = 64;
+
+    private final Path directory;
+    private final RunnerIDCodec codec;
+    private final boolean syncEveryOperation;
+    private final ConcurrentRace race;
+    private final ReentrantLock[] stripes; // Keep each runner's log order the same as its apply order
+    private volatile RaceLog log; // Replaced by checkpoint() while it holds every stripe
+    private long generation;
+    private CrashPoint crashPoint = CrashPoint.NONE;
+    private Exception failedCheckpoint; // A checkpoint that failed after its rename, see checkpoint()
+
+    public DurableRace(Path directory, RunnerIDCodec codec, boolean syncEveryOperation) throws IOException {
+        this.directory = directory;
+        this.codec = codec;
+        this.syncEveryOperation = syncEveryOperation;
+        this.race = new ConcurrentRace();
+        this.stripes = new ReentrantLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        generation = newestSnapshotGeneration();
+        if (generation > 0) {
+            race.load(directory.resolve(SNAPSHOT_PREFIX + generation), codec);
+        } else {
+            race.init();
+        }
+
+        Path logPath = directory.resolve(LOG_PREFIX + generation);
+        long validEnd = 0;
+        if (Files.exists(logPath)) {
+            validEnd = RaceLog.replay(logPath, this::replay);
+        }
+        log = new RaceLog(logPath, validEnd);
+        syncDirectory();
+        deleteGenerationsBefore(generation);
+    }
+
+    // Package-private so tests can stop a checkpoint or log sync between two steps
+    void setCrashPoint(CrashPoint crashPoint) {
+        lockAllStripes();
+        try {
+            this.crashPoint = crashPoint;
+            log.crashPoint = crashPoint;
+        } finally {
+            unlockAllStripes();
+        }
+    }
+
+    // The same runner always maps to the same stripe, IDs that cannot be hashed all share stripe 0
+    private ReentrantLock stripeOf(RunnerID id) {
+        if (!(id instanceof HashableRunnerID)) {
+            return stripes[0];
+        }
+        int hash = id.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes[Math.floorMod(hash, stripes.length)];
+    }
+
+    private void lockAllStripes() {
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+    }
+
+    private void unlockAllStripes() {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].unlock();
+        }
+    }
+
+    private void replay(byte operation, byte[] idBytes, float time) {
+        RunnerID id = codec.decode(idBytes);
+        switch (operation) {
+            case RaceLog.ADD_RUNNER:
+                race.addRunner(id);
+                break;
+            case RaceLog.REMOVE_RUNNER:
+                race.removeRunner(id);
+                break;
+            case RaceLog.ADD_RUN:
+                race.addRunToRunner(id, time);
+                break;
+            case RaceLog.REMOVE_RUN:
+                race.removeRunFromRunner(id, time);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown race log operation " + operation + ".");
+        }
+    }
+
+    // The ID is encoded before anything changes, so an ID the codec rejects leaves the race as it was
+    public void addRunner(RunnerID id) {
+        byte[] idBytes = codec.encode(id);
+        long sequence;
+        ReentrantLock stripe = stripeOf(id);
+        stripe.lock();
+        try {
+            checkWritable();
+            race.addRunner(id);
+            sequence = log.append(RaceLog.ADD_RUNNER, idBytes, 0);
+        } finally {
+            stripe.unlock();
+        }
+        afterAppend(sequence);
+    }
+
+    public void removeRunner(RunnerID id) {
+        byte[] idBytes = codec.encode(id);
+        long sequence;
+        ReentrantLock stripe = stripeOf(id);
+        stripe.lock();
+        try {
+            checkWritable();
+            race.removeRunner(id);
+            sequence = log.append(RaceLog.REMOVE_RUNNER, idBytes, 0);
+        } finally {
+            stripe.unlock();
+        }
+        afterAppend(sequence);
+    }
+
+    public void addRunToRunner(RunnerID id, float time) {
+        byte[] idBytes = codec.encode(id);
+        long sequence;
+        ReentrantLock stripe = stripeOf(id);
+        stripe.lock();
+        try {
+            checkWritable();
+            race.addRunToRunner(id, time);
+            sequence = log.append(RaceLog.ADD_RUN, idBytes, time);
+        } finally {
+            stripe.unlock();
+        }
+        afterAppend(sequence);
+    }
+
+    public void removeRunFromRunner(RunnerID id, float time) {
+        byte[] idBytes = codec.encode(id);
+        long sequence;
+        ReentrantLock stripe = stripeOf(id);
+        stripe.lock();
+        try {
+            checkWritable();
+            race.removeRunFromRunner(id, time);
+            sequence = log.append(RaceLog.REMOVE_RUN, idBytes, time);
+        } finally {
+            stripe.unlock();
+        }
+        afterAppend(sequence);
+    }
+
+    // The fsync happens outside the stripe, so other threads keep appending to the next group
+    private void afterAppend(long sequence) {
+        if (syncEveryOperation) {
+            try {
+                log.commit(sequence);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Makes every mutation that has returned so far durable
+    public void sync() throws IOException {
+        RaceLog current = log;
+        current.commit(current.lastAppended());
+    }
+
+    // Saves the race as the next generation's snapshot and starts that generation's empty log.
+    // Mutations wait while the snapshot is written. If it fails before the rename the race carries
+    // on in the current generation. After the rename recovery picks the new generation, so mutations
+    // logged to the old one would be lost: the race refuses them until its directory is reopened.
+    public void checkpoint() throws IOException {
+        lockAllStripes();
+        try {
+            checkWritable();
+            log.commit(log.lastAppended());
+            long next = generation + 1;
+            Path temporary = directory.resolve(SNAPSHOT_PREFIX + next + ".tmp");
+            race.save(temporary, codec);
+            crashPoint.reached("snapshot saved");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            crashPoint.reached("snapshot forced");
+            // The rename is what makes the new generation the one recovery picks
+            Files.move(temporary, directory.resolve(SNAPSHOT_PREFIX + next), StandardCopyOption.ATOMIC_MOVE);
+            RaceLog nextLog = null;
+            try {
+                crashPoint.reached("snapshot renamed");
+                syncDirectory();
+                crashPoint.reached("rename synced");
+                nextLog = new RaceLog(directory.resolve(LOG_PREFIX + next), 0);
+                nextLog.crashPoint = crashPoint;
+                crashPoint.reached("log created");
+                syncDirectory();
+                crashPoint.reached("log synced");
+                RaceLog previous = log;
+                log = nextLog;
+                generation = next;
+                previous.close();
+            } catch (IOException | RuntimeException e) {
+                if (generation != next) {
+                    failedCheckpoint = e;
+                    if (nextLog != null) {
+                        try {
+                            nextLog.close();
+                        } catch (IOException closeFailure) {
+                            e.addSuppressed(closeFailure);
+                        }
+                    }
+                }
+                throw e;
+            }
+            // Only now that the new generation's names are durable can the old one go
+            deleteGenerationsBefore(generation);
+        } finally {
+            unlockAllStripes();
+        }
+    }
+
+    private void checkWritable() {
+        if (failedCheckpoint != null) {
+            throw new UncheckedIOException(new IOException(
+                    "A checkpoint failed after its snapshot was renamed into place. Reopen the race's directory to recover.",
+                    failedCheckpoint));
+        }
+        log.checkWritable();
+    }
+
+    @Override
+    public void close() throws IOException {
+        lockAllStripes();
+        try {
+            log.close();
+        } finally {
+            unlockAllStripes();
+        }
+    }
+
+    public void setListener(RaceListener listener, int topThreshold) {
+        race.setListener(listener, topThreshold);
+    }
+
+    public RunnerID getFastestRunnerAvg() {
+        return race.getFastestRunnerAvg();
+    }
+
+    public RunnerID getFastestRunnerMin() {
+        return race.getFastestRunnerMin();
+    }
+
+    public float getMinRun(RunnerID id) {
+        return race.getMinRun(id);
+    }
+
+    public float getAvgRun(RunnerID id) {
+        return race.getAvgRun(id);
+    }
+
+    public int getRankAvg(RunnerID id) {
+        return race.getRankAvg(id);
+    }
+
+    public int getRankMin(RunnerID id) {
+        return race.getRankMin(id);
+    }
+
+    public RunnerID selectByRankAvg(int rank) {
+        return race.selectByRankAvg(rank);
+    }
+
+    public RunnerID selectByRankMin(int rank) {
+        return race.selectByRankMin(rank);
+    }
+
+    public RaceSnapshot snapshot() {
+        return race.snapshot();
+    }
+
+    // Makes renames and new files in the directory durable. Windows cannot open a directory for
+    // this, and NTFS journals the names anyway, so there the failure is ignored.
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            if (!System.getProperty("os.name").startsWith("Windows")) {
+                throw e;
+            }
+        }
+    }
+
+    private long newestSnapshotGeneration() throws IOException {
+        long newest = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SNAPSHOT_PREFIX + "*")) {
+            for (Path file : files) {
+                long fileGeneration = generationOf(file, SNAPSHOT_PREFIX);
+                newest = Math.max(newest, fileGeneration);
+            }
+        }
+        return newest;
+    }
+
+    // Removes older snapshots and logs, and snapshots a crash left half written
+    private void deleteGenerationsBefore(long keep) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long fileGeneration = name.startsWith(SNAPSHOT_PREFIX) ? generationOf(file, SNAPSHOT_PREFIX)
+                        : name.startsWith(LOG_PREFIX) ? generationOf(file, LOG_PREFIX) : keep;
+                if (fileGeneration < keep || name.endsWith(".tmp")) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    // The generation in a file name, or -1 for names that are not a complete generation file
+    private static long generationOf(Path file, String prefix) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
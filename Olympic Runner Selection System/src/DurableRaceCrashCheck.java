@@ -0,0 +1,344 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+// Simulated crashes of a DurableRace in temporary directories, each followed by recovery from
+// what a crash at that point would leave on disk, a copy of the directory taken without closing:
+//
+//   - a checkpoint stopped after each of its steps,
+//   - a log sync that fails after writing and is retried,
+//   - a log whose tail was cut short or followed by garbage.
+//
+// The recovered race must equal the race as of the crash, or for a cut log a state the race was
+// in no earlier than its last sync. Two more checks reopen a race closed normally: one written by
+// several threads mutating the same runners, which must come back as it was, and one given an ID
+// its codec cannot encode, which must not have changed. Exits with an AssertionError on the first
+// difference.
+//
+// Usage: java DurableRaceCrashCheck [seeds]
+public class DurableRaceCrashCheck {
+    private static final int IDS = 60;
+    private static final String[] CHECKPOINT_STEPS = {"snapshot saved", "snapshot forced", "snapshot renamed",
+            "rename synced", "log created", "log synced"};
+
+    // Stops the work where it is thrown, as a crash would
+    private static class SimulatedCrash extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        SimulatedCrash(String step) {
+            super("Simulated crash at " + step + ".");
+        }
+    }
+
+    // Random mutations, remembering every state the race went through
+    private static class Workload {
+        private final Random random;
+        private final DurableRace race;
+        private final HashMap<Integer, List<Float>> runs = new HashMap<>();
+        final List<String> states = new ArrayList<>();
+
+        Workload(Random random, DurableRace race) {
+            this.random = random;
+            this.race = race;
+            states.add(state(race));
+        }
+
+        // Goes on from another workload's runners, in a race recovered from its directory
+        Workload(Random random, DurableRace race, Workload before) {
+            this(random, race);
+            for (Integer number : before.runs.keySet()) {
+                runs.put(number, new ArrayList<>(before.runs.get(number)));
+            }
+        }
+
+        void mutate(int operations) {
+            while (operations > 0) {
+                int number = random.nextInt(IDS);
+                RunnerIDInt id = new RunnerIDInt(number);
+                List<Float> runnerRuns = runs.get(number);
+                int kind = random.nextInt(10);
+                // The runners are updated first, a mutation whose sync fails is still applied
+                try {
+                    if (runnerRuns == null) {
+                        runs.put(number, new ArrayList<>());
+                        race.addRunner(id);
+                    } else if (kind == 0) {
+                        runs.remove(number);
+                        race.removeRunner(id);
+                    } else if (kind < 7 || runnerRuns.isEmpty()) {
+                        float time = random.nextInt(30) * 0.5f;
+                        runnerRuns.add(time);
+                        race.addRunToRunner(id, time);
+                    } else {
+                        race.removeRunFromRunner(id, runnerRuns.remove(random.nextInt(runnerRuns.size())));
+                    }
+                } finally {
+                    states.add(state(race));
+                }
+                operations--;
+            }
+        }
+
+        String last() {
+            return states.get(states.size() - 1);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int seeds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        for (int seed = 1; seed <= seeds; seed++) {
+            for (String step : CHECKPOINT_STEPS) {
+                checkCheckpointCrash(seed, step);
+            }
+            checkFailedLogSync(seed);
+            checkTornLog(seed, true);
+            checkTornLog(seed, false);
+            checkConcurrentWriters(seed);
+        }
+        checkUnencodableId();
+        System.out.println("DurableRaceCrashCheck OK");
+    }
+
+    private static void checkCheckpointCrash(int seed, String step) throws IOException {
+        Path directory = Files.createTempDirectory("durable-race");
+        DurableRace race = new DurableRace(directory, new Checks.IntCodec(), true);
+        Workload workload = new Workload(new Random(seed), race);
+        workload.mutate(200);
+        race.checkpoint();
+        workload.mutate(200);
+
+        race.setCrashPoint(reached -> {
+            if (reached.equals(step)) {
+                throw new SimulatedCrash(reached);
+            }
+        });
+        try {
+            race.checkpoint();
+            throw new AssertionError("checkpoint did not stop at " + step);
+        } catch (SimulatedCrash expected) {
+            // The crash point fired
+        }
+        String crashed = workload.last();
+        Path copy = copyOf(directory);
+        DurableRace recovered = new DurableRace(copy, new Checks.IntCodec(), true);
+        Checks.check(state(recovered).equals(crashed), "checkpoint stopped at " + step + " recovered a different race");
+
+        // The recovered race works on, across another checkpoint and reopen
+        Workload after = new Workload(new Random(seed + 1000), recovered, workload);
+        after.mutate(100);
+        recovered.checkpoint();
+        after.mutate(100);
+        recovered.close();
+        DurableRace reopened = new DurableRace(copy, new Checks.IntCodec(), true);
+        Checks.check(state(reopened).equals(after.last()), "race recovered from a crash at " + step + " did not reopen");
+        reopened.close();
+
+        // Once the snapshot is renamed the old generation's log is dead, so the race must stop
+        boolean renamed = Arrays.asList(CHECKPOINT_STEPS).indexOf(step) >= 2;
+        race.setCrashPoint(CrashPoint.NONE);
+        try {
+            workload.mutate(1);
+            Checks.check(!renamed, "race kept logging to a dead generation after a crash at " + step);
+        } catch (UncheckedIOException refused) {
+            Checks.check(renamed, "race refused mutations after a crash at " + step + " before the rename");
+        }
+        if (!renamed) {
+            race.close();
+            DurableRace reopenedOriginal = new DurableRace(directory, new Checks.IntCodec(), true);
+            Checks.check(state(reopenedOriginal).equals(workload.last()),
+                    "race went on after a crash at " + step + " but lost work");
+            reopenedOriginal.close();
+        }
+    }
+
+    // The first sync fails after writing its records, the retry must write them once, not twice
+    private static void checkFailedLogSync(int seed) throws IOException {
+        Path directory = Files.createTempDirectory("durable-race");
+        DurableRace race = new DurableRace(directory, new Checks.IntCodec(), true);
+        Workload workload = new Workload(new Random(seed), race);
+        workload.mutate(100);
+
+        boolean[] failed = {false};
+        race.setCrashPoint(step -> {
+            if (step.equals("log written") && !failed[0]) {
+                failed[0] = true;
+                throw new IOException("Simulated failed fsync.");
+            }
+        });
+        try {
+            workload.mutate(1);
+            throw new AssertionError("the failed sync was not reported");
+        } catch (UncheckedIOException expected) {
+            // The mutation is applied but was not acknowledged as durable
+        }
+        workload.mutate(100);
+        race.close();
+
+        DurableRace recovered = new DurableRace(directory, new Checks.IntCodec(), true);
+        Checks.check(state(recovered).equals(workload.last()),
+                "records of a failed and retried sync were not replayed exactly once");
+        recovered.close();
+    }
+
+    // Copies the directory mid-workload and damages the copy's log tail
+    private static void checkTornLog(int seed, boolean cut) throws IOException {
+        Random random = new Random(seed);
+        Path directory = Files.createTempDirectory("durable-race");
+        DurableRace race = new DurableRace(directory, new Checks.IntCodec(), false);
+        Workload workload = new Workload(random, race);
+        workload.mutate(300);
+        race.checkpoint();
+        workload.mutate(300);
+        race.sync();
+        int synced = workload.states.size() - 1;
+        workload.mutate(50);
+
+        Path copy = copyOf(directory);
+        Path log = null;
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(copy, "log-*")) {
+            for (Path file : logs) {
+                log = file;
+            }
+        }
+        Checks.check(log != null, "no log to damage");
+        byte[] bytes = Files.readAllBytes(log);
+        if (cut) {
+            Files.write(log, Arrays.copyOf(bytes, random.nextInt(bytes.length + 1)));
+        } else {
+            Files.write(log, new byte[] {0, 0, 0, 9, 1, 2, 3}, StandardOpenOption.APPEND);
+        }
+
+        DurableRace recovered = new DurableRace(copy, new Checks.IntCodec(), false);
+        int at = workload.states.lastIndexOf(state(recovered));
+        Checks.check(at >= 0, "recovered a race that never existed");
+        Checks.check(cut || at >= synced, "lost synced mutations to garbage after the log");
+        recovered.close();
+        race.close();
+    }
+
+    // Threads race on the same runners, so only the live race knows the result. Replaying the log
+    // must give the same race, which it only does if each runner's records are in apply order.
+    private static void checkConcurrentWriters(int seed) throws IOException {
+        Path directory = Files.createTempDirectory("durable-race");
+        DurableRace race = new DurableRace(directory, new Checks.IntCodec(), false);
+        Thread[] writers = new Thread[4];
+        ArrayList<Throwable> failures = new ArrayList<>();
+        for (int t = 0; t < writers.length; t++) {
+            Random random = new Random(seed * writers.length + t);
+            writers[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 3000; i++) {
+                        mutateShared(race, random);
+                    }
+                } catch (Throwable failure) {
+                    synchronized (failures) {
+                        failures.add(failure);
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        try {
+            race.checkpoint();
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        } catch (InterruptedException e) {
+            throw new AssertionError("interrupted while waiting for the writers", e);
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError("a writer failed", failures.get(0));
+        }
+        String live = state(race);
+        race.close();
+        DurableRace reopened = new DurableRace(directory, new Checks.IntCodec(), false);
+        Checks.check(state(reopened).equals(live), "the log of concurrent writers replayed to a different race");
+        reopened.close();
+    }
+
+    // A random mutation that may well fail because another thread got there first
+    private static void mutateShared(DurableRace race, Random random) {
+        RunnerIDInt id = new RunnerIDInt(random.nextInt(IDS));
+        float time = random.nextInt(8) * 0.5f;
+        try {
+            switch (random.nextInt(6)) {
+                case 0:
+                    race.addRunner(id);
+                    break;
+                case 1:
+                    race.removeRunner(id);
+                    break;
+                case 2:
+                case 3:
+                    race.addRunToRunner(id, time);
+                    break;
+                default:
+                    race.removeRunFromRunner(id, time);
+            }
+        } catch (IllegalArgumentException refused) {
+            // Missing runner or run, or the runner exists already
+        }
+    }
+
+    // A codec that refuses an ID must leave the race and its log as they were
+    private static void checkUnencodableId() throws IOException {
+        RunnerIDCodec codec = new Checks.IntCodec() {
+            @Override
+            public byte[] encode(RunnerID id) {
+                if (id.toString().equals("13")) {
+                    throw new IllegalArgumentException("Runner 13 cannot be encoded.");
+                }
+                return super.encode(id);
+            }
+        };
+        Path directory = Files.createTempDirectory("durable-race");
+        DurableRace race = new DurableRace(directory, codec, true);
+        race.addRunner(new RunnerIDInt(12));
+        race.addRunToRunner(new RunnerIDInt(12), 9.5f);
+        String before = state(race);
+        try {
+            race.addRunner(new RunnerIDInt(13));
+            throw new AssertionError("the codec's failure was not reported");
+        } catch (IllegalArgumentException expected) {
+            // The codec refused the ID
+        }
+        Checks.check(state(race).equals(before), "a runner the codec refused was added to the race");
+        race.close();
+        DurableRace reopened = new DurableRace(directory, codec, true);
+        Checks.check(state(reopened).equals(before), "a runner the codec refused changed the recovered race");
+        reopened.close();
+    }
+
+    private static Path copyOf(Path directory) throws IOException {
+        Path copy = Files.createTempDirectory("durable-race-crash");
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.copy(file, copy.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        return copy;
+    }
+
+    private static String state(DurableRace race) {
+        StringBuilder state = new StringBuilder();
+        for (int number = 0; number < IDS; number++) {
+            RunnerIDInt id = new RunnerIDInt(number);
+            try {
+                state.append(number).append(':').append(race.getAvgRun(id)).append(',').append(race.getMinRun(id))
+                        .append(',').append(race.getRankAvg(id)).append(',').append(race.getRankMin(id)).append(';');
+            } catch (IllegalArgumentException missing) {
+                // Not in the race
+            }
+        }
+        return state.toString();
+    }
+}
@@ -1,18 +1,47 @@
 public class FloatNode {
     RunnerID id;
-    FloatNode left, middle, right;
+    FloatNode left, right;
+    FloatNode parent; // Only maintained by the score trees
     float avgRunTime;
     float minRunTime;
-    float time;
+    int size; // Number of nodes in the subtree rooted here
+    int height; // Height of the subtree rooted here
+    long version; // Epoch of the last write, see SnapshotClock
+    FloatNode prior; // The fields as they were before that write, kept for open snapshots
 
     FloatNode(RunnerID id) {
         this.id = id;
         this.left = null;
-        this.middle = null;
         this.right = null;
+        this.parent = null;
         this.avgRunTime = Float.MAX_VALUE;
         this.minRunTime = Float.MAX_VALUE;
-        this.time = 0;
+        this.size = 1;
+        this.height = 1;
+        this.version = 0;
+        this.prior = null;
 
     }
+
+    FloatNode copy() {
+        FloatNode copy = new FloatNode(id);
+        copy.left = left;
+        copy.right = right;
+        copy.parent = parent;
+        copy.avgRunTime = avgRunTime;
+        copy.minRunTime = minRunTime;
+        copy.size = size;
+        copy.height = height;
+        copy.version = version;
+        copy.prior = prior;
+        return copy;
+    }
+
+    // This node as it was at the given snapshot version
+    static FloatNode at(FloatNode node, long version) {
+        while (node != null && node.version > version) {
+            node = node.prior;
+        }
+        return node;
+    }
 }
\ No newline at end of file
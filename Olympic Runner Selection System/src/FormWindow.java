@@ -0,0 +1,33 @@
+// Which of a runner's runs make up its form, see Race.setFormWindow. The window holds the runner's
+// last maxRuns runs, and of those only the runs less than maxAge older than the race's current
+// time. 0 leaves either limit off. With halfLife 0 the form average is the plain mean of the
+// window. With a halfLife above 0 each run in the window counts half as much for every halfLife it
+// is older than the runner's newest run. Ages and half lives are in the units of the timestamps
+// passed to the race.
+public class FormWindow {
+    public final int maxRuns;
+    public final long maxAge;
+    public final long halfLife;
+
+    public FormWindow(int maxRuns, long maxAge, long halfLife) {
+        if (maxRuns < 0 || maxAge < 0 || halfLife < 0) {
+            throw new IllegalArgumentException("Form window limits cannot be negative.");
+        }
+        this.maxRuns = maxRuns;
+        this.maxAge = maxAge;
+        this.halfLife = halfLife;
+    }
+
+    public static FormWindow lastRuns(int maxRuns) {
+        return new FormWindow(maxRuns, 0, 0);
+    }
+
+    public static FormWindow lastPeriod(long maxAge) {
+        return new FormWindow(0, maxAge, 0);
+    }
+
+    @Override
+    public String toString() {
+        return "maxRuns=" + maxRuns + " maxAge=" + maxAge + " halfLife=" + halfLife;
+    }
+}
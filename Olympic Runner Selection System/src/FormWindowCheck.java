@@ -0,0 +1,61 @@
+// Removes runs whose time the runner has more than once and checks that the oldest of them goes,
+// as seen in what is left of the runner's form window. Exits with an AssertionError on the first
+// difference.
+//
+// Usage: java FormWindowCheck
+public class FormWindowCheck {
+    private static final RunnerIDInt RUNNER = new RunnerIDInt(1);
+
+    public static void main(String[] args) {
+        checkOldestExpiresFirst();
+        checkOldestOutsideWindow();
+        checkOldestWeighsLeast();
+        System.out.println("FormWindowCheck OK");
+    }
+
+    // The 5 at 10 must stay: had the one at 0 stayed instead it would expire at 25 with the 3
+    private static void checkOldestExpiresFirst() {
+        Race race = newRace(FormWindow.lastPeriod(20));
+        race.addRunToRunner(RUNNER, 5, 0);
+        race.addRunToRunner(RUNNER, 3, 5);
+        race.addRunToRunner(RUNNER, 5, 10);
+        race.removeRunFromRunner(RUNNER, 5);
+        Checks.check(race.getWindowedMin(RUNNER) == 3, "the 3 left the form window");
+        race.advanceTime(25);
+        Checks.check(race.getWindowedMin(RUNNER) == 5, "the newer 5 was removed instead of the older one");
+        Checks.check(race.getWindowedAvg(RUNNER) == 5, "the form average is not the newer 5 alone");
+    }
+
+    // The older 5 already left a window of two runs, so removing a 5 leaves the window alone
+    private static void checkOldestOutsideWindow() {
+        Race race = newRace(FormWindow.lastRuns(2));
+        race.addRunToRunner(RUNNER, 5);
+        race.addRunToRunner(RUNNER, 5);
+        race.addRunToRunner(RUNNER, 3);
+        race.removeRunFromRunner(RUNNER, 5);
+        Checks.check(race.getWindowedAvg(RUNNER) == 4, "the 5 still in the form window was removed");
+        Checks.check(race.getMinRun(RUNNER) == 3 && race.getAvgRun(RUNNER) == 4, "the runs outside the window are wrong");
+        race.removeRunFromRunner(RUNNER, 5);
+        Checks.check(race.getWindowedAvg(RUNNER) == 3, "the last 5 did not leave the form window");
+    }
+
+    // With a half life of 10 the 4 at 0 weighs half as much as the runs at 10. Removing it leaves
+    // an average of 6, removing the 4 at 10 instead would leave (4 * 0.5 + 8) / 1.5
+    private static void checkOldestWeighsLeast() {
+        Race race = newRace(new FormWindow(0, 0, 10));
+        race.addRunToRunner(RUNNER, 4, 0);
+        race.addRunToRunner(RUNNER, 4, 10);
+        race.addRunToRunner(RUNNER, 8, 10);
+        race.removeRunFromRunner(RUNNER, 4);
+        Checks.check(race.getWindowedAvg(RUNNER) == 6, "the form average " + race.getWindowedAvg(RUNNER)
+                + " does not weigh the newer 4 as much as the 8");
+    }
+
+    private static Race newRace(FormWindow window) {
+        Race race = new Race();
+        race.init();
+        race.setFormWindow(window);
+        race.addRunner(RUNNER);
+        return race;
+    }
+}
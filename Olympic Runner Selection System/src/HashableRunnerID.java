@@ -0,0 +1,7 @@
+// Implemented by RunnerID subclasses whose equals and hashCode agree with isSmaller,
+// meaning two IDs are equal exactly when neither one is smaller than the other.
+// Race keeps such runners in a hash index, other IDs are found through the ordered ID tree.
+public interface HashableRunnerID {
+    boolean equals(Object other);
+    int hashCode();
+}
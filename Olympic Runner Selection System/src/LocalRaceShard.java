@@ -0,0 +1,101 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+// A RaceShard backed by a Race in this JVM. Every call runs on the shard's own thread, in the order
+// the calls were made, so the Race is only ever used by one thread while the shards of a
+// ShardedRace work in parallel.
+public class LocalRaceShard implements RaceShard {
+    private final Race race;
+    private final ExecutorService executor;
+
+    // index only names the shard's thread, race-shard-<index>
+    public LocalRaceShard(int index) {
+        this.race = new Race();
+        this.executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "race-shard-" + index);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> init() {
+        return run(race::init);
+    }
+
+    @Override
+    public CompletableFuture<Void> addRunner(RunnerID id) {
+        return run(() -> race.addRunner(id));
+    }
+
+    @Override
+    public CompletableFuture<Void> removeRunner(RunnerID id) {
+        return run(() -> race.removeRunner(id));
+    }
+
+    @Override
+    public CompletableFuture<Void> addRunToRunner(RunnerID id, float time) {
+        return run(() -> race.addRunToRunner(id, time));
+    }
+
+    @Override
+    public CompletableFuture<Void> removeRunFromRunner(RunnerID id, float time) {
+        return run(() -> race.removeRunFromRunner(id, time));
+    }
+
+    @Override
+    public CompletableFuture<Void> addRunsBulk(RunnerID[] ids, float[] times) {
+        return run(() -> race.addRunsBulk(ids, times));
+    }
+
+    @Override
+    public CompletableFuture<Void> removeRunsBulk(RunnerID[] ids, float[] times) {
+        return run(() -> race.removeRunsBulk(ids, times));
+    }
+
+    @Override
+    public CompletableFuture<Float> getMinRun(RunnerID id) {
+        return call(() -> race.getMinRun(id));
+    }
+
+    @Override
+    public CompletableFuture<Float> getAvgRun(RunnerID id) {
+        return call(() -> race.getAvgRun(id));
+    }
+
+    @Override
+    public CompletableFuture<Integer> countBeforeAvg(float avg, RunnerID id) {
+        return call(() -> race.countBeforeAvg(avg, id));
+    }
+
+    @Override
+    public CompletableFuture<Integer> countBeforeMin(float min, RunnerID id) {
+        return call(() -> race.countBeforeMin(min, id));
+    }
+
+    @Override
+    public CompletableFuture<RunResult> fastestByAvg() {
+        return call(race::getFastestResultAvg);
+    }
+
+    @Override
+    public CompletableFuture<RunResult> fastestByMin() {
+        return call(race::getFastestResultMin);
+    }
+
+    // Calls already made still run, later ones are rejected
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private CompletableFuture<Void> run(Runnable operation) {
+        return CompletableFuture.runAsync(operation, executor);
+    }
+
+    private <T> CompletableFuture<T> call(Supplier<T> operation) {
+        return CompletableFuture.supplyAsync(operation, executor);
+    }
+}
@@ -1,22 +1,3 @@
-class RunnerIDInt extends RunnerID{
-    private int id;
-    public RunnerIDInt(int id){
-        super();
-        this.id = id;
-    }
-    @Override
-    public boolean isSmaller(RunnerID other) {
-        return this.id < ((RunnerIDInt)other).id;
-    }
-
-    @Override
-    public String toString() {
-        return String.valueOf(this.id);
-    }
-
-}
-
-
 public class Main {
     public static void main(String[] args) {
         // The ids which we will check will not necessarily be RunnerIDInt
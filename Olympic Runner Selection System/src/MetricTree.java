@@ -0,0 +1,39 @@
+// Score tree for a ScoreIndex. Its nodes keep the score of whatever metric the index ranks by.
+// The tree has a clock of its own, snapshots never read it.
+public class MetricTree extends ScoreTree {
+
+    public MetricTree(){
+        super();
+    }
+
+    public FloatNode addRunner(RunnerID id, float score) {
+        FloatNode newNode = createNode(id);
+        setKey(newNode, score);
+        insert(newNode);
+        return newNode;
+    }
+
+    @Override
+    protected FloatNode allocate(RunnerID id) {
+        return new MetricNode(id);
+    }
+
+    @Override
+    protected float key(FloatNode node) {
+        return ((MetricNode) node).score;
+    }
+
+    @Override
+    protected void setKey(FloatNode node, float score) {
+        ((MetricNode) node).score = score;
+    }
+
+    private static class MetricNode extends FloatNode {
+        float score;
+
+        MetricNode(RunnerID id) {
+            super(id);
+            this.score = Float.MAX_VALUE;
+        }
+    }
+}
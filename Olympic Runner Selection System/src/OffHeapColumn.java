@@ -0,0 +1,74 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Fixed size records in one direct buffer, one record per int slot. The buffer doubles as slots
+// are handed out, with the size computed in long so it can never wrap around. A ByteBuffer is
+// indexed by int, so a column holds at most MAX_BYTES / recordBytes slots, about 107 million
+// records of 20 bytes, and asking for more fails with a clear message instead of corrupting
+// memory. Splitting the records over several buffers would lift that limit, but the extra lookup
+// made every access about half as slow again, so a single buffer is kept.
+class OffHeapColumn {
+    private static final int INITIAL_SLOTS = 16;
+    private static final long MAX_BYTES = Integer.MAX_VALUE;
+
+    private final int recordBytes;
+    private final int maxSlots;
+    private ByteBuffer buffer;
+    private int capacity; // Number of slots the buffer has room for
+
+    OffHeapColumn(int recordBytes) {
+        this.recordBytes = recordBytes;
+        this.maxSlots = (int) (MAX_BYTES / recordBytes);
+        this.capacity = INITIAL_SLOTS;
+        this.buffer = ByteBuffer.allocateDirect(capacity * recordBytes).order(ByteOrder.nativeOrder());
+    }
+
+    int maxSlots() {
+        return maxSlots;
+    }
+
+    // Doubles the buffer until slot fits, copying the records already there
+    void ensureCapacity(int slot) {
+        if (slot < capacity) {
+            return;
+        }
+        if (slot < 0 || slot >= maxSlots) {
+            throw new IllegalArgumentException("Off-heap storage is full, one column holds at most " + maxSlots
+                    + " records of " + recordBytes + " bytes.");
+        }
+        long newCapacity = capacity;
+        while (newCapacity <= slot) {
+            newCapacity *= 2;
+        }
+        newCapacity = Math.min(newCapacity, maxSlots);
+        ByteBuffer bigger = ByteBuffer.allocateDirect((int) (newCapacity * recordBytes)).order(ByteOrder.nativeOrder());
+        buffer.clear();
+        bigger.put(buffer);
+        buffer = bigger;
+        capacity = (int) newCapacity;
+    }
+
+    int getInt(int slot, int offset) {
+        return buffer.getInt(slot * recordBytes + offset);
+    }
+
+    void putInt(int slot, int offset, int value) {
+        buffer.putInt(slot * recordBytes + offset, value);
+    }
+
+    float getFloat(int slot, int offset) {
+        return buffer.getFloat(slot * recordBytes + offset);
+    }
+
+    void putFloat(int slot, int offset, float value) {
+        buffer.putFloat(slot * recordBytes + offset, value);
+    }
+
+    double getDouble(int slot, int offset) {
+        return buffer.getDouble(slot * recordBytes + offset);
+    }
+
+    void putDouble(int slot, int offset, double value) {
+        buffer.putDouble(slot * recordBytes + offset, value);
+    }
+}
@@ -0,0 +1,630 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Race with its data kept off the Java heap. Every runner gets a dense slot number, and its sum,
+// minimum, average and run count live in direct buffer columns at that slot. The ID, average and
+// minimum trees are OffHeapTrees over the same slots. All runs of all runners share one more
+// OffHeapTree, ordered by (runner slot, time), so a runner's runs are a contiguous range of it and
+// the first of them is its fastest. Only the RunnerID objects themselves stay on the heap. Each
+// column and tree is one OffHeapColumn of at most 2 GB, which caps the race at about 107 million
+// runners and 107 million runs; adding past that fails before the race is changed.
+//
+// Ported from Race: the core API, addRunsBulk/removeRunsBulk (arrays only) and the topK and page
+// leaderboards. Not ported, so Race only: snapshots, listeners, metrics, save/load, form windows,
+// score indexes, the run time index, per-runner median/percentile runs and the score range queries.
+public class OffHeapRace {
+    private static final int NIL = OffHeapTree.NIL;
+    private static final int INITIAL_SLOTS = 16;
+
+    // Runner columns, three 4-byte fields per runner slot
+    private static final int MIN = 0;
+    private static final int AVG = 1;
+    private static final int COUNT = 2; // On a free slot, the next free slot instead
+    private static final int RUNNER_FIELDS = 3;
+
+    // Runner sum columns, two 8-byte fields per runner slot, see addToSum
+    private static final int SUM = 0;
+    private static final int COMPENSATION = 1;
+    private static final int SUM_FIELDS = 2;
+
+    // Run columns, two 4-byte fields per run slot
+    private static final int RUNNER = 0; // On a free slot, the next free slot instead
+    private static final int TIME = 1;
+    private static final int RUN_FIELDS = 2;
+
+    private boolean initialized = false;
+    private RunnerID[] ids; // ids[slot] is the runner in that slot, null when the slot is free
+    private OffHeapColumn runners;
+    private OffHeapColumn sums;
+    private OffHeapColumn runs;
+    private int runnerSlots; // Number of runner slots handed out so far
+    private int runSlots; // Number of run slots handed out so far
+    private int freeRunner; // Head of the list of free runner slots
+    private int freeRun; // Head of the list of free run slots
+    private int maxRunnerSlots; // What the smallest runner column or tree has room for
+    private int maxRunSlots;
+    private HashMap<RunnerID, Integer> index; // Runners whose ID implements HashableRunnerID
+    private OffHeapTree idTree;
+    private OffHeapTree avgTree;
+    private OffHeapTree minTree;
+    private OffHeapTree runTree;
+
+    public OffHeapRace(){
+        this.ids = null;
+        this.runners = null;
+        this.sums = null;
+        this.runs = null;
+        this.index = null;
+    }
+
+    public void init() {
+        // Initialize the race
+        this.ids = new RunnerID[INITIAL_SLOTS];
+        this.runners = new OffHeapColumn(RUNNER_FIELDS * 4);
+        this.sums = new OffHeapColumn(SUM_FIELDS * 8);
+        this.runs = new OffHeapColumn(RUN_FIELDS * 4);
+        this.runnerSlots = 0;
+        this.runSlots = 0;
+        this.freeRunner = NIL;
+        this.freeRun = NIL;
+        this.index = new HashMap<>();
+        this.idTree = new OffHeapTree() {
+            @Override
+            protected int compare(int first, int second) {
+                return compareIds(ids[first], ids[second]);
+            }
+        };
+        this.avgTree = new OffHeapTree() {
+            @Override
+            protected int compare(int first, int second) {
+                return compareScores(AVG, first, second);
+            }
+        };
+        this.minTree = new OffHeapTree() {
+            @Override
+            protected int compare(int first, int second) {
+                return compareScores(MIN, first, second);
+            }
+        };
+        this.runTree = new OffHeapTree() {
+            @Override
+            protected int compare(int first, int second) {
+                return compareRuns(runnerOf(first), timeOf(first), second);
+            }
+        };
+        this.maxRunnerSlots = Math.min(Math.min(runners.maxSlots(), sums.maxSlots()), idTree.maxSlots());
+        this.maxRunSlots = Math.min(runs.maxSlots(), runTree.maxSlots());
+        initialized = true;
+    }
+
+    public void addRunner(RunnerID id) {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        // Check if the runner already exists
+        if (findSlot(id) != NIL) {
+            throw new IllegalArgumentException("Runner with ID " + id.toString() + " already exists.");
+        }
+
+        int slot = allocateRunner();
+        ids[slot] = id;
+        setSum(slot, SUM, 0.0);
+        setSum(slot, COMPENSATION, 0.0);
+        setFloat(runners, slot, MIN, Float.MAX_VALUE);
+        setFloat(runners, slot, AVG, Float.MAX_VALUE);
+        setInt(runners, slot, COUNT, 0);
+
+        idTree.insert(slot);
+        if (id instanceof HashableRunnerID) {
+            index.put(id, slot);
+        }
+        avgTree.insert(slot);
+        minTree.insert(slot);
+    }
+
+    public void removeRunner(RunnerID id) {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        int slot = findSlot(id);
+        if (slot == NIL) {
+            throw new IllegalArgumentException("Runner with ID " + id.toString() + " does not exist.");
+        }
+
+        // The runner's runs are next to each other in the run tree, starting at its fastest
+        int run = firstRun(slot);
+        while (run != NIL && runnerOf(run) == slot) {
+            int next = runTree.successor(run);
+            runTree.unlink(run);
+            freeRun(run);
+            run = next;
+        }
+
+        avgTree.unlink(slot);
+        minTree.unlink(slot);
+        idTree.unlink(slot);
+        if (id instanceof HashableRunnerID) {
+            index.remove(id);
+        }
+        ids[slot] = null;
+        setInt(runners, slot, COUNT, freeRunner);
+        freeRunner = slot;
+    }
+
+    public void addRunToRunner(RunnerID id, float time) {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        int slot = findSlot(id);
+
+        // Check if the time is negative
+        if (time < 0) {
+            throw new IllegalArgumentException("Negative running time is not allowed.");
+        }
+        // NaN and infinite times would break the order of the run tree and the score trees
+        if (!Float.isFinite(time)) {
+            throw new IllegalArgumentException("Running time " + time + " is not a finite number.");
+        }
+
+        if (slot == NIL) {
+            throw new IllegalArgumentException("Runner with ID " + id.toString() + " does not exist.");
+        }
+
+        recordRun(slot, time);
+        updateScores(slot);
+    }
+
+    public void removeRunFromRunner(RunnerID id, float time) {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        int slot = findSlot(id);
+
+        // NaN and infinite times would break the order of the run tree and the score trees
+        if (!Float.isFinite(time)) {
+            throw new IllegalArgumentException("Running time " + time + " is not a finite number.");
+        }
+
+        if (slot == NIL) {
+            throw new IllegalArgumentException("Runner with ID " + id.toString() + " does not exist.");
+        }
+
+        eraseRun(slot, id, time);
+        updateScores(slot);
+    }
+
+    // Adds times[i] to runner ids[i] for every i, moving each runner in the average and minimum
+    // trees once for the whole batch. The whole batch is validated first, as in Race.addRunsBulk.
+    public void addRunsBulk(RunnerID[] ids, float[] times) {
+        int[] slots = bulkSlots(ids, times, true);
+        // Every live run holds a slot, so this many more fit whether or not they reuse freed ones
+        if (ids.length > maxRunSlots - runTree.size()) {
+            throw new IllegalArgumentException("The race is full, it holds at most " + maxRunSlots + " runs.");
+        }
+        for (int i = 0; i < ids.length; i++) {
+            recordRun(slots[i], times[i]);
+        }
+        updateScores(slots);
+    }
+
+    // Removes times[i] from runner ids[i] for every i. If a run is missing the runs before it stay
+    // removed and the exception is rethrown, as in Race.removeRunsBulk.
+    public void removeRunsBulk(RunnerID[] ids, float[] times) {
+        int[] slots = bulkSlots(ids, times, false);
+        int done = 0;
+        try {
+            for (; done < ids.length; done++) {
+                eraseRun(slots[done], ids[done], times[done]);
+            }
+        } finally {
+            updateScores(Arrays.copyOf(slots, done));
+        }
+    }
+
+    // The slot of every runner of a batch, failing on the first entry that does not exist, has a
+    // time that is not finite or, when adding, a negative time
+    private int[] bulkSlots(RunnerID[] ids, float[] times, boolean adding) {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        if (ids.length != times.length) {
+            throw new IllegalArgumentException("Got " + ids.length + " runner IDs but " + times.length + " run times.");
+        }
+        int[] slots = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            if (adding && times[i] < 0) {
+                throw new IllegalArgumentException("Negative running time is not allowed.");
+            }
+            if (!Float.isFinite(times[i])) {
+                throw new IllegalArgumentException("Running time " + times[i] + " is not a finite number.");
+            }
+            slots[i] = findSlot(ids[i]);
+            if (slots[i] == NIL) {
+                throw new IllegalArgumentException("Runner with ID " + ids[i].toString() + " does not exist.");
+            }
+        }
+        return slots;
+    }
+
+    // Adds a run to the runner's columns and the run tree, the caller moves the runner afterwards
+    private void recordRun(int slot, float time) {
+        int run = allocateRun();
+        setInt(runs, run, RUNNER, slot);
+        setFloat(runs, run, TIME, time);
+        runTree.insert(run);
+
+        int count = getInt(runners, slot, COUNT) + 1;
+        setInt(runners, slot, COUNT, count);
+        addToSum(slot, time);
+        if (time < getFloat(runners, slot, MIN)) {
+            setFloat(runners, slot, MIN, time);
+        }
+        setFloat(runners, slot, AVG, average(slot, count));
+    }
+
+    private void eraseRun(int slot, RunnerID id, float time) {
+        int run = findRun(slot, time);
+        if (run == NIL) {
+            throw new IllegalArgumentException("Run time " + time + " not found for runner with ID " + id.toString());
+        }
+        runTree.unlink(run);
+        freeRun(run);
+
+        int count = getInt(runners, slot, COUNT) - 1;
+        setInt(runners, slot, COUNT, count);
+        if (count == 0) {
+            // Start the next run from an exact zero instead of whatever error is left
+            setSum(slot, SUM, 0.0);
+            setSum(slot, COMPENSATION, 0.0);
+        } else {
+            addToSum(slot, -time);
+        }
+        if (time == getFloat(runners, slot, MIN)) {
+            int fastest = firstRun(slot);
+            boolean hasRuns = fastest != NIL && runnerOf(fastest) == slot;
+            setFloat(runners, slot, MIN, hasRuns ? timeOf(fastest) : Float.MAX_VALUE);
+        }
+        // A runner without runs is kept last in the average order, NaN would break it
+        setFloat(runners, slot, AVG, count == 0 ? Float.MAX_VALUE : average(slot, count));
+    }
+
+    private void updateScores(int slot) {
+        avgTree.reposition(slot);
+        minTree.reposition(slot);
+    }
+
+    // Moves every runner of a batch once, however many of its runs the batch had. They are all
+    // unlinked before any is inserted again, so no insert compares against a stale score.
+    private void updateScores(int[] slots) {
+        int[] distinct = slots.clone();
+        Arrays.sort(distinct);
+        int count = 0;
+        for (int i = 0; i < distinct.length; i++) {
+            if (i == 0 || distinct[i] != distinct[i - 1]) {
+                distinct[count++] = distinct[i];
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            avgTree.unlink(distinct[i]);
+            minTree.unlink(distinct[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            avgTree.insert(distinct[i]);
+            minTree.insert(distinct[i]);
+        }
+    }
+
+    public RunnerID getFastestRunnerAvg() {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        int fastest = avgTree.first();
+        if (fastest == NIL) {
+            throw new IllegalArgumentException("No runners in the race.");
+        }
+        return ids[fastest];
+    }
+
+    public RunnerID getFastestRunnerMin() {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        int fastest = minTree.first();
+        if (fastest == NIL) {
+            throw new IllegalArgumentException("No runners in the race.");
+        }
+        return ids[fastest];
+    }
+
+    public float getMinRun(RunnerID id) {
+        int slot = existingSlot(id);
+        if (getInt(runners, slot, COUNT) == 0) {
+            return Float.MAX_VALUE;
+        }
+        return getFloat(runners, slot, MIN);
+    }
+
+    public float getAvgRun(RunnerID id) {
+        int slot = existingSlot(id);
+        if (getInt(runners, slot, COUNT) == 0) {
+            return Float.MAX_VALUE;
+        }
+        return getFloat(runners, slot, AVG);
+    }
+
+    public int getRankAvg(RunnerID id) {
+        return avgTree.rank(existingSlot(id)) + 1;
+    }
+
+    public int getRankMin(RunnerID id) {
+        return minTree.rank(existingSlot(id)) + 1;
+    }
+
+    public RunnerID selectByRankAvg(int rank) {
+        return selectByRank(avgTree, rank);
+    }
+
+    public RunnerID selectByRankMin(int rank) {
+        return selectByRank(minTree, rank);
+    }
+
+    // The leaderboard queries walk a tree from a slot by successor, reading k runners in
+    // O(log n + k). The race must not be changed while a result is being iterated.
+
+    public Iterable<RunnerID> topKByAvg(int k) {
+        return leaderboard(avgTree, 0, k);
+    }
+
+    public Iterable<RunnerID> topKByMin(int k) {
+        return leaderboard(minTree, 0, k);
+    }
+
+    // Runners ranked offset + 1 to offset + limit by average
+    public Iterable<RunnerID> pageByAvg(int offset, int limit) {
+        return leaderboard(avgTree, offset, limit);
+    }
+
+    // Runners ranked offset + 1 to offset + limit by minimum
+    public Iterable<RunnerID> pageByMin(int offset, int limit) {
+        return leaderboard(minTree, offset, limit);
+    }
+
+    private Iterable<RunnerID> leaderboard(OffHeapTree tree, int offset, int limit) {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        checkCount(offset);
+        checkCount(limit);
+        return () -> new Iterator<RunnerID>() {
+            private int next = offset == 0 ? tree.first() : tree.select(offset);
+            private int remaining = limit;
+
+            @Override
+            public boolean hasNext() {
+                return next != NIL && remaining > 0;
+            }
+
+            @Override
+            public RunnerID next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int slot = next;
+                next = tree.successor(slot);
+                remaining--;
+                return ids[slot];
+            }
+        };
+    }
+
+    private RunnerID selectByRank(OffHeapTree tree, int rank) {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        int slot = tree.select(rank - 1);
+        if (slot == NIL) {
+            throw new IllegalArgumentException("Rank " + rank + " is out of range.");
+        }
+        return ids[slot];
+    }
+
+    private static void checkCount(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Negative count " + count + " is not allowed.");
+        }
+    }
+
+    private int existingSlot(RunnerID id) {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        int slot = findSlot(id);
+        if (slot == NIL) {
+            throw new IllegalArgumentException("Runner with ID " + id.toString() + " does not exist.");
+        }
+        return slot;
+    }
+
+    private int findSlot(RunnerID id) {
+        // IDs with a hash consistent with isSmaller are found in O(1) expected time
+        if (id instanceof HashableRunnerID) {
+            Integer slot = index.get(id);
+            return slot == null ? NIL : slot;
+        }
+        int node = idTree.root();
+        while (node != NIL) {
+            int comparison = compareIds(id, ids[node]);
+            if (comparison < 0) {
+                node = idTree.left(node);
+            } else if (comparison > 0) {
+                node = idTree.right(node);
+            } else {
+                return node;
+            }
+        }
+        return NIL;
+    }
+
+    // A run of the runner with the given time, or NIL if it has none
+    private int findRun(int runner, float time) {
+        int node = runTree.root();
+        while (node != NIL) {
+            int comparison = compareRuns(runner, time, node);
+            if (comparison < 0) {
+                node = runTree.left(node);
+            } else if (comparison > 0) {
+                node = runTree.right(node);
+            } else {
+                return node;
+            }
+        }
+        return NIL;
+    }
+
+    // The first run ordered at or after the runner's fastest possible run, which belongs to the
+    // runner only if it has runs
+    private int firstRun(int runner) {
+        int candidate = NIL;
+        int node = runTree.root();
+        while (node != NIL) {
+            if (runner <= runnerOf(node)) {
+                candidate = node;
+                node = runTree.left(node);
+            } else {
+                node = runTree.right(node);
+            }
+        }
+        return candidate;
+    }
+
+    private static int compareIds(RunnerID first, RunnerID second) {
+        if (first.isSmaller(second)) {
+            return -1;
+        } else if (second.isSmaller(first)) {
+            return 1;
+        }
+        return 0;
+    }
+
+    // Runners are ordered by score first and by RunnerID.isSmaller when the scores are equal
+    private int compareScores(int field, int first, int second) {
+        float firstScore = getFloat(runners, first, field);
+        float secondScore = getFloat(runners, second, field);
+        if (firstScore < secondScore) {
+            return -1;
+        } else if (firstScore > secondScore) {
+            return 1;
+        }
+        return compareIds(ids[first], ids[second]);
+    }
+
+    private int compareRuns(int runner, float time, int run) {
+        int otherRunner = runnerOf(run);
+        if (runner != otherRunner) {
+            return runner < otherRunner ? -1 : 1;
+        }
+        float otherTime = timeOf(run);
+        if (time < otherTime) {
+            return -1;
+        } else if (time > otherTime) {
+            return 1;
+        }
+        return 0;
+    }
+
+    // Neumaier summation into the slot's sum and compensation columns, as in Race.addToSum
+    private void addToSum(int slot, double time) {
+        double oldSum = getSum(slot, SUM);
+        double sum = oldSum + time;
+        double error = Math.abs(oldSum) >= Math.abs(time) ? (oldSum - sum) + time : (time - sum) + oldSum;
+        setSum(slot, SUM, sum);
+        setSum(slot, COMPENSATION, getSum(slot, COMPENSATION) + error);
+    }
+
+    private float average(int slot, int count) {
+        return (float) ((getSum(slot, SUM) + getSum(slot, COMPENSATION)) / count);
+    }
+
+    private int runnerOf(int run) {
+        return getInt(runs, run, RUNNER);
+    }
+
+    private float timeOf(int run) {
+        return getFloat(runs, run, TIME);
+    }
+
+    private int allocateRunner() {
+        if (freeRunner != NIL) {
+            int slot = freeRunner;
+            freeRunner = getInt(runners, slot, COUNT);
+            return slot;
+        }
+        // Checked before anything is written, so a full race is left as it was
+        if (runnerSlots == maxRunnerSlots) {
+            throw new IllegalArgumentException("The race is full, it holds at most " + maxRunnerSlots + " runners.");
+        }
+        if (runnerSlots == ids.length) {
+            RunnerID[] bigger = new RunnerID[(int) Math.min((long) ids.length * 2, maxRunnerSlots)];
+            System.arraycopy(ids, 0, bigger, 0, ids.length);
+            ids = bigger;
+        }
+        runners.ensureCapacity(runnerSlots);
+        sums.ensureCapacity(runnerSlots);
+        return runnerSlots++;
+    }
+
+    private int allocateRun() {
+        if (freeRun != NIL) {
+            int run = freeRun;
+            freeRun = runnerOf(run);
+            return run;
+        }
+        if (runSlots == maxRunSlots) {
+            throw new IllegalArgumentException("The race is full, it holds at most " + maxRunSlots + " runs.");
+        }
+        runs.ensureCapacity(runSlots);
+        return runSlots++;
+    }
+
+    private void freeRun(int run) {
+        setInt(runs, run, RUNNER, freeRun);
+        freeRun = run;
+    }
+
+    private double getSum(int slot, int field) {
+        return sums.getDouble(slot, field * 8);
+    }
+
+    private void setSum(int slot, int field, double value) {
+        sums.putDouble(slot, field * 8, value);
+    }
+
+    private static int getInt(OffHeapColumn column, int slot, int field) {
+        return column.getInt(slot, field * 4);
+    }
+
+    private static void setInt(OffHeapColumn column, int slot, int field, int value) {
+        column.putInt(slot, field * 4, value);
+    }
+
+    private static float getFloat(OffHeapColumn column, int slot, int field) {
+        return column.getFloat(slot, field * 4);
+    }
+
+    private static void setFloat(OffHeapColumn column, int slot, int field, float value) {
+        column.putFloat(slot, field * 4, value);
+    }
+
+}
@@ -0,0 +1,161 @@
+import java.util.ArrayList;
+import java.util.Random;
+
+// Runs the same random operations against a Race and an OffHeapRace and checks that every result
+// and every error message is the same: single and bulk runs, removals, ranks, selects, the fastest
+// runners and the leaderboards. Times come from a small set so ties and duplicate runs are common,
+// with the odd NaN or infinite time that both must refuse.
+// Also checks that an OffHeapColumn refuses slots past its 2 GB buffer instead of overflowing.
+// Exits with an AssertionError on the first difference.
+//
+// Usage: java OffHeapRaceCheck [seed] [operations]
+public class OffHeapRaceCheck {
+    private static final int IDS = 300;
+    private static final float[] NOT_FINITE = {Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY};
+
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        Random random = new Random(seed);
+
+        Race race = new Race();
+        OffHeapRace offHeap = new OffHeapRace();
+        Checks.same("before init", () -> race.getFastestRunnerAvg(), () -> offHeap.getFastestRunnerAvg());
+        race.init();
+        offHeap.init();
+
+        for (int step = 0; step < operations; step++) {
+            RunnerIDInt id = new RunnerIDInt(random.nextInt(IDS));
+            float time = random.nextInt(50) == 0 ? NOT_FINITE[random.nextInt(NOT_FINITE.length)]
+                    : random.nextInt(40) - 1; // Sometimes negative
+            String label = "step " + step;
+            switch (random.nextInt(12)) {
+                case 0:
+                case 1:
+                    Checks.same(label + " addRunner", () -> Checks.run(() -> race.addRunner(id)),
+                            () -> Checks.run(() -> offHeap.addRunner(id)));
+                    break;
+                case 2:
+                    Checks.same(label + " removeRunner", () -> Checks.run(() -> race.removeRunner(id)),
+                            () -> Checks.run(() -> offHeap.removeRunner(id)));
+                    break;
+                case 3:
+                case 4:
+                    Checks.same(label + " addRunToRunner", () -> Checks.run(() -> race.addRunToRunner(id, time)),
+                            () -> Checks.run(() -> offHeap.addRunToRunner(id, time)));
+                    break;
+                case 5:
+                    Checks.same(label + " removeRunFromRunner", () -> Checks.run(() -> race.removeRunFromRunner(id, time)),
+                            () -> Checks.run(() -> offHeap.removeRunFromRunner(id, time)));
+                    break;
+                case 6: {
+                    RunnerID[] ids = new RunnerID[1 + random.nextInt(8)];
+                    float[] times = new float[ids.length];
+                    for (int i = 0; i < ids.length; i++) {
+                        ids[i] = new RunnerIDInt(random.nextInt(IDS));
+                        times[i] = random.nextInt(200) == 0 ? NOT_FINITE[random.nextInt(NOT_FINITE.length)]
+                                : random.nextInt(40) - (random.nextInt(20) == 0 ? 1 : 0);
+                    }
+                    if (random.nextBoolean()) {
+                        Checks.same(label + " addRunsBulk", () -> Checks.run(() -> race.addRunsBulk(ids, times)),
+                                () -> Checks.run(() -> offHeap.addRunsBulk(ids, times)));
+                    } else {
+                        Checks.same(label + " removeRunsBulk", () -> Checks.run(() -> race.removeRunsBulk(ids, times)),
+                                () -> Checks.run(() -> offHeap.removeRunsBulk(ids, times)));
+                    }
+                    break;
+                }
+                case 7:
+                    Checks.same(label + " getMinRun", () -> race.getMinRun(id), () -> offHeap.getMinRun(id));
+                    Checks.same(label + " getAvgRun", () -> race.getAvgRun(id), () -> offHeap.getAvgRun(id));
+                    break;
+                case 8:
+                    Checks.same(label + " getRankAvg", () -> race.getRankAvg(id), () -> offHeap.getRankAvg(id));
+                    Checks.same(label + " getRankMin", () -> race.getRankMin(id), () -> offHeap.getRankMin(id));
+                    break;
+                case 9: {
+                    int rank = random.nextInt(IDS + 2) - 1;
+                    Checks.same(label + " selectByRankAvg", () -> race.selectByRankAvg(rank),
+                            () -> offHeap.selectByRankAvg(rank));
+                    Checks.same(label + " selectByRankMin", () -> race.selectByRankMin(rank),
+                            () -> offHeap.selectByRankMin(rank));
+                    break;
+                }
+                case 10:
+                    Checks.same(label + " getFastestRunnerAvg", () -> race.getFastestRunnerAvg(),
+                            () -> offHeap.getFastestRunnerAvg());
+                    Checks.same(label + " getFastestRunnerMin", () -> race.getFastestRunnerMin(),
+                            () -> offHeap.getFastestRunnerMin());
+                    break;
+                default: {
+                    int offset = random.nextInt(IDS + 2) - 1;
+                    int limit = random.nextInt(20);
+                    Checks.same(label + " topKByAvg", () -> list(race.topKByAvg(limit)), () -> list(offHeap.topKByAvg(limit)));
+                    Checks.same(label + " topKByMin", () -> list(race.topKByMin(limit)), () -> list(offHeap.topKByMin(limit)));
+                    Checks.same(label + " pageByAvg", () -> list(race.pageByAvg(offset, limit)),
+                            () -> list(offHeap.pageByAvg(offset, limit)));
+                    Checks.same(label + " pageByMin", () -> list(race.pageByMin(offset, limit)),
+                            () -> list(offHeap.pageByMin(offset, limit)));
+                }
+            }
+        }
+        checkNotFiniteRefused();
+        checkColumnLimit();
+        System.out.println("OffHeapRaceCheck OK");
+    }
+
+    // The random steps only show that both races agree, this shows they refuse
+    private static void checkNotFiniteRefused() {
+        Race race = new Race();
+        race.init();
+        RunnerIDInt id = new RunnerIDInt(1);
+        race.addRunner(id);
+        race.addRunToRunner(id, 10);
+        for (float time : NOT_FINITE) {
+            String expected = "IllegalArgumentException: " + (time < 0 ? "Negative running time is not allowed."
+                    : "Running time " + time + " is not a finite number.");
+            String[] outcomes = {
+                    Checks.outcome(() -> Checks.run(() -> race.addRunToRunner(id, time))),
+                    Checks.outcome(() -> Checks.run(() -> race.addRunsBulk(new RunnerID[] {id}, new float[] {time}))),
+                    Checks.outcome(() -> Checks.run(() -> race.removeRunFromRunner(id, time))),
+                    Checks.outcome(() -> Checks.run(() -> race.removeRunsBulk(new RunnerID[] {id}, new float[] {time})))};
+            for (int i = 0; i < outcomes.length; i++) {
+                String wanted = i < 2 ? expected : "IllegalArgumentException: Running time " + time + " is not a finite number.";
+                if (!outcomes[i].equals(wanted)) {
+                    throw new AssertionError("time " + time + " gave " + outcomes[i]);
+                }
+            }
+        }
+        if (race.getAvgRun(id) != 10 || race.getMinRun(id) != 10) {
+            throw new AssertionError("a refused time changed the runner");
+        }
+    }
+
+    // 16 MB records, so the 2 GB limit is reached after 127 slots without allocating anything near it
+    private static void checkColumnLimit() {
+        OffHeapColumn column = new OffHeapColumn(1 << 24);
+        if (column.maxSlots() != 127) {
+            throw new AssertionError("a column of 16 MB records holds " + column.maxSlots() + " slots, not 127");
+        }
+        column.ensureCapacity(20);
+        column.putDouble(20, (1 << 24) - 8, 1.5);
+        if (column.getDouble(20, (1 << 24) - 8) != 1.5) {
+            throw new AssertionError("the last field of slot 20 was not kept");
+        }
+        String outcome = Checks.outcome(() -> {
+            column.ensureCapacity(column.maxSlots());
+            return "grown";
+        });
+        if (!outcome.startsWith("IllegalArgumentException: Off-heap storage is full")) {
+            throw new AssertionError("growing past the limit gave " + outcome);
+        }
+    }
+
+    private static ArrayList<RunnerID> list(Iterable<RunnerID> runners) {
+        ArrayList<RunnerID> list = new ArrayList<>();
+        for (RunnerID id : runners) {
+            list.add(id);
+        }
+        return list;
+    }
+}
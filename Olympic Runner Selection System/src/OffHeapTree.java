@@ -0,0 +1,283 @@
+// AVL order-statistic tree over int slots, the off-heap counterpart of ScoreTree. A node is a slot
+// number chosen by the caller, and its links live in a direct buffer of five ints per slot, so the
+// tree holds no object per node. The order between slots is given by compare.
+public abstract class OffHeapTree {
+    public static final int NIL = -1;
+
+    private static final int LEFT = 0;
+    private static final int RIGHT = 1;
+    private static final int PARENT = 2;
+    private static final int SIZE = 3;
+    private static final int HEIGHT = 4;
+    private static final int INTS_PER_SLOT = 5;
+
+    private final OffHeapColumn links;
+    private int root;
+    private int smallest; // Leftmost slot, cached so the fastest runner is O(1)
+
+    public OffHeapTree(){
+        this.links = new OffHeapColumn(INTS_PER_SLOT * Integer.BYTES);
+        this.root = NIL;
+        this.smallest = NIL;
+    }
+
+    // Negative when slot first is ordered before slot second, zero only when they are equal
+    protected abstract int compare(int first, int second);
+
+    public int root() {
+        return root;
+    }
+
+    public int left(int slot) {
+        return get(slot, LEFT);
+    }
+
+    public int right(int slot) {
+        return get(slot, RIGHT);
+    }
+
+    public int first() {
+        return smallest;
+    }
+
+    public int size() {
+        return size(root);
+    }
+
+    // Slots from 0 up to maxSlots() - 1 fit in the tree's buffer
+    public int maxSlots() {
+        return links.maxSlots();
+    }
+
+    // Links slot into the tree, equal slots are placed after the ones already there
+    public void insert(int slot) {
+        links.ensureCapacity(slot);
+        set(slot, LEFT, NIL);
+        set(slot, RIGHT, NIL);
+        set(slot, SIZE, 1);
+        set(slot, HEIGHT, 1);
+
+        int parent = NIL;
+        int node = root;
+        boolean goLeft = false;
+        while (node != NIL) {
+            parent = node;
+            goLeft = compare(slot, node) < 0;
+            node = goLeft ? left(node) : right(node);
+        }
+
+        set(slot, PARENT, parent);
+        if (parent == NIL) {
+            root = slot;
+        } else {
+            set(parent, goLeft ? LEFT : RIGHT, slot);
+        }
+        rebalanceUp(parent);
+
+        if (smallest == NIL || compare(slot, smallest) < 0) {
+            smallest = slot;
+        }
+    }
+
+    // Detaches slot from the tree through its parent link, no search is needed
+    public void unlink(int slot) {
+        if (slot == smallest) {
+            smallest = successor(slot);
+        }
+
+        int left = left(slot);
+        int right = right(slot);
+        int start;
+        if (left != NIL && right != NIL) {
+            // Slot has two children, its successor takes its place
+            int successor = leftmost(right);
+            if (parent(successor) == slot) {
+                start = successor;
+            } else {
+                start = parent(successor);
+                replaceChild(parent(successor), successor, right(successor));
+                set(successor, RIGHT, right);
+                set(right, PARENT, successor);
+            }
+            set(successor, LEFT, left);
+            set(left, PARENT, successor);
+            replaceChild(parent(slot), slot, successor);
+        } else {
+            start = parent(slot);
+            replaceChild(parent(slot), slot, left != NIL ? left : right);
+        }
+
+        set(slot, LEFT, NIL);
+        set(slot, RIGHT, NIL);
+        set(slot, PARENT, NIL);
+        rebalanceUp(start);
+    }
+
+    // Moves slot to its new position after the value it is compared by changed
+    public void reposition(int slot) {
+        int previous = predecessor(slot);
+        int next = successor(slot);
+        if ((previous == NIL || compare(previous, slot) < 0) && (next == NIL || compare(slot, next) < 0)) {
+            return;
+        }
+        unlink(slot);
+        insert(slot);
+    }
+
+    // Number of slots ordered before slot, found by walking up to the root
+    public int rank(int slot) {
+        int rank = size(left(slot));
+        while (parent(slot) != NIL) {
+            int parent = parent(slot);
+            if (slot == right(parent)) {
+                rank += 1 + size(left(parent));
+            }
+            slot = parent;
+        }
+        return rank;
+    }
+
+    // The slot at the given zero based position, or NIL if there is none
+    public int select(int index) {
+        int node = root;
+        while (node != NIL) {
+            int leftSize = size(left(node));
+            if (index < leftSize) {
+                node = left(node);
+            } else if (index > leftSize) {
+                index -= leftSize + 1;
+                node = right(node);
+            } else {
+                return node;
+            }
+        }
+        return NIL;
+    }
+
+    public int successor(int slot) {
+        if (right(slot) != NIL) {
+            return leftmost(right(slot));
+        }
+        while (parent(slot) != NIL && slot == right(parent(slot))) {
+            slot = parent(slot);
+        }
+        return parent(slot);
+    }
+
+    public int predecessor(int slot) {
+        if (left(slot) != NIL) {
+            slot = left(slot);
+            while (right(slot) != NIL) {
+                slot = right(slot);
+            }
+            return slot;
+        }
+        while (parent(slot) != NIL && slot == left(parent(slot))) {
+            slot = parent(slot);
+        }
+        return parent(slot);
+    }
+
+    private int leftmost(int slot) {
+        while (left(slot) != NIL) {
+            slot = left(slot);
+        }
+        return slot;
+    }
+
+    private int parent(int slot) {
+        return get(slot, PARENT);
+    }
+
+    private int size(int slot) {
+        return slot == NIL ? 0 : get(slot, SIZE);
+    }
+
+    private int height(int slot) {
+        return slot == NIL ? 0 : get(slot, HEIGHT);
+    }
+
+    private int get(int slot, int field) {
+        return links.getInt(slot, field * Integer.BYTES);
+    }
+
+    private void set(int slot, int field, int value) {
+        links.putInt(slot, field * Integer.BYTES, value);
+    }
+
+    private void update(int slot) {
+        set(slot, SIZE, 1 + size(left(slot)) + size(right(slot)));
+        set(slot, HEIGHT, 1 + Math.max(height(left(slot)), height(right(slot))));
+    }
+
+    // Puts child where oldChild was under parent, or at the root when parent is NIL
+    private void replaceChild(int parent, int oldChild, int child) {
+        if (parent == NIL) {
+            root = child;
+        } else if (left(parent) == oldChild) {
+            set(parent, LEFT, child);
+        } else {
+            set(parent, RIGHT, child);
+        }
+        if (child != NIL) {
+            set(child, PARENT, parent);
+        }
+    }
+
+    private void rotateRight(int slot) {
+        int pivot = left(slot);
+        int inner = right(pivot);
+        set(slot, LEFT, inner);
+        if (inner != NIL) {
+            set(inner, PARENT, slot);
+        }
+        replaceChild(parent(slot), slot, pivot);
+        set(pivot, RIGHT, slot);
+        set(slot, PARENT, pivot);
+        update(slot);
+        update(pivot);
+    }
+
+    private void rotateLeft(int slot) {
+        int pivot = right(slot);
+        int inner = left(pivot);
+        set(slot, RIGHT, inner);
+        if (inner != NIL) {
+            set(inner, PARENT, slot);
+        }
+        replaceChild(parent(slot), slot, pivot);
+        set(pivot, LEFT, slot);
+        set(slot, PARENT, pivot);
+        update(slot);
+        update(pivot);
+    }
+
+    // Restores the AVL property at slot, assuming both subtrees are balanced, and returns the subtree root
+    private int rebalance(int slot) {
+        update(slot);
+        int balance = height(left(slot)) - height(right(slot));
+        if (balance > 1) {
+            if (height(left(left(slot))) < height(right(left(slot)))) {
+                rotateLeft(left(slot));
+            }
+            rotateRight(slot);
+            return parent(slot);
+        }
+        if (balance < -1) {
+            if (height(right(right(slot))) < height(left(right(slot)))) {
+                rotateRight(right(slot));
+            }
+            rotateLeft(slot);
+            return parent(slot);
+        }
+        return slot;
+    }
+
+    // Fixes sizes, heights and balance from slot up to the root
+    private void rebalanceUp(int slot) {
+        while (slot != NIL) {
+            slot = parent(rebalance(slot));
+        }
+    }
+
+}
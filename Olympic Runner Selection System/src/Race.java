@@ -1,698 +1,1855 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.locks.StampedLock;
+
 public class Race {
+    private static final FloatNode[] NO_ENTRIES = new FloatNode[0]; // metricEntries of runners without score indexes
+
     private boolean initialized = false;
     private Node root; // Root of the tree sorted by runner ID
+    private HashMap<RunnerID, Node> index; // Runners whose ID implements HashableRunnerID
     private AvgTree avgTree; // Root of the tree sorted by average run time
     private MinTree minTree;
-    private Node fastestRunnerByAvg;
-    private Node fastestRunnerByMin;
+    private SnapshotClock clock; // Shared with the score trees, see snapshot()
+    private RaceMetrics metrics; // Null unless instrumentation was turned on with setMetrics
+    private RaceListener listener; // Null unless changes are reported, see setListener
+    private int topThreshold; // Rank crossings are reported for the first topThreshold ranks
+    private FormWindow form; // Null unless form tracking was turned on with setFormWindow
+    private AvgTree windowAvgTree; // Runners by the average of their form window
+    private MinTree windowMinTree;
+    private RunTimeline timeline; // Runs in the order they were run, while form.maxAge is set
+    private long currentStamp; // The race's current time, the newest timestamp it was given or 0
+    private long runSequence; // Number of runs that entered a form window so far
+    private ArrayList<ScoreIndex> scoreIndexes; // Extra rankings, see addScoreIndex
+    private RunTimeIndex runTimes; // Every run time in the race, null unless turned on with setRunTimeIndex
     public Race(){
         this.root = null;
+        this.index = null;
         this.avgTree = null;
         this.minTree = null;
+        this.clock = null;
+        this.scoreIndexes = new ArrayList<>();
     }
 
     public void init() {
         // Initialize the race
         this.root = null;
-        this.avgTree= new AvgTree();
-        this.minTree = new MinTree();
-        this.fastestRunnerByAvg = null;
-        this.fastestRunnerByMin = null;
+        this.index = new HashMap<>();
+        this.clock = new SnapshotClock();
+        this.avgTree= new AvgTree(clock);
+        this.minTree = new MinTree(clock);
         initialized = true;
+        if (form != null) {
+            startForm(form);
+        }
+        for (ScoreIndex scoreIndex : scoreIndexes) {
+            scoreIndex.tree = new MetricTree();
+        }
+        if (runTimes != null) {
+            runTimes = new RunTimeIndex();
+        }
     }
 
-    public void addRunner(RunnerID id) {
+    // Starts keeping every runner's form: its recent runs as chosen by window, with their min and
+    // (decayed) average ranked in two more score trees. Runs already in the race have no timestamps
+    // and are not part of anyone's form. Passing null stops form tracking. init and load keep the
+    // window but start every runner's form empty, and snapshots and saved races do not include it.
+    public void setFormWindow(FormWindow window) {
         // Check if the race has been initialized
         if (!initialized) {
             throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
         }
-        // Check if the runner already exists
-        if (findNode(id, root) != null) {
-            throw new IllegalArgumentException("Runner with ID " + id.toString() + " already exists.");
+        if (window == null) {
+            for (Node node : runnersInIdOrder()) {
+                node.window = null;
+                node.windowAvgEntry = null;
+                node.windowMinEntry = null;
+            }
+            this.form = null;
+            this.windowAvgTree = null;
+            this.windowMinTree = null;
+            this.timeline = null;
+        } else {
+            startForm(window);
         }
+    }
 
-        Node newNode = new Node(id);
-
-        root = insert(root, newNode, 0);
-
-        FloatNode newAvgNode = new FloatNode(id);
-        newAvgNode.avgRunTime = Float.MAX_VALUE;
-        avgTree.avgRoot = avgTree.insertAvg(avgTree.avgRoot, newAvgNode);
-
-        FloatNode newMinNode = new FloatNode(id);
-        newMinNode.minRunTime = Float.MAX_VALUE;
-        minTree.minRoot = minTree.insertMin(minTree.minRoot, newMinNode);
-
-        if (fastestRunnerByMin == null || (fastestRunnerByMin.minRunTime == Float.MAX_VALUE && id.isSmaller(fastestRunnerByMin.id))) {
-            fastestRunnerByMin = newNode;
+    private void startForm(FormWindow window) {
+        this.form = window;
+        // The form trees have their own clocks since snapshots never read them
+        this.windowAvgTree = new AvgTree();
+        this.windowMinTree = new MinTree();
+        this.timeline = window.maxAge > 0 ? new RunTimeline() : null;
+        this.currentStamp = 0;
+        this.runSequence = 0;
+        for (Node node : runnersInIdOrder()) {
+            startForm(node);
         }
-        if (fastestRunnerByAvg == null || (fastestRunnerByAvg.avgRunTime == Float.MAX_VALUE && id.isSmaller(fastestRunnerByAvg.id))) {
-            fastestRunnerByAvg = newNode;
-        }
-
     }
 
-    public void removeRunner(RunnerID id) {
+    // Starts ranking the runners by metric too, and returns the index to pass to the queries below.
+    // Every registered index scores a runner again whenever its runs change, and moves the runner
+    // in its tree only if the score changed. Score indexes stay registered across init and load and
+    // are filled from the runners' runs, but are not part of snapshots or saved races.
+    public ScoreIndex addScoreIndex(String name, RunnerMetric metric) {
         // Check if the race has been initialized
         if (!initialized) {
             throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
         }
-        Node nodeToRemove = findNode(id, root);
+        ScoreIndex scoreIndex = new ScoreIndex(name, metric, scoreIndexes.size());
+        scoreIndexes.add(scoreIndex);
+        fillScoreIndex(scoreIndex);
+        return scoreIndex;
+    }
 
-        if (nodeToRemove == null) {
-            throw new IllegalArgumentException("Runner with ID " + id.toString() + " does not exist.");
+    public void removeScoreIndex(ScoreIndex scoreIndex) {
+        checkScoreIndex(scoreIndex);
+        int slot = scoreIndex.slot;
+        scoreIndexes.remove(slot);
+        for (int i = slot; i < scoreIndexes.size(); i++) {
+            scoreIndexes.get(i).slot = i;
         }
-
-        avgTree.avgRoot = removeAvg(avgTree.avgRoot, id);
-        minTree.minRoot = removeMin(minTree.minRoot, id);
-
-        if (nodeToRemove.runsTree != null) {
-            nodeToRemove.runsTree = null;
+        for (Node node : runnersInIdOrder()) {
+            FloatNode[] entries = new FloatNode[scoreIndexes.size()];
+            System.arraycopy(node.metricEntries, 0, entries, 0, slot);
+            System.arraycopy(node.metricEntries, slot + 1, entries, slot, entries.length - slot);
+            node.metricEntries = entries;
         }
-        // Decrement numRuns for the removed runner
-        nodeToRemove.numRuns--;
-
-        // Remove the node from the TST
-        root = remove(root, id, 0);
+    }
 
-        // Update fastestRunnerByAvg if necessary
-        if (nodeToRemove == fastestRunnerByAvg) {
-            updateFastestRunnerByAvg(root);
+    // Scores every runner for scoreIndex and builds its tree bottom up from the sorted entries
+    private void fillScoreIndex(ScoreIndex scoreIndex) {
+        MetricTree tree = new MetricTree();
+        ArrayList<Node> runners = runnersInIdOrder();
+        FloatNode[] entries = new FloatNode[runners.size()];
+        for (int i = 0; i < entries.length; i++) {
+            Node node = runners.get(i);
+            entries[i] = tree.createNode(node.id);
+            tree.setScore(entries[i], scoreIndex.metric.score(node.runsTree));
+            if (node.metricEntries.length <= scoreIndex.slot) {
+                node.metricEntries = Arrays.copyOf(node.metricEntries, scoreIndexes.size());
+            }
+            node.metricEntries[scoreIndex.slot] = entries[i];
         }
+        Arrays.sort(entries, (first, second) -> tree.compare(tree.key(first), first.id, second));
+        tree.buildFrom(entries);
+        scoreIndex.tree = tree;
+    }
 
-        // Update fastestRunnerByMin if necessary
-        if (nodeToRemove == fastestRunnerByMin) {
-            updateFastestRunnerByMin(root);
+    private void checkScoreIndex(ScoreIndex scoreIndex) {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        int slot = scoreIndex.slot;
+        if (slot >= scoreIndexes.size() || scoreIndexes.get(slot) != scoreIndex) {
+            throw new IllegalArgumentException("Score index " + scoreIndex.name + " is not registered with this race.");
         }
     }
 
-    public void addRunToRunner(RunnerID id, float time) {
+    // Starts keeping every run time of the race in one RunTimeIndex for the race wide run queries
+    // below, indexing the runs already there, or stops with false. Like the form it stays on across
+    // init and load.
+    public void setRunTimeIndex(boolean on) {
         // Check if the race has been initialized
         if (!initialized) {
             throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
         }
-        // Find the node corresponding to the given ID
-        Node runnerNode = findNode(id, root);
-
-        // Check if the time is negative
-        if (time < 0) {
-            throw new IllegalArgumentException("Negative running time is not allowed.");
+        if (!on) {
+            runTimes = null;
+            return;
         }
-
-        // If the node doesn't exist, throw an exception
-        if (runnerNode == null) {
-            throw new IllegalArgumentException("Runner with ID " + id.toString() + " does not exist.");
+        RunTimeIndex allRuns = new RunTimeIndex();
+        for (Node node : runnersInIdOrder()) {
+            RunsForRunnerTree runs = node.runsTree;
+            for (int i = 0; i < runs.distinctRuns(); i++) {
+                for (int j = 0; j < runs.countAt(i); j++) {
+                    allRuns.addRun(runs.timeAt(i));
+                }
+            }
         }
-        avgTree.avgRoot = removeAvg(avgTree.avgRoot, id);
-        minTree.minRoot = removeMin(minTree.minRoot, id);
-
-        // Increment numRuns for the runner
-        runnerNode.numRuns++;
-        runnerNode.sumOfRunTimes += time;
+        runTimes = allRuns;
+    }
 
-        runnerNode.runsTree.addRun(id,time);
+    private void startForm(Node node) {
+        node.window = new RunWindow(form);
+        node.windowAvgEntry = windowAvgTree.addRunnerAvg(node.id, Float.MAX_VALUE);
+        node.windowMinEntry = windowMinTree.addRunnerMin(node.id, Float.MAX_VALUE);
+    }
 
-        // Update minRunTime if the newly added time is smaller
-        if (time < runnerNode.minRunTime) {
-            runnerNode.minRunTime = time;
-        }
+    // Starts recording operation latencies and lookup costs into metrics, or stops when it is null
+    public void setMetrics(RaceMetrics metrics) {
+        this.metrics = metrics;
+    }
 
-        // Update avgRunTime
-        runnerNode.avgRunTime = calculateAverage(runnerNode);
+    // Reports every change of a runner's min or average and of the fastest runners to listener, or
+    // stops when it is null. With a topThreshold above 0 runners entering or leaving the first
+    // topThreshold ranks are reported too. Events are worked out as part of each change, from the
+    // runners it touched, and a race without a listener only pays a null check. init and load
+    // replace the whole race and are not reported.
+    public void setListener(RaceListener listener, int topThreshold) {
+        if (topThreshold < 0) {
+            throw new IllegalArgumentException("The rank threshold cannot be negative.");
+        }
+        this.listener = listener;
+        this.topThreshold = topThreshold;
+    }
 
-        // Update fastestRunnerByAvg if necessary
-        if (runnerNode.avgRunTime < fastestRunnerByAvg.avgRunTime) {
-            fastestRunnerByAvg = runnerNode;
+    // Sizes and heights of the trees, walks every runner so it is O(n)
+    public RaceStructure structure() {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
         }
-
-        // Update fastestRunnerByMin if necessary
-        if (runnerNode.minRunTime < fastestRunnerByMin.minRunTime) {
-            fastestRunnerByMin = runnerNode;
+        ArrayList<Node> runners = runnersInIdOrder();
+        long totalRuns = 0;
+        int maxRuns = 0;
+        for (Node node : runners) {
+            totalRuns += node.numRuns;
+            maxRuns = Math.max(maxRuns, node.numRuns);
         }
-
-        avgTree.addRunnerAvg(runnerNode.id, runnerNode.avgRunTime);
-        minTree.addRunnerMin(runnerNode.id, runnerNode.minRunTime);
+        return new RaceStructure(runners.size(), height(root), avgTree.size(), avgTree.height(),
+                minTree.size(), minTree.height(), totalRuns, maxRuns);
     }
 
-    public void removeRunFromRunner(RunnerID id, float time) {
+    // Writes the whole race to path in the format described in RaceFile, replacing any file there
+    public void save(Path path, RunnerIDCodec codec) throws IOException {
         // Check if the race has been initialized
         if (!initialized) {
             throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
         }
-        Node runnerNode = findNode(id, root);
-
-        if (runnerNode == null) {
-            throw new IllegalArgumentException("Runner with ID " + id.toString() + " does not exist.");
+        ArrayList<Node> runners = runnersInIdOrder();
+        IdentityHashMap<FloatNode, Integer> positions = new IdentityHashMap<>();
+        for (int i = 0; i < runners.size(); i++) {
+            positions.put(runners.get(i).avgEntry, i);
+            positions.put(runners.get(i).minEntry, i);
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            RaceFile.Writer out = new RaceFile.Writer(channel);
+            out.writeInt(RaceFile.MAGIC);
+            out.writeInt(RaceFile.VERSION);
+            out.writeInt(runners.size());
+            for (Node node : runners) {
+                byte[] id = codec.encode(node.id);
+                out.writeInt(id.length);
+                out.writeBytes(id);
+                out.writeInt(node.runsTree.size());
+                out.writeInt(node.runsTree.distinctRuns());
+                for (int i = 0; i < node.runsTree.distinctRuns(); i++) {
+                    out.writeFloat(node.runsTree.timeAt(i));
+                    out.writeInt(node.runsTree.countAt(i));
+                }
+                out.writeDouble(node.sumOfRunTimes);
+                out.writeDouble(node.sumCompensation);
+                out.writeFloat(node.minRunTime);
+                out.writeFloat(node.avgRunTime);
+            }
+            for (FloatNode entry = avgTree.first(); entry != null; entry = ScoreTree.successor(entry)) {
+                out.writeInt(positions.get(entry));
+            }
+            for (FloatNode entry = minTree.first(); entry != null; entry = ScoreTree.successor(entry)) {
+                out.writeInt(positions.get(entry));
+            }
+            out.flush();
         }
+    }
 
-        avgTree.avgRoot = removeAvg(avgTree.avgRoot, id);
-        minTree.minRoot = removeMin(minTree.minRoot, id);
+    // Replaces this race with the one save wrote to path, calling init() first is not needed. The
+    // file lists the runners in ID order and in both score orders, so all three trees are built
+    // bottom up in O(n) and the order is only checked, never sorted.
+    public void load(Path path, RunnerIDCodec codec) throws IOException {
+        SnapshotClock newClock = new SnapshotClock();
+        AvgTree newAvgTree = new AvgTree(newClock);
+        MinTree newMinTree = new MinTree(newClock);
+        HashMap<RunnerID, Node> newIndex = new HashMap<>();
+        Node[] runners;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            RaceFile.Reader in = new RaceFile.Reader(channel);
+            if (in.readInt() != RaceFile.MAGIC) {
+                throw new IOException("Not a race file: " + path);
+            }
+            int version = in.readInt();
+            if (version != RaceFile.VERSION) {
+                throw new IOException("Unsupported race file version " + version + ".");
+            }
+            // Nothing stored more than once per byte of the file can be longer than the file
+            int maxLength = (int) Math.min(Integer.MAX_VALUE - 8, channel.size());
+
+            runners = new Node[in.readCount(maxLength, "runner count")];
+            for (int i = 0; i < runners.length; i++) {
+                RunnerID id = codec.decode(in.readBytes(in.readCount(maxLength, "ID length")));
+                if (i > 0 && !runners[i - 1].id.isSmaller(id)) {
+                    throw new IOException("Corrupt race file: runners are not in ID order.");
+                }
+                Node node = new Node(id);
+                node.version = newClock.epoch;
+
+                int numRuns = in.readCount(Integer.MAX_VALUE, "run count");
+                int distinct = in.readCount(Math.min(numRuns, maxLength), "distinct run count");
+                float[] times = new float[distinct];
+                int[] counts = new int[distinct];
+                long total = 0;
+                double sum = 0;
+                for (int j = 0; j < distinct; j++) {
+                    times[j] = in.readFloat();
+                    counts[j] = in.readCount(numRuns, "run time count");
+                    if (counts[j] == 0 || (j > 0 && !(times[j - 1] < times[j]))) {
+                        throw new IOException("Corrupt race file: run times of runner " + id + " are not sorted.");
+                    }
+                    if (!Float.isFinite(times[j]) || times[j] < 0) {
+                        throw new IOException("Corrupt race file: runner " + id + " has run time " + times[j] + ".");
+                    }
+                    total += counts[j];
+                    sum += (double) times[j] * counts[j];
+                }
+                if (total != numRuns) {
+                    throw new IOException("Corrupt race file: runner " + id + " should have " + numRuns + " runs.");
+                }
+                node.runsTree = new RunsForRunnerTree(times, counts, distinct, numRuns);
+                node.numRuns = numRuns;
+                node.sumOfRunTimes = in.readDouble();
+                node.sumCompensation = in.readDouble();
+                node.minRunTime = in.readFloat();
+                node.avgRunTime = in.readFloat();
+                checkAggregates(node, sum);
+
+                node.avgEntry = newAvgTree.createNode(id);
+                newAvgTree.setScore(node.avgEntry, node.avgRunTime);
+                node.minEntry = newMinTree.createNode(id);
+                newMinTree.setScore(node.minEntry, node.minRunTime);
+                if (id instanceof HashableRunnerID) {
+                    newIndex.put(id, node);
+                }
+                runners[i] = node;
+            }
 
-        FloatNode run = runnerNode.runsTree.findRun(runnerNode.runsTree.runRoot, time);
+            newAvgTree.buildFrom(readScoreOrder(in, runners, newAvgTree, true));
+            newMinTree.buildFrom(readScoreOrder(in, runners, newMinTree, false));
+            if (!in.atEnd()) {
+                throw new IOException("Corrupt race file: unexpected data after the score orders.");
+            }
+        }
 
-        if (run == null) {
-            throw new IllegalArgumentException("Run time " + time + " not found for runner with ID " + id.toString());
+        // Only a fully read file replaces the current race
+        this.root = buildIdTree(runners, 0, runners.length - 1);
+        this.index = newIndex;
+        this.clock = newClock;
+        this.avgTree = newAvgTree;
+        this.minTree = newMinTree;
+        initialized = true;
+        if (form != null) {
+            startForm(form);
+        }
+        for (ScoreIndex scoreIndex : scoreIndexes) {
+            fillScoreIndex(scoreIndex);
         }
+        if (runTimes != null) {
+            setRunTimeIndex(true);
+        }
+    }
 
-        runnerNode.runsTree.runRoot = removeRun(runnerNode.runsTree.runRoot, time);
+    // The stored aggregates place the runner in the score trees, so they must agree with its runs.
+    // The sum kept while runs came and went may differ from a fresh one by rounding, far less than
+    // a millionth of it, but the minimum and average must be exactly what the race computes.
+    private void checkAggregates(Node node, double sum) throws IOException {
+        double stored = node.sumOfRunTimes + node.sumCompensation;
+        if (!(Math.abs(stored - sum) <= sum * 1e-6)) {
+            throw new IOException("Corrupt race file: runner " + node.id + " has a run time sum of " + stored
+                    + " instead of " + sum + ".");
+        }
+        if (node.minRunTime != node.runsTree.minRun()) {
+            throw new IOException("Corrupt race file: runner " + node.id + " has minimum " + node.minRunTime
+                    + " instead of " + node.runsTree.minRun() + ".");
+        }
+        if (node.avgRunTime != calculateAverage(node)) {
+            throw new IOException("Corrupt race file: runner " + node.id + " has average " + node.avgRunTime
+                    + " instead of " + calculateAverage(node) + ".");
+        }
+    }
 
-        // Check if the removed time was the minRunTime and update it if necessary
-        if (time == runnerNode.minRunTime) {
-            FloatNode newMinRun = findMinRun(runnerNode.runsTree.runRoot);
-            if (newMinRun == null){
-                runnerNode.minRunTime = Float.MAX_VALUE;
-            } else {
-                runnerNode.minRunTime = findMinRun(runnerNode.runsTree.runRoot).time;
+    // Reads one score order and checks that it lists every runner once, each after the one before it
+    private FloatNode[] readScoreOrder(RaceFile.Reader in, Node[] runners, ScoreTree tree, boolean byAvg) throws IOException {
+        FloatNode[] order = new FloatNode[runners.length];
+        boolean[] seen = new boolean[runners.length];
+        for (int i = 0; i < runners.length; i++) {
+            int position = in.readCount(runners.length - 1, "runner position");
+            if (seen[position]) {
+                throw new IOException("Corrupt race file: runner " + runners[position].id + " is listed twice.");
+            }
+            seen[position] = true;
+            order[i] = byAvg ? runners[position].avgEntry : runners[position].minEntry;
+            if (i > 0 && tree.compare(tree.key(order[i - 1]), order[i - 1].id, order[i]) >= 0) {
+                throw new IOException("Corrupt race file: runners are not in score order.");
             }
         }
+        return order;
+    }
 
-        runnerNode.numRuns--;
-        runnerNode.sumOfRunTimes -= time;
-        runnerNode.avgRunTime = calculateAverage(runnerNode);
-
-        // Update fastestRunnerByAvg if necessary
-        if (runnerNode == fastestRunnerByAvg || runnerNode.avgRunTime < fastestRunnerByAvg.avgRunTime) {
-            updateFastestRunnerByAvg(root);
+    // Balanced ID tree over runners[low..high], which are in ID order
+    private Node buildIdTree(Node[] runners, int low, int high) {
+        if (low > high) {
+            return null;
         }
+        int middle = (low + high) >>> 1;
+        Node node = runners[middle];
+        node.left = buildIdTree(runners, low, middle - 1);
+        node.right = buildIdTree(runners, middle + 1, high);
+        node.height = 1 + Math.max(height(node.left), height(node.right));
+        return node;
+    }
 
-        // Update fastestRunnerByMin if necessary
-        if (runnerNode == fastestRunnerByMin || runnerNode.minRunTime < fastestRunnerByMin.minRunTime) {
-            updateFastestRunnerByMin(root);
+    // Every runner by ID, walking the ID tree with an explicit stack
+    private ArrayList<Node> runnersInIdOrder() {
+        ArrayList<Node> runners = new ArrayList<>();
+        ArrayList<Node> stack = new ArrayList<>();
+        Node node = root;
+        while (node != null || !stack.isEmpty()) {
+            while (node != null) {
+                stack.add(node);
+                node = node.left;
+            }
+            node = stack.remove(stack.size() - 1);
+            runners.add(node);
+            node = node.right;
         }
+        return runners;
+    }
 
-        avgTree.addRunnerAvg(id, runnerNode.avgRunTime);
-        minTree.addRunnerMin(id, runnerNode.minRunTime);
+    long startTimer() {
+        return metrics == null ? 0 : System.nanoTime();
     }
 
-    public RunnerID getFastestRunnerAvg() {
-        // Check if the race has been initialized
-        if (!initialized) {
-            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
-        }
-        if (fastestRunnerByAvg == null) {
-            throw new IllegalArgumentException("No runners in the race.");
+    void record(RaceMetrics.Operation operation, long start) {
+        if (metrics != null) {
+            metrics.record(operation, System.nanoTime() - start);
         }
-        return fastestRunnerByAvg.id;
     }
 
-    public RunnerID getFastestRunnerMin() {
+    // Returns a read-only view of the race as it is now. Taking it is O(1): nodes written later
+    // keep their old fields for the snapshot until it is closed.
+    public RaceSnapshot snapshot() {
+        return snapshot(null);
+    }
+
+    RaceSnapshot snapshot(StampedLock lock) {
         // Check if the race has been initialized
         if (!initialized) {
             throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
         }
-        if (fastestRunnerByMin == null) {
-            throw new IllegalArgumentException("No runners in the race.");
-        }
-        return fastestRunnerByMin.id;
+        long version = clock.open();
+        return new RaceSnapshot(clock, version, lock, root, avgTree, avgTree.root, avgTree.first(),
+                minTree, minTree.root, minTree.first());
     }
 
-    public float getMinRun(RunnerID id) {
+    public void addRunner(RunnerID id) {
+        long start = startTimer();
         // Check if the race has been initialized
         if (!initialized) {
             throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
         }
-        // Find the node corresponding to the given ID
-        Node runnerNode = findNode(id, root);
-
-        // If the node doesn't exist, throw an exception
-        if (runnerNode == null) {
-            throw new IllegalArgumentException("Runner with ID " + id.toString() + " does not exist.");
+        // Check if the runner already exists
+        if (findNode(id) != null) {
+            throw new IllegalArgumentException("Runner with ID " + id.toString() + " already exists.");
         }
 
-        // If the runner has no runs, return Float.MAX_VALUE
-        if (runnerNode.numRuns == 0) {
-            return Float.MAX_VALUE;
+        ChangeReport report = listener == null ? null : new ChangeReport(null);
+        Node newNode = new Node(id);
+        newNode.version = clock.epoch;
+
+        insert(newNode);
+        if (id instanceof HashableRunnerID) {
+            index.put(id, newNode);
         }
 
-        // Return the minRunTime attribute of the runner's node
-        return runnerNode.minRunTime;
+        newNode.avgEntry = avgTree.addRunnerAvg(id, Float.MAX_VALUE);
+        newNode.minEntry = minTree.addRunnerMin(id, Float.MAX_VALUE);
+        if (form != null) {
+            startForm(newNode);
+        }
+        newNode.metricEntries = new FloatNode[scoreIndexes.size()];
+        for (ScoreIndex scoreIndex : scoreIndexes) {
+            newNode.metricEntries[scoreIndex.slot] = scoreIndex.tree.addRunner(id, scoreIndex.metric.score(newNode.runsTree));
+        }
+        if (report != null) {
+            report.report(newNode, true);
+        }
+        record(RaceMetrics.Operation.ADD_RUNNER, start);
     }
 
-    public float getAvgRun(RunnerID id) {
+    public void removeRunner(RunnerID id) {
+        long start = startTimer();
         // Check if the race has been initialized
         if (!initialized) {
             throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
         }
-        // Find the node corresponding to the given ID
-        Node runnerNode = findNode(id, root);
+        Node nodeToRemove = findNode(id);
 
-        // If the node doesn't exist, throw an exception
-        if (runnerNode == null) {
+        if (nodeToRemove == null) {
             throw new IllegalArgumentException("Runner with ID " + id.toString() + " does not exist.");
         }
 
-        // If the runner has no runs, return Float.MAX_VALUE
-        if (runnerNode.numRuns == 0) {
-            return Float.MAX_VALUE;
-        }
-
-        // Return the avgRunTime attribute of the runner's node
-        return runnerNode.avgRunTime;
-    }
-
-    private Node findNode(RunnerID id, Node node) {
-        if (node == null) {
-            return null; // Runner not found
+        ChangeReport report = listener == null ? null : new ChangeReport(nodeToRemove);
+        avgTree.unlink(nodeToRemove.avgEntry);
+        minTree.unlink(nodeToRemove.minEntry);
+        if (form != null) {
+            // Its runs left on the timeline are skipped once they expire, see advanceTime
+            windowAvgTree.unlink(nodeToRemove.windowAvgEntry);
+            windowMinTree.unlink(nodeToRemove.windowMinEntry);
+            nodeToRemove.window = null;
         }
-
-        if (id.isSmaller(node.id)) {
-            return findNode(id, node.left);
-        } else if (node.id.isSmaller(id)) {
-            return findNode(id, node.right);
-        } else {
-            return node; // Runner found
+        for (ScoreIndex scoreIndex : scoreIndexes) {
+            scoreIndex.tree.unlink(nodeToRemove.metricEntries[scoreIndex.slot]);
         }
-    }
-
-    private Node insert(Node node, Node newNode, int charIndex) {
-        if (node == null) {
-            node = newNode;
-        } else {
-            boolean isSmaller = newNode.id.isSmaller(node.id);
-
-            if (isSmaller) {
-                node.left = insert(node.left, newNode, charIndex);
-            } else {
-                boolean isLarger = node.id.isSmaller(newNode.id);
-                if (isLarger) {
-                    node.right = insert(node.right, newNode, charIndex);
-                } else {
-                    if (charIndex < newNode.id.toString().length() - 1) {
-                        node.middle = insert(node.middle, newNode, charIndex + 1);
-                    } else {
-                        // Check if the middle subtree has reached its limit
-                        if (node.middle != null && node.middle.left != null && node.middle.right != null) {
-                            // Split the middle subtree into two subtrees
-                            Node leftNode = new Node(node.middle.id);
-                            Node rightNode = new Node(node.middle.right.id);
-
-                            leftNode.left = node.middle.left;
-                            rightNode.left = node.middle.middle;
-                            rightNode.right = node.middle.right.right;
-
-                            node.middle = leftNode;
-                            node.middle.right = rightNode;
-                        }
-
-                        // Insert the new node into the middle subtree
-                        node.middle = insert(node.middle, newNode, charIndex + 1);
-                    }
+        if (runTimes != null) {
+            RunsForRunnerTree runs = nodeToRemove.runsTree;
+            for (int i = 0; i < runs.distinctRuns(); i++) {
+                for (int j = 0; j < runs.countAt(i); j++) {
+                    runTimes.removeRun(runs.timeAt(i));
                 }
             }
         }
-        return node;
-    }
 
-    private Node remove(Node node, RunnerID id, int charIndex) {
-        if (node == null) {
-            return null;
+        if (nodeToRemove.runsTree != null) {
+            nodeToRemove.runsTree = null;
         }
 
-        // Compare using isSmaller instead of directly comparing characters
-        boolean smaller = id.isSmaller(node.id);
-        boolean greater = node.id.isSmaller(id);
-
-        if (smaller) {
-            node.left = remove(node.left, id, charIndex);
-        } else if (greater) {
-            node.right = remove(node.right, id, charIndex);
-        } else {
-            if (charIndex < id.toString().length() - 1) {
-                node.middle = remove(node.middle, id, charIndex + 1);
-            } else {
-                // Node to be removed is found
-                if (node.left == null && node.right == null && node.middle == null) {
-                    // Case 1: Node is a leaf node
-                    return null;
-                } else if (node.left == null && node.right == null) {
-                    // Case 2: Node has only one child (middle)
-                    return node.middle;
-                } else if (node.middle == null && node.right == null) {
-                    // Case 2: Node has only one child (left)
-                    return node.left;
-                } else if (node.middle == null && node.left == null) {
-                    // Case 2: Node has only one child (right)
-                    return node.right;
-                } else {
-                    // Case 3: Node has two children
-                    Node successor = findSuccessor(node.right);
-                    node.id = successor.id;
-                    node.right = remove(node.right, successor.id, 0);
-                }
-            }
+        // Remove the node from the TST
+        remove(id);
+        if (id instanceof HashableRunnerID) {
+            index.remove(id);
         }
+        if (report != null) {
+            report.report(nodeToRemove, false);
+        }
+        record(RaceMetrics.Operation.REMOVE_RUNNER, start);
+    }
 
-        return node;
+    public void addRunToRunner(RunnerID id, float time) {
+        long start = startTimer();
+        applyRun(stageRun(id, time), time);
+        record(RaceMetrics.Operation.ADD_RUN, start);
     }
 
-    private Node findSuccessor(Node node) {
-        if (node.left == null) {
-            return node;
-        }
-        return findSuccessor(node.left);
+    // Adds a run that happened at timestamp. Timestamps must not go backwards, and the race's time
+    // moves on to timestamp first, see advanceTime. Runs added without a timestamp count as run at
+    // the race's current time.
+    public void addRunToRunner(RunnerID id, float time, long timestamp) {
+        long start = startTimer();
+        checkTimedRun(timestamp);
+        applyTimedRun(stageRun(id, time), time, timestamp);
+        record(RaceMetrics.Operation.ADD_RUN, start);
     }
 
-    private float calculateAverage(Node node) {
-        float avg = node.sumOfRunTimes / node.numRuns;
-        return avg;
+    // Checks made before a timed run is staged
+    void checkTimedRun(long timestamp) {
+        checkForm();
+        checkTimestamp(timestamp);
     }
 
-    private void updateFastestRunnerByAvg(Node node) {
-        if (node == null) {
-            return;
-        }
+    // Second half of the timed addRunToRunner. ConcurrentRace stages the run under its read lock,
+    // so form tracking or the race's time may have changed since: the checks are made again, and
+    // if they fail the staged run is taken back out before the exception is passed on.
+    void applyTimedRun(Node runnerNode, float time, long timestamp) {
+        try {
+            checkTimedRun(timestamp);
+        } catch (IllegalArgumentException e) {
+            runnerNode.runsTree.removeRun(time);
+            throw e;
+        }
+        expireRuns(timestamp);
+        applyRun(runnerNode, time);
+    }
 
-        // Compare the current node with the current fastest runner
-        if (node.avgRunTime < fastestRunnerByAvg.avgRunTime) {
-            fastestRunnerByAvg = node;
-        }
+    // Moves the race's time on to now, dropping every run now older than the window's maxAge from
+    // its runner's form. Each run is dropped once, so this is O(1) amortized per run plus
+    // O(log n) per runner whose form changed.
+    public void advanceTime(long now) {
+        checkForm();
+        checkTimestamp(now);
+        expireRuns(now);
+    }
 
-        // Recursively visit the left subtree if necessary
-        if (node.left != null && node.left.avgRunTime < fastestRunnerByAvg.avgRunTime) {
-            updateFastestRunnerByAvg(node.left);
+    private void checkForm() {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        if (form == null) {
+            throw new IllegalArgumentException("Form tracking is off. Call setFormWindow() first.");
         }
+    }
 
-        // Recursively visit the right subtree if necessary
-        if (node.right != null && node.right.avgRunTime < fastestRunnerByAvg.avgRunTime) {
-            updateFastestRunnerByAvg(node.right);
+    private void checkTimestamp(long timestamp) {
+        if (timestamp < currentStamp) {
+            throw new IllegalArgumentException("Timestamp " + timestamp + " is before the race's current time " + currentStamp + ".");
         }
     }
 
-    private void updateFastestRunnerByMin(Node node) {
-        if (node == null) {
+    private void expireRuns(long now) {
+        currentStamp = now;
+        if (timeline == null) {
             return;
         }
-
-        if (node.left != null && node.left.minRunTime < fastestRunnerByMin.minRunTime) {
-            fastestRunnerByMin = node.left;
+        ArrayList<Node> touched = new ArrayList<>();
+        IdentityHashMap<Node, Boolean> seen = new IdentityHashMap<>();
+        while (!timeline.isEmpty() && now - timeline.oldestStamp() >= form.maxAge) {
+            Node runner = timeline.oldestRunner();
+            long sequence = timeline.oldestSequence();
+            timeline.removeOldest();
+            // The run may have left the window already, pushed out by maxRuns or removed
+            RunWindow window = runner.window;
+            if (window != null && !window.isEmpty() && window.oldestSequence() == sequence) {
+                window.removeOldest();
+                if (seen.put(runner, Boolean.TRUE) == null) {
+                    touched.add(runner);
+                }
+            }
         }
+        updateFormScores(touched);
+    }
 
-        if (node.right != null && node.right.minRunTime < fastestRunnerByMin.minRunTime) {
-            fastestRunnerByMin = node.right;
+    private void addToForm(Node runnerNode, float time) {
+        long sequence = ++runSequence;
+        runnerNode.window.add(sequence, currentStamp, time);
+        if (timeline != null) {
+            timeline.add(runnerNode, sequence, currentStamp);
         }
-
-        updateFastestRunnerByMin(node.left);
-        updateFastestRunnerByMin(node.right);
     }
 
-    public int getRankAvg(RunnerID id) {
+    // First half of addRunToRunner: validates and touches nothing but the runner's own run tree,
+    // so it may run in parallel for different runners while queries read the race
+    Node stageRun(RunnerID id, float time) {
         // Check if the race has been initialized
         if (!initialized) {
             throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
         }
-        Node runnerNode = findNode(id, root);
+        // Find the node corresponding to the given ID
+        Node runnerNode = findNode(id);
+
+        // Check if the time is negative
+        if (time < 0) {
+            throw new IllegalArgumentException("Negative running time is not allowed.");
+        }
+        // NaN and infinite times would break the order of the run tree and the score trees
+        if (!Float.isFinite(time)) {
+            throw new IllegalArgumentException("Running time " + time + " is not a finite number.");
+        }
 
         // If the node doesn't exist, throw an exception
         if (runnerNode == null) {
             throw new IllegalArgumentException("Runner with ID " + id.toString() + " does not exist.");
         }
 
-        return getRankAvgHelper(runnerNode, avgTree.avgRoot) + 1;
+        runnerNode.runsTree.addRun(time);
+        return runnerNode;
     }
 
-    private int getRankAvgHelper(Node runnerNode, FloatNode node) {
-        if (node == null) {
-            return 0; // If the node is null, return 0
-        }
-
-        // Compare the runnerNode's average run time with the current node's average run time
-        int avgComparison = compareFloat(runnerNode.avgRunTime, node.avgRunTime);
-        if (avgComparison < 0) {
-            // If the runnerNode's average run time is smaller, recursively search in the left subtree
-            return getRankAvgHelper(runnerNode, node.left);
-        } else if (avgComparison > 0) {
-            // If the runnerNode's average run time is larger, recursively search in the right subtree
-            // Add the rank of the left subtree along with 1 (for the current node) and the rank of the right subtree
-            return 1 + sizeAvg(node.left) + getRankAvgHelper(runnerNode, node.right);
-        } else {
-            // If the average run times are equal, use secondary sorting by ID
-            boolean idComparison = runnerNode.id.isSmaller(node.id);
-            boolean idComparison2 = node.id.isSmaller(runnerNode.id);
-            if (idComparison) {
-                // If the runnerNode's ID is smaller, recursively search in the left subtree
-                return getRankAvgHelper(runnerNode, node.left);
-            } else if ((!idComparison) && (!idComparison2)) {
-                // If the IDs are equal, return the rank of the left subtree
-                return sizeAvg(node.left);
-            } else {
-                // If the runnerNode's ID is larger, recursively search in the right subtree
-                // Add the rank of the left subtree along with 1 (for the current node) and the rank of the right subtree
-                return 1 + sizeAvg(node.left) + getRankAvgHelper(runnerNode, node.right);
-            }
+    // Second half of addRunToRunner: updates the aggregates queries read and the score trees
+    void applyRun(Node runnerNode, float time) {
+        ChangeReport report = listener == null ? null : new ChangeReport(runnerNode);
+        addToAggregates(runnerNode, time);
+        if (form != null) {
+            addToForm(runnerNode, time);
+        }
+        if (runTimes != null) {
+            runTimes.addRun(time);
+        }
+        updateScores(runnerNode);
+        if (report != null) {
+            report.report(runnerNode, true);
         }
     }
 
-    public int getRankMin(RunnerID id) {
+    public void removeRunFromRunner(RunnerID id, float time) {
+        long start = startTimer();
+        applyRunRemoval(stageRunRemoval(id, time), time);
+        record(RaceMetrics.Operation.REMOVE_RUN, start);
+    }
+
+    // First half of removeRunFromRunner, only the runner's own run tree is changed
+    Node stageRunRemoval(RunnerID id, float time) {
         // Check if the race has been initialized
         if (!initialized) {
             throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
         }
-        Node runnerNode = findNode(id, root);
+        Node runnerNode = findNode(id);
+
+        // NaN and infinite times would break the order of the run tree and the score trees
+        if (!Float.isFinite(time)) {
+            throw new IllegalArgumentException("Running time " + time + " is not a finite number.");
+        }
 
         if (runnerNode == null) {
             throw new IllegalArgumentException("Runner with ID " + id.toString() + " does not exist.");
         }
 
-        return getRankMinHelper(runnerNode, minTree.minRoot) + 1;
+        removeFromRunsTree(runnerNode, time);
+        return runnerNode;
     }
 
-    private int getRankMinHelper(Node runnerNode, FloatNode node) {
-        if (node == null) {
-            return 0; // If the node is null, return 0
+    // Second half of removeRunFromRunner
+    void applyRunRemoval(Node runnerNode, float time) {
+        ChangeReport report = listener == null ? null : new ChangeReport(runnerNode);
+        removeFromAggregates(runnerNode, time);
+        if (form != null) {
+            runnerNode.window.remove(time, runnerNode.runsTree.countOf(time));
         }
-
-        // Compare the runnerNode's average run time with the current node's average run time
-        int minComparison = compareFloat(runnerNode.minRunTime, node.minRunTime);
-        if (minComparison < 0) {
-            return getRankMinHelper(runnerNode, node.left);
-        } else if (minComparison > 0) {
-            return 1 + sizeAvg(node.left) + getRankMinHelper(runnerNode, node.right);
-        } else {
-            // If the average run times are equal, use secondary sorting by ID
-            boolean idComparison = runnerNode.id.isSmaller(node.id);
-            boolean idComparison2 = node.id.isSmaller(runnerNode.id);
-            if (idComparison) {
-                // If the runnerNode's ID is smaller, recursively search in the left subtree
-                return getRankMinHelper(runnerNode, node.left);
-            } else if ((!idComparison) && (!idComparison2)) {
-                // If the IDs are equal, return the rank of the left subtree
-                return sizeAvg(node.left);
-            } else {
-                // If the runnerNode's ID is larger, recursively search in the right subtree
-                // Add the rank of the left subtree along with 1 (for the current node) and the rank of the right subtree
-                return 1 + sizeAvg(node.left) + getRankMinHelper(runnerNode, node.right);
-            }
+        if (runTimes != null) {
+            runTimes.removeRun(time);
+        }
+        updateScores(runnerNode);
+        if (report != null) {
+            report.report(runnerNode, true);
         }
     }
 
-    private int sizeAvg(FloatNode node) {
-        if (node == null) {
-            return 0; // If the node is null, return 0
+    public void addRunsBulk(RunResult[] results) {
+        RunnerID[] ids = new RunnerID[results.length];
+        float[] times = new float[results.length];
+        for (int i = 0; i < results.length; i++) {
+            ids[i] = results[i].id;
+            times[i] = results[i].time;
         }
-        // Recursively calculate the size of the left and right subtrees and add 1 for the current node
-        return 1 + sizeAvg(node.left) + sizeAvg(node.middle) + sizeAvg(node.right);
+        addRunsBulk(ids, times);
     }
 
-    private int compareFloat(float a, float b) {
-        final float epsilon = 0.000001f; // Define a small epsilon value for float comparison
-
-        // Calculate the difference between a and b
-        float diff = a - b;
-
-        // Check if the difference is within the epsilon range
-        if (diff > -epsilon && diff < epsilon) {
-            return 0; // a and b are considered equal within epsilon
-        } else if (diff < 0) {
-            return -1; // a is less than b
-        } else {
-            return 1; // a is greater than b
-        }
+    public void addRunsBulk(Iterable<RunResult> results) {
+        addRunsBulk(toArray(results));
     }
 
-    private FloatNode removeAvg(FloatNode node, RunnerID id) {
-        if (node == null) {
-            return null;
+    // Adds times[i] to runner ids[i] for every i. Each runner is moved in the AvgTree and MinTree
+    // once for the whole batch, no matter how many of its runs the batch contains.
+    public void addRunsBulk(RunnerID[] ids, float[] times) {
+        long start = startTimer();
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
         }
-        // Compare the average run time of the node with the target ID
-        float nodeAvg = node.avgRunTime;
-        float targetAvg = findNode(id, root).avgRunTime;
-
-        if (targetAvg < nodeAvg) {
-            node.left = removeAvg(node.left, id);
-        } else if (targetAvg > nodeAvg) {
-            node.right = removeAvg(node.right, id);
-        } else {
-            // If the average run time matches, check if the node matches the ID
-            if ((!node.id.isSmaller(id) && (!id.isSmaller(node.id)))) {
-                // Node to be removed is found
-                if (node.left == null && node.right == null && node.middle == null) {
-                    // Case 1: Node is a leaf node
-                    return null;
-                } else if (node.left == null && node.right == null) {
-                    // Case 2: Node has only one child (middle)
-                    return node.middle;
-                } else if (node.middle == null && node.right == null) {
-                    // Case 2: Node has only one child (left)
-                    return node.left;
-                } else if (node.middle == null && node.left == null) {
-                    // Case 2: Node has only one child (right)
-                    return node.right;
-                } else {
-                    // Case 3: Node has two children
-                    FloatNode successor = findSuccessorAvg(node.right);
-                    node.id = successor.id;
-                    node.avgRunTime = successor.avgRunTime;
-                    node.right = removeAvg(node.right, successor.id);
-                }
-            } else {
-                // If the ID doesn't match, continue searching in the appropriate subtree
-                if (targetAvg < nodeAvg) {
-                    node.left = removeAvg(node.left, id);
-                } else {
-                    node.right = removeAvg(node.right, id);
-                }
-            }
+        if (ids.length != times.length) {
+            throw new IllegalArgumentException("Got " + ids.length + " runner IDs but " + times.length + " run times.");
         }
 
-        return node;
-    }
-
-    private FloatNode removeMin(FloatNode node, RunnerID id) {
-        if (node == null) {
-            return null;
+        // Validate the whole batch first so a bad entry leaves the race unchanged
+        Node[] runnerNodes = new Node[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            if (times[i] < 0) {
+                throw new IllegalArgumentException("Negative running time is not allowed.");
+            }
+            if (!Float.isFinite(times[i])) {
+                throw new IllegalArgumentException("Running time " + times[i] + " is not a finite number.");
+            }
+            runnerNodes[i] = findNode(ids[i]);
+            if (runnerNodes[i] == null) {
+                throw new IllegalArgumentException("Runner with ID " + ids[i].toString() + " does not exist.");
+            }
         }
-        // Compare the min run time of the node with the target ID
-        float nodeMin = node.minRunTime;
-        float targetMin = findNode(id, root).minRunTime;
 
-        if (targetMin < nodeMin) {
-            node.left = removeMin(node.left, id);
-        } else if (targetMin > nodeMin) {
-            node.right = removeMin(node.right, id);
-        } else {
-            if ((!node.id.isSmaller(id) && (!id.isSmaller(node.id)))) {
-                // Node to be removed is found
-                if (node.left == null && node.right == null && node.middle == null) {
-                    // Case 1: Node is a leaf node
-                    return null;
-                } else if (node.left == null && node.right == null) {
-                    // Case 2: Node has only one child (middle)
-                    return node.middle;
-                } else if (node.middle == null && node.right == null) {
-                    // Case 2: Node has only one child (left)
-                    return node.left;
-                } else if (node.middle == null && node.left == null) {
-                    // Case 2: Node has only one child (right)
-                    return node.right;
-                } else {
-                    // Case 3: Node has two children
-                    FloatNode successor = findSuccessorAvg(node.right);
-                    node.id = successor.id;
-                    node.minRunTime = successor.minRunTime;
-                    node.right = removeMin(node.right, successor.id);
-                }
-            } else {
-                // If the ID doesn't match, continue searching in the appropriate subtree
-                if (targetMin < nodeMin) {
-                    node.left = removeMin(node.left, id);
-                } else {
-                    node.right = removeMin(node.right, id);
+        ArrayList<Node> touched = new ArrayList<>();
+        IdentityHashMap<Node, Boolean> seen = new IdentityHashMap<>();
+        BulkChangeReport report = listener == null ? null : new BulkChangeReport();
+        for (int i = 0; i < ids.length; i++) {
+            if (seen.put(runnerNodes[i], Boolean.TRUE) == null) {
+                touched.add(runnerNodes[i]);
+                if (report != null) {
+                    report.watch(runnerNodes[i]);
                 }
             }
+            recordRun(runnerNodes[i], times[i]);
         }
-
-        return node;
+        updateScores(touched);
+        if (report != null) {
+            report.report(touched);
+        }
+        record(RaceMetrics.Operation.ADD_RUNS_BULK, start);
     }
 
-    private FloatNode findSuccessorAvg(FloatNode node) {
-        if (node.left == null) {
-            return node;
+    public void removeRunsBulk(RunResult[] results) {
+        RunnerID[] ids = new RunnerID[results.length];
+        float[] times = new float[results.length];
+        for (int i = 0; i < results.length; i++) {
+            ids[i] = results[i].id;
+            times[i] = results[i].time;
         }
-        return findSuccessorAvg(node.left);
+        removeRunsBulk(ids, times);
     }
 
-    private FloatNode removeRun(FloatNode node, float time) {
-        if (node == null) {
-            return null; // If the current node is null, return null
+    public void removeRunsBulk(Iterable<RunResult> results) {
+        removeRunsBulk(toArray(results));
+    }
+
+    // Removes times[i] from runner ids[i] for every i, moving each runner in the score trees once.
+    // If a run is missing the runs before it stay removed and the exception is rethrown.
+    public void removeRunsBulk(RunnerID[] ids, float[] times) {
+        long start = startTimer();
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        if (ids.length != times.length) {
+            throw new IllegalArgumentException("Got " + ids.length + " runner IDs but " + times.length + " run times.");
+        }
+
+        Node[] runnerNodes = new Node[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            if (!Float.isFinite(times[i])) {
+                throw new IllegalArgumentException("Running time " + times[i] + " is not a finite number.");
+            }
+            runnerNodes[i] = findNode(ids[i]);
+            if (runnerNodes[i] == null) {
+                throw new IllegalArgumentException("Runner with ID " + ids[i].toString() + " does not exist.");
+            }
+        }
+
+        ArrayList<Node> touched = new ArrayList<>();
+        IdentityHashMap<Node, Boolean> seen = new IdentityHashMap<>();
+        BulkChangeReport report = listener == null ? null : new BulkChangeReport();
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                if (seen.put(runnerNodes[i], Boolean.TRUE) == null) {
+                    touched.add(runnerNodes[i]);
+                    if (report != null) {
+                        report.watch(runnerNodes[i]);
+                    }
+                }
+                eraseRun(runnerNodes[i], times[i]);
+            }
+        } finally {
+            updateScores(touched);
+            if (report != null) {
+                report.report(touched);
+            }
+        }
+        record(RaceMetrics.Operation.REMOVE_RUNS_BULK, start);
+    }
+
+    private RunResult[] toArray(Iterable<RunResult> results) {
+        ArrayList<RunResult> list = new ArrayList<>();
+        for (RunResult result : results) {
+            list.add(result);
+        }
+        return list.toArray(new RunResult[0]);
+    }
+
+    // Adds a run to the runner's own data, the caller moves the runner in the score trees
+    private void recordRun(Node runnerNode, float time) {
+        runnerNode.runsTree.addRun(time);
+        addToAggregates(runnerNode, time);
+        if (form != null) {
+            addToForm(runnerNode, time);
+        }
+        if (runTimes != null) {
+            runTimes.addRun(time);
+        }
+    }
+
+    private void addToAggregates(Node runnerNode, float time) {
+        touch(runnerNode);
+        // Increment numRuns for the runner
+        runnerNode.numRuns++;
+        addToSum(runnerNode, time);
+
+        // Update minRunTime if the newly added time is smaller
+        if (time < runnerNode.minRunTime) {
+            runnerNode.minRunTime = time;
+        }
+
+        // Update avgRunTime
+        runnerNode.avgRunTime = calculateAverage(runnerNode);
+    }
+
+    // Removes a run from the runner's own data, the caller moves the runner in the score trees
+    private void eraseRun(Node runnerNode, float time) {
+        removeFromRunsTree(runnerNode, time);
+        removeFromAggregates(runnerNode, time);
+        if (form != null) {
+            runnerNode.window.remove(time, runnerNode.runsTree.countOf(time));
+        }
+        if (runTimes != null) {
+            runTimes.removeRun(time);
         }
+    }
 
-        if (time < node.time) {
-            // If the target run time is smaller than the current node's time, search in the left subtree
-            node.left = removeRun(node.left, time);
-        } else if (time > node.time) {
-            // If the target run time is larger than the current node's time, search in the right subtree
-            node.right = removeRun(node.right, time);
+    private void removeFromRunsTree(Node runnerNode, float time) {
+        if (!runnerNode.runsTree.removeRun(time)) {
+            throw new IllegalArgumentException("Run time " + time + " not found for runner with ID " + runnerNode.id.toString());
+        }
+    }
+
+    private void removeFromAggregates(Node runnerNode, float time) {
+        touch(runnerNode);
+        // Check if the removed time was the minRunTime and update it if necessary
+        if (time == runnerNode.minRunTime) {
+            runnerNode.minRunTime = runnerNode.runsTree.minRun();
+        }
+
+        runnerNode.numRuns--;
+        if (runnerNode.numRuns == 0) {
+            // Start the next run from an exact zero instead of whatever error is left
+            runnerNode.sumOfRunTimes = 0.0;
+            runnerNode.sumCompensation = 0.0;
         } else {
-            // If the target run time matches the current node's time
-            if (node.middle != null && node.middle.time == time) {
-                // If the target run time is found in the middle subtree, remove it
-                node.middle = null;
+            addToSum(runnerNode, -time);
+        }
+        runnerNode.avgRunTime = calculateAverage(runnerNode);
+    }
+
+    // Neumaier summation: the rounding error of every addition is collected in sumCompensation, so
+    // the average depends on which runs the runner has and not on the order they came and went in
+    private void addToSum(Node runnerNode, double time) {
+        double sum = runnerNode.sumOfRunTimes + time;
+        if (Math.abs(runnerNode.sumOfRunTimes) >= Math.abs(time)) {
+            runnerNode.sumCompensation += (runnerNode.sumOfRunTimes - sum) + time;
+        } else {
+            runnerNode.sumCompensation += (time - sum) + runnerNode.sumOfRunTimes;
+        }
+        runnerNode.sumOfRunTimes = sum;
+    }
+
+    public RunnerID getFastestRunnerAvg() {
+        long start = startTimer();
+        RunnerID fastest = fastestRunnerAvg();
+        record(RaceMetrics.Operation.FASTEST_AVG, start);
+        return fastest;
+    }
+
+    // getFastestRunnerAvg without the timing, for ConcurrentRace to time a read it may retry
+    RunnerID fastestRunnerAvg() {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        // The AvgTree caches its leftmost node, which is the fastest runner by average
+        FloatNode fastest = avgTree.first();
+        if (fastest == null) {
+            throw new IllegalArgumentException("No runners in the race.");
+        }
+        return fastest.id;
+    }
+
+    public RunnerID getFastestRunnerMin() {
+        long start = startTimer();
+        RunnerID fastest = fastestRunnerMin();
+        record(RaceMetrics.Operation.FASTEST_MIN, start);
+        return fastest;
+    }
+
+    // getFastestRunnerMin without the timing, for ConcurrentRace to time a read it may retry
+    RunnerID fastestRunnerMin() {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        // The MinTree caches its leftmost node, which is the fastest runner by minimum
+        FloatNode fastest = minTree.first();
+        if (fastest == null) {
+            throw new IllegalArgumentException("No runners in the race.");
+        }
+        return fastest.id;
+    }
+
+    // The fastest runner by average with that average as its time, or null if the race has no
+    // runners. For callers such as LocalRaceShard to which an empty race is not an error.
+    public RunResult getFastestResultAvg() {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        FloatNode fastest = avgTree.first();
+        return fastest == null ? null : new RunResult(fastest.id, avgTree.key(fastest));
+    }
+
+    public RunResult getFastestResultMin() {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        FloatNode fastest = minTree.first();
+        return fastest == null ? null : new RunResult(fastest.id, minTree.key(fastest));
+    }
+
+    public boolean hasRunner(RunnerID id) {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        return findNode(id) != null;
+    }
+
+    public float getMinRun(RunnerID id) {
+        long start = startTimer();
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        // Find the node corresponding to the given ID
+        Node runnerNode = findNode(id);
+
+        // If the node doesn't exist, throw an exception
+        if (runnerNode == null) {
+            throw new IllegalArgumentException("Runner with ID " + id.toString() + " does not exist.");
+        }
+
+        // If the runner has no runs, return Float.MAX_VALUE
+        if (runnerNode.numRuns == 0) {
+            record(RaceMetrics.Operation.MIN_RUN, start);
+            return Float.MAX_VALUE;
+        }
+
+        // Return the minRunTime attribute of the runner's node
+        record(RaceMetrics.Operation.MIN_RUN, start);
+        return runnerNode.minRunTime;
+    }
+
+    public float getAvgRun(RunnerID id) {
+        long start = startTimer();
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        // Find the node corresponding to the given ID
+        Node runnerNode = findNode(id);
+
+        // If the node doesn't exist, throw an exception
+        if (runnerNode == null) {
+            throw new IllegalArgumentException("Runner with ID " + id.toString() + " does not exist.");
+        }
+
+        // If the runner has no runs, return Float.MAX_VALUE
+        if (runnerNode.numRuns == 0) {
+            record(RaceMetrics.Operation.AVG_RUN, start);
+            return Float.MAX_VALUE;
+        }
+
+        // Return the avgRunTime attribute of the runner's node
+        record(RaceMetrics.Operation.AVG_RUN, start);
+        return runnerNode.avgRunTime;
+    }
+
+    // The runner's median run, see RunsForRunnerTree.medianRun, or Float.MAX_VALUE if it has no
+    // runs. O(log r) in the runner's r runs. addScoreIndex with RunnerMetric.median() ranks every
+    // runner by it.
+    public float getMedianRun(RunnerID id) {
+        return runsOf(id).medianRun();
+    }
+
+    // The runner's run at percentile p in (0, 1] by nearest rank, or Float.MAX_VALUE if it has no runs
+    public float getPercentileRun(RunnerID id, double p) {
+        return runsOf(id).percentileRun(p);
+    }
+
+    // The runner's k'th fastest run, k from 1 to its number of runs
+    public float getKthBestRun(RunnerID id, int k) {
+        return runsOf(id).kthRun(k);
+    }
+
+    // Number of runs in the whole race faster than time, O(log d) in the d distinct run times
+    public long countRunsBelow(float time) {
+        return runTimeIndex().countBelow(time);
+    }
+
+    // The run at percentile p in (0, 1] of all runs in the race by nearest rank, or Float.MAX_VALUE
+    // if there are none
+    public float getRunPercentile(double p) {
+        return runTimeIndex().percentileRun(p);
+    }
+
+    // Counts of all runs in the race between ascending bounds, see RunTimeIndex.histogram
+    public long[] runHistogram(float[] bounds) {
+        return runTimeIndex().histogram(bounds);
+    }
+
+    private RunTimeIndex runTimeIndex() {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        if (runTimes == null) {
+            throw new IllegalArgumentException("The run time index is off. Call setRunTimeIndex(true) first.");
+        }
+        return runTimes;
+    }
+
+    private RunsForRunnerTree runsOf(RunnerID id) {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        Node runnerNode = findNode(id);
+
+        // If the node doesn't exist, throw an exception
+        if (runnerNode == null) {
+            throw new IllegalArgumentException("Runner with ID " + id.toString() + " does not exist.");
+        }
+        return runnerNode.runsTree;
+    }
+
+    private Node findNode(RunnerID id) {
+        // IDs with a hash consistent with isSmaller are found in O(1) expected time
+        if (id instanceof HashableRunnerID) {
+            return index.get(id);
+        }
+        Node node = root;
+        int hops = 0;
+        while (node != null) {
+            hops++;
+            if (id.isSmaller(node.id)) {
+                node = node.left;
+            } else if (node.id.isSmaller(id)) {
+                node = node.right;
             } else {
-                // If the target run time is not found in the middle subtree, remove the node itself
-                // Case 1: Node is a leaf node
-                if (node.left == null && node.right == null) {
-                    return null;
-                }
-                // Case 2: Node has only one child (middle)
-                else if (node.left == null && node.right == null) {
-                    return node.middle;
-                }
-                // Case 2: Node has only one child (left)
-                else if (node.middle == null && node.right == null) {
-                    return node.left;
-                }
-                // Case 2: Node has only one child (right)
-                else if (node.middle == null && node.left == null) {
-                    return node.right;
-                }
-                // Case 3: Node has two children
-                else {
-                    // Find the successor in the right subtree
-                    FloatNode successor = findSuccessorAvg(node.right);
-                    // Replace the current node's ID and time with the successor's ID and time
-                    node.id = successor.id;
-                    node.time = successor.time;
-                    // Remove the successor from the right subtree
-                    node.right = removeRun(node.right, successor.time);
-                }
+                break; // Runner found
             }
         }
+        if (metrics != null) {
+            metrics.recordTreeLookup(hops);
+        }
+        return node; // Null if the runner was not found
+    }
+
+    // Finds a runner in the ID tree as it was at a snapshot version
+    static Node findNodeAt(RunnerID id, Node root, long version) {
+        Node node = nodeAt(root, version);
+        while (node != null) {
+            if (id.isSmaller(node.id)) {
+                node = nodeAt(node.left, version);
+            } else if (node.id.isSmaller(id)) {
+                node = nodeAt(node.right, version);
+            } else {
+                return node;
+            }
+        }
+        return null;
+    }
 
+    // This node as it was at the given snapshot version
+    static Node nodeAt(Node node, long version) {
+        while (node != null && node.version > version) {
+            node = node.prior;
+        }
         return node;
     }
 
-    private FloatNode findMinRun(FloatNode node) {
+    // Must run before any field a snapshot reads is written, see SnapshotClock
+    private void touch(Node node) {
+        if (node.version == clock.epoch) {
+            return;
+        }
+        if (clock.hasOpenSnapshots()) {
+            node.prior = new Node(node);
+            // Versions older than the one the oldest open snapshot sees can no longer be read
+            long oldest = clock.oldestOpen();
+            Node kept = node.prior;
+            while (kept != null && kept.version > oldest) {
+                kept = kept.prior;
+            }
+            if (kept != null) {
+                kept.prior = null;
+            }
+        } else {
+            node.prior = null;
+        }
+        node.version = clock.epoch;
+    }
+
+    // The ID tree has no parent pointers, so insert and remove record the path they walk down
+    // and relink it bottom up. Loops instead of recursion keep deep trees off the call stack.
+    private void insert(Node newNode) {
+        ArrayList<Node> path = new ArrayList<>();
+        ArrayList<Boolean> wentLeft = new ArrayList<>();
+        Node node = root;
+        while (node != null) {
+            boolean left = newNode.id.isSmaller(node.id);
+            path.add(node);
+            wentLeft.add(left);
+            node = left ? node.left : node.right;
+        }
+        relinkUp(path, wentLeft, newNode);
+    }
+
+    private void remove(RunnerID id) {
+        ArrayList<Node> path = new ArrayList<>();
+        ArrayList<Boolean> wentLeft = new ArrayList<>();
+        Node node = root;
+        while (node != null) {
+            if (id.isSmaller(node.id)) {
+                path.add(node);
+                wentLeft.add(true);
+                node = node.left;
+            } else if (node.id.isSmaller(id)) {
+                path.add(node);
+                wentLeft.add(false);
+                node = node.right;
+            } else {
+                break;
+            }
+        }
         if (node == null) {
-            return null;
+            return;
+        }
+
+        // Node to be removed is found
+        Node replacement;
+        if (node.left == null) {
+            replacement = node.right;
+        } else if (node.right == null) {
+            replacement = node.left;
+        } else {
+            // Node has two children, the successor node takes its place so the index stays valid
+            ArrayList<Node> successorPath = new ArrayList<>();
+            Node successor = node.right;
+            while (successor.left != null) {
+                successorPath.add(successor);
+                successor = successor.left;
+            }
+            Node right = successor.right;
+            for (int i = successorPath.size() - 1; i >= 0; i--) {
+                Node ancestor = successorPath.get(i);
+                touch(ancestor);
+                ancestor.left = right;
+                right = rebalance(ancestor);
+            }
+            touch(successor);
+            successor.right = right;
+            successor.left = node.left;
+            replacement = rebalance(successor);
+        }
+        relinkUp(path, wentLeft, replacement);
+    }
+
+    // Hangs subtree where the walk down path ended, then rebalances every node on the path bottom up
+    private void relinkUp(ArrayList<Node> path, ArrayList<Boolean> wentLeft, Node subtree) {
+        for (int i = path.size() - 1; i >= 0; i--) {
+            Node node = path.get(i);
+            touch(node);
+            if (wentLeft.get(i)) {
+                node.left = subtree;
+            } else {
+                node.right = subtree;
+            }
+            subtree = rebalance(node);
+        }
+        root = subtree;
+    }
+
+    private int height(Node node) {
+        return node == null ? 0 : node.height;
+    }
+
+    private Node rotateRight(Node node) {
+        Node pivot = node.left;
+        touch(node);
+        touch(pivot);
+        node.left = pivot.right;
+        pivot.right = node;
+        node.height = 1 + Math.max(height(node.left), height(node.right));
+        pivot.height = 1 + Math.max(height(pivot.left), height(pivot.right));
+        return pivot;
+    }
+
+    private Node rotateLeft(Node node) {
+        Node pivot = node.right;
+        touch(node);
+        touch(pivot);
+        node.right = pivot.left;
+        pivot.left = node;
+        node.height = 1 + Math.max(height(node.left), height(node.right));
+        pivot.height = 1 + Math.max(height(pivot.left), height(pivot.right));
+        return pivot;
+    }
+
+    // Keeps the ID tree balanced (AVL) so the ordered fallback lookup is O(log n)
+    private Node rebalance(Node node) {
+        touch(node);
+        node.height = 1 + Math.max(height(node.left), height(node.right));
+        int balance = height(node.left) - height(node.right);
+        if (balance > 1) {
+            if (height(node.left.left) < height(node.left.right)) {
+                node.left = rotateLeft(node.left);
+            }
+            return rotateRight(node);
         }
-        // Traverse to the leftmost node to find the minimum run time
-        while (node.left != null) {
-            node = node.left;
+        if (balance < -1) {
+            if (height(node.right.right) < height(node.right.left)) {
+                node.right = rotateRight(node.right);
+            }
+            return rotateLeft(node);
         }
         return node;
     }
 
+    // Moves the runner's own entries in the AvgTree and MinTree, nothing is searched or allocated
+    private void updateScores(Node node) {
+        avgTree.setScore(node.avgEntry, node.avgRunTime);
+        avgTree.reposition(node.avgEntry);
+        minTree.setScore(node.minEntry, node.minRunTime);
+        minTree.reposition(node.minEntry);
+        if (form != null) {
+            windowAvgTree.setScore(node.windowAvgEntry, node.window.average());
+            windowAvgTree.reposition(node.windowAvgEntry);
+            windowMinTree.setScore(node.windowMinEntry, node.window.min());
+            windowMinTree.reposition(node.windowMinEntry);
+        }
+        for (ScoreIndex scoreIndex : scoreIndexes) {
+            if (rescore(scoreIndex, node)) {
+                scoreIndex.tree.reposition(node.metricEntries[scoreIndex.slot]);
+            }
+        }
+    }
+
+    private void updateScores(ArrayList<Node> nodes) {
+        ArrayList<FloatNode> avgEntries = new ArrayList<>(nodes.size());
+        ArrayList<FloatNode> minEntries = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            avgTree.setScore(node.avgEntry, node.avgRunTime);
+            avgEntries.add(node.avgEntry);
+            minTree.setScore(node.minEntry, node.minRunTime);
+            minEntries.add(node.minEntry);
+        }
+        avgTree.repositionAll(avgEntries);
+        minTree.repositionAll(minEntries);
+        if (form != null) {
+            updateFormScores(nodes);
+        }
+        for (ScoreIndex scoreIndex : scoreIndexes) {
+            ArrayList<FloatNode> changed = new ArrayList<>();
+            for (Node node : nodes) {
+                if (rescore(scoreIndex, node)) {
+                    changed.add(node.metricEntries[scoreIndex.slot]);
+                }
+            }
+            if (!changed.isEmpty()) {
+                scoreIndex.tree.repositionAll(changed);
+            }
+        }
+    }
+
+    // Sets the runner's new score in scoreIndex, returns false when it did not change
+    private boolean rescore(ScoreIndex scoreIndex, Node node) {
+        FloatNode entry = node.metricEntries[scoreIndex.slot];
+        float score = scoreIndex.metric.score(node.runsTree);
+        if (Float.compare(score, scoreIndex.tree.key(entry)) == 0) {
+            return false;
+        }
+        scoreIndex.tree.setScore(entry, score);
+        return true;
+    }
+
+    private void updateFormScores(ArrayList<Node> nodes) {
+        ArrayList<FloatNode> avgEntries = new ArrayList<>(nodes.size());
+        ArrayList<FloatNode> minEntries = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            windowAvgTree.setScore(node.windowAvgEntry, node.window.average());
+            avgEntries.add(node.windowAvgEntry);
+            windowMinTree.setScore(node.windowMinEntry, node.window.min());
+            minEntries.add(node.windowMinEntry);
+        }
+        windowAvgTree.repositionAll(avgEntries);
+        windowMinTree.repositionAll(minEntries);
+    }
+
+    // Listener bookkeeping for a change to one runner: what the race looked like before it. The
+    // runner is null when it is about to be added.
+    private class ChangeReport {
+        private final FloatNode fastestAvg = avgTree.first();
+        private final FloatNode fastestMin = minTree.first();
+        private final float minBefore;
+        private final float avgBefore;
+        private final int avgRankBefore; // 1-based, 0 if the runner was not in the race
+        private final int minRankBefore;
+
+        ChangeReport(Node runner) {
+            this.minBefore = runner == null ? Float.MAX_VALUE : runner.minRunTime;
+            this.avgBefore = runner == null ? Float.MAX_VALUE : runner.avgRunTime;
+            this.avgRankBefore = runner == null ? 0 : topRank(avgTree, runner.avgEntry);
+            this.minRankBefore = runner == null ? 0 : topRank(minTree, runner.minEntry);
+        }
+
+        // inRace is false when the change removed the runner
+        void report(Node runner, boolean inRace) {
+            if (inRace) {
+                reportValues(runner, minBefore, avgBefore);
+            }
+            // Only this runner moved, so at most one other runner crosses the threshold the other way
+            reportCrossing(avgTree, runner.id, avgRankBefore, inRace ? topRank(avgTree, runner.avgEntry) : 0,
+                    RaceEvent.Type.ENTERED_TOP_AVG, RaceEvent.Type.LEFT_TOP_AVG);
+            reportCrossing(minTree, runner.id, minRankBefore, inRace ? topRank(minTree, runner.minEntry) : 0,
+                    RaceEvent.Type.ENTERED_TOP_MIN, RaceEvent.Type.LEFT_TOP_MIN);
+            reportFastest(fastestAvg, fastestMin);
+        }
+    }
+
+    // Listener bookkeeping for a bulk change. Every runner the change touches is watched before it
+    // changes, and the ranks above the threshold are compared as a whole since many runners move.
+    private class BulkChangeReport {
+        private final FloatNode fastestAvg = avgTree.first();
+        private final FloatNode fastestMin = minTree.first();
+        private final ArrayList<FloatNode> topAvg = top(avgTree);
+        private final ArrayList<FloatNode> topMin = top(minTree);
+        private float[] minBefore = new float[16]; // In the order runners were watched
+        private float[] avgBefore = new float[16];
+        private int watched = 0;
+
+        void watch(Node runner) {
+            if (watched == minBefore.length) {
+                minBefore = Arrays.copyOf(minBefore, watched * 2);
+                avgBefore = Arrays.copyOf(avgBefore, watched * 2);
+            }
+            minBefore[watched] = runner.minRunTime;
+            avgBefore[watched] = runner.avgRunTime;
+            watched++;
+        }
+
+        // runners are the watched runners, in the same order
+        void report(ArrayList<Node> runners) {
+            for (int i = 0; i < watched; i++) {
+                reportValues(runners.get(i), minBefore[i], avgBefore[i]);
+            }
+            reportTopChanges(avgTree, topAvg, RaceEvent.Type.ENTERED_TOP_AVG, RaceEvent.Type.LEFT_TOP_AVG);
+            reportTopChanges(minTree, topMin, RaceEvent.Type.ENTERED_TOP_MIN, RaceEvent.Type.LEFT_TOP_MIN);
+            reportFastest(fastestAvg, fastestMin);
+        }
+    }
+
+    // The entry's 1-based rank, or 0 when no threshold is set and ranks are not needed
+    private int topRank(ScoreTree tree, FloatNode entry) {
+        return topThreshold == 0 ? 0 : tree.rank(entry) + 1;
+    }
+
+    // The entries of the first topThreshold ranks in rank order
+    private ArrayList<FloatNode> top(ScoreTree tree) {
+        ArrayList<FloatNode> top = new ArrayList<>(topThreshold);
+        for (FloatNode node = tree.first(); node != null && top.size() < topThreshold; node = ScoreTree.successor(node)) {
+            top.add(node);
+        }
+        return top;
+    }
+
+    private void reportValues(Node runner, float minBefore, float avgBefore) {
+        if (runner.minRunTime != minBefore) {
+            listener.onEvent(RaceEvent.valueChanged(RaceEvent.Type.MIN_CHANGED, runner.id, minBefore, runner.minRunTime));
+        }
+        if (runner.avgRunTime != avgBefore) {
+            listener.onEvent(RaceEvent.valueChanged(RaceEvent.Type.AVG_CHANGED, runner.id, avgBefore, runner.avgRunTime));
+        }
+    }
+
+    // Ranks are 1-based and 0 means not in the race. When one runner moves into the first
+    // topThreshold ranks the runner pushed down to topThreshold + 1 leaves them, and when one moves
+    // out the runner now at topThreshold enters them.
+    private void reportCrossing(ScoreTree tree, RunnerID id, int rankBefore, int rankAfter, RaceEvent.Type entered,
+                                RaceEvent.Type left) {
+        boolean wasIn = rankBefore > 0 && rankBefore <= topThreshold;
+        boolean isIn = rankAfter > 0 && rankAfter <= topThreshold;
+        if (!wasIn && isIn) {
+            listener.onEvent(RaceEvent.rankCrossed(entered, id, rankAfter));
+            if (tree.size() > topThreshold) {
+                listener.onEvent(RaceEvent.rankCrossed(left, tree.select(topThreshold).id, topThreshold + 1));
+            }
+        } else if (wasIn && !isIn) {
+            listener.onEvent(RaceEvent.rankCrossed(left, id, rankAfter));
+            if (tree.size() >= topThreshold) {
+                listener.onEvent(RaceEvent.rankCrossed(entered, tree.select(topThreshold - 1).id, topThreshold));
+            }
+        }
+    }
+
+    private void reportTopChanges(ScoreTree tree, ArrayList<FloatNode> before, RaceEvent.Type entered,
+                                  RaceEvent.Type left) {
+        ArrayList<FloatNode> after = top(tree);
+        IdentityHashMap<FloatNode, Boolean> wasIn = new IdentityHashMap<>();
+        for (FloatNode node : before) {
+            wasIn.put(node, Boolean.TRUE);
+        }
+        IdentityHashMap<FloatNode, Boolean> isIn = new IdentityHashMap<>();
+        for (FloatNode node : after) {
+            isIn.put(node, Boolean.TRUE);
+        }
+        for (FloatNode node : before) {
+            if (!isIn.containsKey(node)) {
+                listener.onEvent(RaceEvent.rankCrossed(left, node.id, tree.rank(node) + 1));
+            }
+        }
+        for (int i = 0; i < after.size(); i++) {
+            if (!wasIn.containsKey(after.get(i))) {
+                listener.onEvent(RaceEvent.rankCrossed(entered, after.get(i).id, i + 1));
+            }
+        }
+    }
+
+    private void reportFastest(FloatNode avgBefore, FloatNode minBefore) {
+        FloatNode avgAfter = avgTree.first();
+        if (avgAfter != avgBefore) {
+            listener.onEvent(RaceEvent.fastestChanged(RaceEvent.Type.FASTEST_AVG_CHANGED,
+                    avgAfter == null ? null : avgAfter.id, avgBefore == null ? null : avgBefore.id));
+        }
+        FloatNode minAfter = minTree.first();
+        if (minAfter != minBefore) {
+            listener.onEvent(RaceEvent.fastestChanged(RaceEvent.Type.FASTEST_MIN_CHANGED,
+                    minAfter == null ? null : minAfter.id, minBefore == null ? null : minBefore.id));
+        }
+    }
+
+    private float calculateAverage(Node node) {
+        // A runner without runs is kept last in the AvgTree, NaN would break its ordering
+        if (node.numRuns == 0) {
+            return Float.MAX_VALUE;
+        }
+        float avg = (float) ((node.sumOfRunTimes + node.sumCompensation) / node.numRuns);
+        return avg;
+    }
+
+    public int getRankAvg(RunnerID id) {
+        long start = startTimer();
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        Node runnerNode = findNode(id);
+
+        // If the node doesn't exist, throw an exception
+        if (runnerNode == null) {
+            throw new IllegalArgumentException("Runner with ID " + id.toString() + " does not exist.");
+        }
+
+        int rank = avgTree.rank(runnerNode.avgEntry) + 1;
+        record(RaceMetrics.Operation.RANK_AVG, start);
+        return rank;
+    }
+
+    public int getRankMin(RunnerID id) {
+        long start = startTimer();
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        Node runnerNode = findNode(id);
+
+        if (runnerNode == null) {
+            throw new IllegalArgumentException("Runner with ID " + id.toString() + " does not exist.");
+        }
+
+        int rank = minTree.rank(runnerNode.minEntry) + 1;
+        record(RaceMetrics.Operation.RANK_MIN, start);
+        return rank;
+    }
+
+    // Number of runners the AvgTree orders before a runner with this average and ID, whether that
+    // runner is in the race or not. ShardedRace adds these up over its shards to rank a runner.
+    public int countBeforeAvg(float avg, RunnerID id) {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        return avgTree.rank(avg, id);
+    }
+
+    public int countBeforeMin(float min, RunnerID id) {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        return minTree.rank(min, id);
+    }
+
+    public RunnerID selectByRankAvg(int rank) {
+        long start = startTimer();
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        FloatNode node = avgTree.select(rank - 1);
+
+        if (node == null) {
+            throw new IllegalArgumentException("Rank " + rank + " is out of range.");
+        }
+        record(RaceMetrics.Operation.SELECT_AVG, start);
+        return node.id;
+    }
+
+    public RunnerID selectByRankMin(int rank) {
+        long start = startTimer();
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        FloatNode node = minTree.select(rank - 1);
+
+        if (node == null) {
+            throw new IllegalArgumentException("Rank " + rank + " is out of range.");
+        }
+        record(RaceMetrics.Operation.SELECT_MIN, start);
+        return node.id;
+    }
+
+    // The leaderboard queries below walk the score trees lazily from their first node, so reading
+    // k runners costs O(log n + k). The race must not be changed while a result is being iterated.
+
+    public Iterable<RunnerID> topKByAvg(int k) {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        checkCount(k);
+        return () -> avgTree.iterator(avgTree.first(), k, Float.POSITIVE_INFINITY);
+    }
+
+    public Iterable<RunnerID> topKByMin(int k) {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        checkCount(k);
+        return () -> minTree.iterator(minTree.first(), k, Float.POSITIVE_INFINITY);
+    }
+
+    public Iterable<RunnerID> runnersWithAvgBetween(float low, float high) {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        return () -> avgTree.iterator(avgTree.ceiling(low), Integer.MAX_VALUE, high);
+    }
+
+    public Iterable<RunnerID> runnersWithMinBetween(float low, float high) {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        return () -> minTree.iterator(minTree.ceiling(low), Integer.MAX_VALUE, high);
+    }
+
+    // Runners ranked offset + 1 to offset + limit by average
+    public Iterable<RunnerID> pageByAvg(int offset, int limit) {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        checkCount(offset);
+        checkCount(limit);
+        return () -> avgTree.iterator(avgTree.select(offset), limit, Float.POSITIVE_INFINITY);
+    }
+
+    // Runners ranked offset + 1 to offset + limit by minimum
+    public Iterable<RunnerID> pageByMin(int offset, int limit) {
+        // Check if the race has been initialized
+        if (!initialized) {
+            throw new IllegalArgumentException("The race has not been initialized. Call init() before adding runners.");
+        }
+        checkCount(offset);
+        checkCount(limit);
+        return () -> minTree.iterator(minTree.select(offset), limit, Float.POSITIVE_INFINITY);
+    }
+
+    // The fastest run in the runner's form window, or Float.MAX_VALUE if the window is empty
+    public float getWindowedMin(RunnerID id) {
+        return formNode(id).window.min();
+    }
+
+    // The (decayed) average of the runner's form window, or Float.MAX_VALUE if the window is empty
+    public float getWindowedAvg(RunnerID id) {
+        return formNode(id).window.average();
+    }
+
+    public int getRankWindowedAvg(RunnerID id) {
+        return windowAvgTree.rank(formNode(id).windowAvgEntry) + 1;
+    }
+
+    public int getRankWindowedMin(RunnerID id) {
+        return windowMinTree.rank(formNode(id).windowMinEntry) + 1;
+    }
+
+    public RunnerID getFastestRunnerWindowedAvg() {
+        checkForm();
+        FloatNode fastest = windowAvgTree.first();
+        if (fastest == null) {
+            throw new IllegalArgumentException("No runners in the race.");
+        }
+        return fastest.id;
+    }
+
+    public RunnerID getFastestRunnerWindowedMin() {
+        checkForm();
+        FloatNode fastest = windowMinTree.first();
+        if (fastest == null) {
+            throw new IllegalArgumentException("No runners in the race.");
+        }
+        return fastest.id;
+    }
+
+    // The runner's score in scoreIndex, Float.MAX_VALUE if the metric cannot score it
+    public float getScore(ScoreIndex scoreIndex, RunnerID id) {
+        return scoreIndex.tree.key(scoreIndexNode(scoreIndex, id).metricEntries[scoreIndex.slot]);
+    }
+
+    public int getRank(ScoreIndex scoreIndex, RunnerID id) {
+        Node runnerNode = scoreIndexNode(scoreIndex, id);
+        return scoreIndex.tree.rank(runnerNode.metricEntries[scoreIndex.slot]) + 1;
+    }
+
+    public RunnerID selectByRank(ScoreIndex scoreIndex, int rank) {
+        checkScoreIndex(scoreIndex);
+        FloatNode node = scoreIndex.tree.select(rank - 1);
+
+        if (node == null) {
+            throw new IllegalArgumentException("Rank " + rank + " is out of range.");
+        }
+        return node.id;
+    }
+
+    public RunnerID getFastestRunner(ScoreIndex scoreIndex) {
+        checkScoreIndex(scoreIndex);
+        FloatNode fastest = scoreIndex.tree.first();
+        if (fastest == null) {
+            throw new IllegalArgumentException("No runners in the race.");
+        }
+        return fastest.id;
+    }
+
+    // Lazy like topKByAvg, the race must not be changed while the result is being iterated
+    public Iterable<RunnerID> topK(ScoreIndex scoreIndex, int k) {
+        checkScoreIndex(scoreIndex);
+        checkCount(k);
+        MetricTree tree = scoreIndex.tree;
+        return () -> tree.iterator(tree.first(), k, Float.POSITIVE_INFINITY);
+    }
+
+    private Node scoreIndexNode(ScoreIndex scoreIndex, RunnerID id) {
+        checkScoreIndex(scoreIndex);
+        Node runnerNode = findNode(id);
+        if (runnerNode == null) {
+            throw new IllegalArgumentException("Runner with ID " + id.toString() + " does not exist.");
+        }
+        return runnerNode;
+    }
+
+    private Node formNode(RunnerID id) {
+        checkForm();
+        Node runnerNode = findNode(id);
+        if (runnerNode == null) {
+            throw new IllegalArgumentException("Runner with ID " + id.toString() + " does not exist.");
+        }
+        return runnerNode;
+    }
+
+    private static void checkCount(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Negative count " + count + " is not allowed.");
+        }
+    }
+
+    // Every run in a form window in the order it was run, with its runner, so advanceTime finds the
+    // runs to drop in O(1) each. Kept as parallel ring buffers.
+    private static class RunTimeline {
+        private Node[] runners = new Node[16];
+        private long[] sequences = new long[16];
+        private long[] stamps = new long[16];
+        private int head = 0;
+        private int size = 0;
+
+        void add(Node runner, long sequence, long stamp) {
+            if (size == runners.length) {
+                Node[] biggerRunners = new Node[size * 2];
+                long[] biggerSequences = new long[size * 2];
+                long[] biggerStamps = new long[size * 2];
+                for (int i = 0; i < size; i++) {
+                    int slot = (head + i) % runners.length;
+                    biggerRunners[i] = runners[slot];
+                    biggerSequences[i] = sequences[slot];
+                    biggerStamps[i] = stamps[slot];
+                }
+                runners = biggerRunners;
+                sequences = biggerSequences;
+                stamps = biggerStamps;
+                head = 0;
+            }
+            int slot = (head + size) % runners.length;
+            runners[slot] = runner;
+            sequences[slot] = sequence;
+            stamps[slot] = stamp;
+            size++;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        Node oldestRunner() {
+            return runners[head];
+        }
+
+        long oldestSequence() {
+            return sequences[head];
+        }
+
+        long oldestStamp() {
+            return stamps[head];
+        }
+
+        void removeOldest() {
+            runners[head] = null; // Removed runners should not stay reachable from here
+            head = (head + 1) % runners.length;
+            size--;
+        }
+    }
 
-    private class Node {
+    class Node {
         RunnerID id;
-        Node left, middle, right;
+        Node left, right;
+        int height; // Height of the subtree rooted here in the ID tree
         RunsForRunnerTree runsTree;
-        float sumOfRunTimes; // Sum of run times
+        FloatNode avgEntry; // This runner's node in the AvgTree
+        FloatNode minEntry; // This runner's node in the MinTree
+        double sumOfRunTimes; // Sum of run times
+        double sumCompensation; // Rounding error sumOfRunTimes has lost so far, see addToSum
         float minRunTime; // Minimum run time
         float avgRunTime; // Average run time
         int numRuns; // Number of runs
+        long version; // Epoch of the last write, see SnapshotClock
+        Node prior; // The fields as they were before that write, kept for open snapshots
+        RunWindow window; // The runner's form, null unless form tracking is on
+        FloatNode windowAvgEntry; // This runner's node in the form AvgTree
+        FloatNode windowMinEntry;
+        FloatNode[] metricEntries; // This runner's node in each score index's tree, by slot
 
 
         private Node(RunnerID id) {
             this.id = id;
             this.left = null;
-            this.middle = null;
             this.right = null;
+            this.height = 1;
             this.runsTree = new RunsForRunnerTree();
-            this.sumOfRunTimes = 0.0f;
+            this.sumOfRunTimes = 0.0;
+            this.sumCompensation = 0.0;
             this.numRuns = 0; // Initialize numRuns to 0
             this.minRunTime = Float.MAX_VALUE; // Initialize minRunTime to max value
             this.avgRunTime = Float.MAX_VALUE; // Initialize avgRunTime to max value
+            this.metricEntries = NO_ENTRIES;
+        }
+
+        // Copy of the fields snapshots read, the run tree is not shared with snapshots
+        private Node(Node other) {
+            this.id = other.id;
+            this.left = other.left;
+            this.right = other.right;
+            this.height = other.height;
+            this.avgEntry = other.avgEntry;
+            this.minEntry = other.minEntry;
+            this.sumOfRunTimes = other.sumOfRunTimes;
+            this.sumCompensation = other.sumCompensation;
+            this.minRunTime = other.minRunTime;
+            this.avgRunTime = other.avgRunTime;
+            this.numRuns = other.numRuns;
+            this.version = other.version;
+            this.prior = other.prior;
         }
     }
 
@@ -0,0 +1,56 @@
+// A change in a Race, delivered to the RaceListener set with Race.setListener.
+//
+//   MIN_CHANGED, AVG_CHANGED: id's fastest or average run went from oldValue to newValue
+//                             (Float.MAX_VALUE when it has no runs, as getMinRun returns)
+//   FASTEST_AVG_CHANGED, FASTEST_MIN_CHANGED: id is the new fastest runner and previous the old one,
+//                             either is null when the race has no runners
+//   ENTERED_TOP_AVG, ENTERED_TOP_MIN: id moved into the first ranks of the threshold, now at rank
+//   LEFT_TOP_AVG, LEFT_TOP_MIN: id dropped out of them, now at rank, or 0 if it was removed
+public class RaceEvent {
+    public enum Type {
+        MIN_CHANGED, AVG_CHANGED, FASTEST_AVG_CHANGED, FASTEST_MIN_CHANGED,
+        ENTERED_TOP_AVG, LEFT_TOP_AVG, ENTERED_TOP_MIN, LEFT_TOP_MIN
+    }
+
+    public final Type type;
+    public final RunnerID id;
+    public final RunnerID previous;
+    public final float oldValue;
+    public final float newValue;
+    public final int rank;
+
+    RaceEvent(Type type, RunnerID id, RunnerID previous, float oldValue, float newValue, int rank) {
+        this.type = type;
+        this.id = id;
+        this.previous = previous;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+        this.rank = rank;
+    }
+
+    static RaceEvent valueChanged(Type type, RunnerID id, float oldValue, float newValue) {
+        return new RaceEvent(type, id, null, oldValue, newValue, 0);
+    }
+
+    static RaceEvent fastestChanged(Type type, RunnerID id, RunnerID previous) {
+        return new RaceEvent(type, id, previous, 0, 0, 0);
+    }
+
+    static RaceEvent rankCrossed(Type type, RunnerID id, int rank) {
+        return new RaceEvent(type, id, null, 0, 0, rank);
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case MIN_CHANGED:
+            case AVG_CHANGED:
+                return type + " " + id + " " + oldValue + " -> " + newValue;
+            case FASTEST_AVG_CHANGED:
+            case FASTEST_MIN_CHANGED:
+                return type + " " + previous + " -> " + id;
+            default:
+                return type + " " + id + " rank=" + rank;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Publishes the events of a Race to Flow subscribers, each on its own executor task with a buffer
+// of bufferCapacity events. Set it as the race's listener. Subscribers request events at their
+// own pace, and what happens when one falls a whole buffer behind is chosen up front:
+//
+//   BLOCK: the thread delivering events waits until the subscriber catches up. On a Race that is
+//          the thread making the change, so a slow subscriber slows every writer.
+//   CANCEL: the subscriber is cancelled and gets onError with a LaggedException instead of the
+//           events still in its buffer, so the events it received are complete up to the error.
+//           It can read the race and subscribe again. Writers never wait, cancellations are
+//           counted by laggedCount.
+//
+// Closing the feed completes every subscription.
+public class RaceFeed implements RaceListener, Flow.Publisher<RaceEvent>, AutoCloseable {
+    public enum Overflow {
+        BLOCK, CANCEL
+    }
+
+    // Tells a subscriber that events were lost after the ones it received
+    public static class LaggedException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        LaggedException(int bufferCapacity) {
+            super("The subscriber fell " + bufferCapacity + " events behind and missed the next one.");
+        }
+    }
+
+    private final SubmissionPublisher<RaceEvent> publisher;
+    private final Executor executor;
+    private final Overflow overflow;
+    private final LongAdder lagged;
+
+    public RaceFeed(Overflow overflow) {
+        this(ForkJoinPool.commonPool(), Flow.defaultBufferSize(), overflow);
+    }
+
+    public RaceFeed(Executor executor, int bufferCapacity, Overflow overflow) {
+        if (bufferCapacity < 1) {
+            throw new IllegalArgumentException("The buffer capacity must be positive.");
+        }
+        if (overflow == null) {
+            throw new IllegalArgumentException("The overflow policy cannot be null.");
+        }
+        this.publisher = new SubmissionPublisher<>(executor, bufferCapacity);
+        this.executor = executor;
+        this.overflow = overflow;
+        this.lagged = new LongAdder();
+    }
+
+    @Override
+    public void onEvent(RaceEvent event) {
+        if (overflow == Overflow.BLOCK) {
+            publisher.submit(event);
+            return;
+        }
+        publisher.offer(event, (subscriber, unsent) -> {
+            ((Subscription) subscriber).lagged();
+            return false;
+        });
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super RaceEvent> subscriber) {
+        publisher.subscribe(new Subscription(subscriber));
+    }
+
+    public int subscriberCount() {
+        return publisher.getNumberOfSubscribers();
+    }
+
+    // Subscribers cancelled for falling a whole buffer behind, always 0 when blocking
+    public long laggedCount() {
+        return lagged.sum();
+    }
+
+    @Override
+    public void close() {
+        publisher.close();
+    }
+
+    // Stands between the publisher and a subscriber so that a lagging subscriber can be cancelled
+    // and told. The publisher calls it on one executor task at a time and the error is sent on
+    // another task, so every call to the subscriber holds this object's lock, none comes before
+    // onSubscribe and none follows the error.
+    private class Subscription implements Flow.Subscriber<RaceEvent> {
+        private final Flow.Subscriber<? super RaceEvent> subscriber;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private volatile Flow.Subscription upstream;
+        private LaggedException pending; // An error that came before onSubscribe
+        private boolean done;
+
+        Subscription(Flow.Subscriber<? super RaceEvent> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public synchronized void onSubscribe(Flow.Subscription subscription) {
+            upstream = subscription;
+            subscriber.onSubscribe(subscription);
+            if (cancelled.get()) {
+                subscription.cancel();
+            }
+            if (pending != null) {
+                onError(pending);
+            }
+        }
+
+        @Override
+        public synchronized void onNext(RaceEvent event) {
+            if (!done) {
+                subscriber.onNext(event);
+            }
+        }
+
+        @Override
+        public synchronized void onError(Throwable error) {
+            if (!done) {
+                done = true;
+                subscriber.onError(error);
+            }
+        }
+
+        @Override
+        public synchronized void onComplete() {
+            if (!done) {
+                done = true;
+                subscriber.onComplete();
+            }
+        }
+
+        // Called on the delivering thread, which must not wait for the subscriber's lock
+        void lagged() {
+            if (!cancelled.compareAndSet(false, true)) {
+                return;
+            }
+            lagged.increment();
+            Flow.Subscription subscription = upstream;
+            if (subscription != null) {
+                subscription.cancel();
+            }
+            LaggedException error = new LaggedException(publisher.getMaxBufferCapacity());
+            try {
+                executor.execute(() -> fail(error));
+            } catch (RejectedExecutionException shutDown) {
+                // The executor is gone, so nothing more reaches the subscriber either way
+            }
+        }
+
+        private synchronized void fail(LaggedException error) {
+            if (upstream == null) {
+                pending = error;
+            } else {
+                onError(error);
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Checks the events of a ConcurrentRace changed by several threads at once:
+//
+//   - every runner's MIN_CHANGED and AVG_CHANGED events chain from old to new value and end at
+//     the race's final values, so they arrive in the order of the changes,
+//   - a RaceFeed subscriber that queries the race from onNext does not deadlock writers that
+//     block on it,
+//   - a subscriber that falls behind a feed that cancels on overflow gets every event in order up
+//     to a LaggedException, and none after it,
+//   - a subscriber that stops requesting does not hold up the writers of such a feed.
+//
+// Exits with an AssertionError on the first difference, or if the writers do not finish.
+//
+// Usage: java RaceFeedCheck [seed] [runs per thread]
+public class RaceFeedCheck {
+    private static final int RUNNERS = 50;
+    private static final int THREADS = 4;
+
+    public static void main(String[] args) throws InterruptedException {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        checkEventOrder(seed, runs);
+        checkSubscriberQueryingRace(seed, runs);
+        checkLaggingSubscriber(seed);
+        checkStalledSubscriber(seed);
+        System.out.println("RaceFeedCheck OK");
+    }
+
+    private static void checkEventOrder(long seed, int runs) throws InterruptedException {
+        ConcurrentRace race = newRace();
+        HashMap<RunnerID, Float> mins = new HashMap<>();
+        HashMap<RunnerID, Float> avgs = new HashMap<>();
+        // Only one thread delivers at a time, so the maps need no lock of their own
+        race.setListener(event -> {
+            if (event.type == RaceEvent.Type.MIN_CHANGED) {
+                Checks.check(mins.getOrDefault(event.id, Float.MAX_VALUE) == event.oldValue,
+                        "minimum of " + event.id + " out of order");
+                mins.put(event.id, event.newValue);
+            } else if (event.type == RaceEvent.Type.AVG_CHANGED) {
+                Checks.check(avgs.getOrDefault(event.id, Float.MAX_VALUE) == event.oldValue,
+                        "average of " + event.id + " out of order");
+                avgs.put(event.id, event.newValue);
+            }
+        }, 5);
+        ingest(race, seed, runs, 10);
+
+        for (int i = 0; i < RUNNERS; i++) {
+            RunnerIDInt id = new RunnerIDInt(i);
+            Checks.check(mins.getOrDefault(id, Float.MAX_VALUE) == race.getMinRun(id),
+                    "events left the minimum of " + id + " behind");
+            Checks.check(avgs.getOrDefault(id, Float.MAX_VALUE) == race.getAvgRun(id),
+                    "events left the average of " + id + " behind");
+        }
+    }
+
+    private static void checkSubscriberQueryingRace(long seed, int runs) throws InterruptedException {
+        ConcurrentRace race = newRace();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        RaceFeed feed = new RaceFeed(executor, 4, RaceFeed.Overflow.BLOCK);
+        AtomicLong received = new AtomicLong();
+        feed.subscribe(new Flow.Subscriber<RaceEvent>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(RaceEvent event) {
+                if (event.id != null && race.hasRunner(event.id)) {
+                    race.getRankAvg(event.id);
+                }
+                received.incrementAndGet();
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                error.printStackTrace();
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        race.setListener(feed, 5);
+        ingest(race, seed, runs, 60);
+        feed.close();
+        executor.shutdown();
+        Checks.check(executor.awaitTermination(60, TimeUnit.SECONDS), "the subscriber did not finish");
+        Checks.check(received.get() > 0, "the subscriber received no events");
+        Checks.check(feed.laggedCount() == 0, "a blocking feed cancelled a subscriber");
+    }
+
+    // Takes a millisecond per event, so four writers soon fill its buffer of four, possibly before
+    // the first event reaches it
+    private static void checkLaggingSubscriber(long seed) throws InterruptedException {
+        ConcurrentRace race = newRace();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        RaceFeed feed = new RaceFeed(executor, 4, RaceFeed.Overflow.CANCEL);
+        HashMap<RunnerID, Float> mins = new HashMap<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch told = new CountDownLatch(1);
+        feed.subscribe(new Flow.Subscriber<RaceEvent>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(RaceEvent event) {
+                try {
+                    Checks.check(told.getCount() == 1, "an event arrived after the error");
+                    if (event.type == RaceEvent.Type.MIN_CHANGED) {
+                        Checks.check(mins.getOrDefault(event.id, Float.MAX_VALUE) == event.oldValue,
+                                "the lagging subscriber missed a change of " + event.id + " before the error");
+                        mins.put(event.id, event.newValue);
+                    }
+                    Thread.sleep(1);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                failure.compareAndSet(null, error instanceof RaceFeed.LaggedException ? null : error);
+                told.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                failure.compareAndSet(null, new AssertionError("the lagging subscriber was completed"));
+                told.countDown();
+            }
+        });
+        race.setListener(feed, 0);
+        ingest(race, seed, 1000, 60);
+        Checks.check(told.await(60, TimeUnit.SECONDS), "the lagging subscriber was never told it missed events");
+        if (failure.get() != null) {
+            throw new AssertionError("the lagging subscriber failed", failure.get());
+        }
+        Checks.check(feed.laggedCount() == 1, "the lagging subscriber was cancelled " + feed.laggedCount() + " times");
+        Checks.check(feed.subscriberCount() == 0, "the lagging subscriber is still subscribed");
+        feed.close();
+        executor.shutdown();
+        Checks.check(executor.awaitTermination(60, TimeUnit.SECONDS), "the lagging subscriber did not finish");
+    }
+
+    private static void checkStalledSubscriber(long seed) throws InterruptedException {
+        ConcurrentRace race = newRace();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        RaceFeed feed = new RaceFeed(executor, 4, RaceFeed.Overflow.CANCEL);
+        CountDownLatch told = new CountDownLatch(1);
+        feed.subscribe(new Flow.Subscriber<RaceEvent>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                // Never requests anything
+            }
+
+            @Override
+            public void onNext(RaceEvent event) {
+                throw new AssertionError("an event was delivered without a request");
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                if (error instanceof RaceFeed.LaggedException) {
+                    told.countDown();
+                }
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        race.setListener(feed, 0);
+        ingest(race, seed, 100, 60);
+        Checks.check(told.await(60, TimeUnit.SECONDS), "the stalled subscriber was never told it missed events");
+        Checks.check(feed.laggedCount() == 1, "the stalled subscriber was cancelled " + feed.laggedCount() + " times");
+        feed.close();
+        executor.shutdownNow();
+    }
+
+    private static ConcurrentRace newRace() {
+        ConcurrentRace race = new ConcurrentRace();
+        race.init();
+        for (int i = 0; i < RUNNERS; i++) {
+            race.addRunner(new RunnerIDInt(i));
+        }
+        return race;
+    }
+
+    // Adds runs from THREADS threads, failing if they are not done within timeoutSeconds
+    private static void ingest(ConcurrentRace race, long seed, int runs, int timeoutSeconds) throws InterruptedException {
+        Thread[] writers = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            Random random = new Random(seed * THREADS + t);
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < runs; i++) {
+                    RunnerIDInt id = new RunnerIDInt(random.nextInt(RUNNERS));
+                    float time = random.nextInt(1000) / 10f;
+                    race.addRunToRunner(id, time);
+                    if (random.nextInt(4) == 0) {
+                        race.removeRunFromRunner(id, time);
+                    }
+                }
+            });
+            writers[t].setDaemon(true);
+            writers[t].start();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        for (Thread writer : writers) {
+            writer.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            Checks.check(!writer.isAlive(), "the writers did not finish within " + timeoutSeconds + " seconds");
+        }
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Buffered reading and writing of the binary file Race.save produces. The file is:
+//
+//   int MAGIC, int VERSION, int runner count
+//   per runner, in ID order:
+//     int ID length, ID bytes (RunnerIDCodec), int runs, int distinct times,
+//     (float time, int count) per distinct time in ascending order,
+//     double sum, double sum compensation, float min, float avg
+//   AvgTree order, then MinTree order: one int per runner, its position in the ID order
+//
+// Everything is big endian. Reading checks the header and that lengths are sane, Race.load checks
+// that the orders really are sorted and that each runner's sum, min and avg match its runs.
+class RaceFile {
+    static final int MAGIC = 0x52414345; // "RACE"
+    static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    static class Writer {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void writeInt(int value) throws IOException {
+            ensureSpace(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void writeFloat(float value) throws IOException {
+            ensureSpace(Float.BYTES);
+            buffer.putFloat(value);
+        }
+
+        void writeDouble(double value) throws IOException {
+            ensureSpace(Double.BYTES);
+            buffer.putDouble(value);
+        }
+
+        void writeBytes(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                ensureSpace(1);
+                int chunk = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, chunk);
+                offset += chunk;
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void ensureSpace(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+    }
+
+    static class Reader {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        Reader(FileChannel channel) {
+            this.channel = channel;
+            buffer.flip(); // Start out empty
+        }
+
+        int readInt() throws IOException {
+            ensureReadable(Integer.BYTES);
+            return buffer.getInt();
+        }
+
+        float readFloat() throws IOException {
+            ensureReadable(Float.BYTES);
+            return buffer.getFloat();
+        }
+
+        double readDouble() throws IOException {
+            ensureReadable(Double.BYTES);
+            return buffer.getDouble();
+        }
+
+        // A count or length, which must be between 0 and max
+        int readCount(int max, String what) throws IOException {
+            int count = readInt();
+            if (count < 0 || count > max) {
+                throw new IOException("Corrupt race file: bad " + what + " " + count + ".");
+            }
+            return count;
+        }
+
+        byte[] readBytes(int length) throws IOException {
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                ensureReadable(1);
+                int chunk = Math.min(buffer.remaining(), length - offset);
+                buffer.get(bytes, offset, chunk);
+                offset += chunk;
+            }
+            return bytes;
+        }
+
+        boolean atEnd() throws IOException {
+            return !buffer.hasRemaining() && channel.position() == channel.size();
+        }
+
+        private void ensureReadable(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Corrupt race file: it ends too early.");
+                }
+            }
+            buffer.flip();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+// Saves random races and loads them back, then damages the stored aggregates of a one runner race
+// and checks that Race.load refuses each damaged file instead of placing the runner by them.
+// Exits with an AssertionError on the first difference.
+//
+// Usage: java RaceFileCheck [seed] [operations]
+public class RaceFileCheck {
+    private static final int IDS = 200;
+
+    // Byte offsets in the file of a race whose only runner has a four byte ID and two distinct
+    // times, see RaceFile for the layout
+    private static final int FIRST_TIME = 28;
+    private static final int SUM = 44;
+    private static final int COMPENSATION = 52;
+    private static final int MIN = 60;
+    private static final int AVG = 64;
+
+    public static void main(String[] args) throws IOException {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        checkRoundTrip(new Random(seed), operations);
+        checkDamagedAggregates();
+        System.out.println("RaceFileCheck OK");
+    }
+
+    // Tenth of a second steps do not add up exactly, the loaded sums must still be accepted
+    private static void checkRoundTrip(Random random, int operations) throws IOException {
+        Race race = new Race();
+        race.init();
+        HashMap<Integer, List<Float>> runs = new HashMap<>();
+        for (int step = 0; step < operations; step++) {
+            int number = random.nextInt(IDS);
+            RunnerIDInt id = new RunnerIDInt(number);
+            List<Float> runnerRuns = runs.get(number);
+            int kind = random.nextInt(10);
+            if (runnerRuns == null) {
+                race.addRunner(id);
+                runs.put(number, new ArrayList<>());
+            } else if (kind == 0) {
+                race.removeRunner(id);
+                runs.remove(number);
+            } else if (kind < 7 || runnerRuns.isEmpty()) {
+                float time = random.nextInt(1000) * 0.1f;
+                race.addRunToRunner(id, time);
+                runnerRuns.add(time);
+            } else {
+                race.removeRunFromRunner(id, runnerRuns.remove(random.nextInt(runnerRuns.size())));
+            }
+        }
+
+        Path file = Files.createTempFile("race", ".bin");
+        race.save(file, new Checks.IntCodec());
+        Race loaded = new Race();
+        loaded.load(file, new Checks.IntCodec());
+        for (int number = 0; number < IDS; number++) {
+            RunnerIDInt id = new RunnerIDInt(number);
+            Checks.check(race.hasRunner(id) == loaded.hasRunner(id), "runner " + id + " differs after loading");
+            if (race.hasRunner(id)) {
+                Checks.check(race.getAvgRun(id) == loaded.getAvgRun(id), "average of " + id + " differs after loading");
+                Checks.check(race.getMinRun(id) == loaded.getMinRun(id), "minimum of " + id + " differs after loading");
+                Checks.check(race.getRankAvg(id) == loaded.getRankAvg(id), "average rank of " + id + " differs after loading");
+            }
+        }
+        Files.delete(file);
+    }
+
+    private static void checkDamagedAggregates() throws IOException {
+        Race race = new Race();
+        race.init();
+        RunnerIDInt id = new RunnerIDInt(7);
+        race.addRunner(id);
+        race.addRunToRunner(id, 2.5f);
+        race.addRunToRunner(id, 1.5f);
+        race.addRunToRunner(id, 2.5f);
+        Path file = Files.createTempFile("race", ".bin");
+        race.save(file, new Checks.IntCodec());
+        byte[] saved = Files.readAllBytes(file);
+
+        refused(file, "a smaller minimum", ByteBuffer.wrap(saved.clone()).putFloat(MIN, 1.0f));
+        refused(file, "a NaN minimum", ByteBuffer.wrap(saved.clone()).putFloat(MIN, Float.NaN));
+        refused(file, "a wrong average", ByteBuffer.wrap(saved.clone()).putFloat(AVG, 2.0f));
+        refused(file, "a wrong sum", ByteBuffer.wrap(saved.clone()).putDouble(SUM, 5.0));
+        refused(file, "a wrong compensation", ByteBuffer.wrap(saved.clone()).putDouble(COMPENSATION, 1.0));
+        // A sum and average that agree with each other but not with the runs
+        refused(file, "a consistent but wrong sum and average",
+                ByteBuffer.wrap(saved.clone()).putDouble(SUM, 9.0).putFloat(AVG, 3.0f));
+        refused(file, "a NaN run time", ByteBuffer.wrap(saved.clone()).putFloat(FIRST_TIME, Float.NaN));
+
+        // The untouched bytes still load
+        Files.write(file, saved);
+        Race loaded = new Race();
+        loaded.load(file, new Checks.IntCodec());
+        Checks.check(loaded.getAvgRun(id) == race.getAvgRun(id), "the undamaged file did not load");
+        Files.delete(file);
+    }
+
+    private static void refused(Path file, String damage, ByteBuffer damaged) throws IOException {
+        Files.write(file, damaged.array());
+        try {
+            new Race().load(file, new Checks.IntCodec());
+            throw new AssertionError("loaded a file with " + damage);
+        } catch (IOException expected) {
+            Checks.check(expected.getMessage().startsWith("Corrupt race file: "),
+                    "a file with " + damage + " failed with " + expected.getMessage());
+        }
+    }
+}
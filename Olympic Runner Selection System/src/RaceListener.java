@@ -0,0 +1,7 @@
+// Receives the changes of a Race, see Race.setListener. onEvent runs on the thread making the
+// change, before the change's method returns. A ConcurrentRace calls it after releasing its locks,
+// on one mutating thread at a time, see ConcurrentRace.setListener. Slow work belongs behind a
+// RaceFeed.
+public interface RaceListener {
+    void onEvent(RaceEvent event);
+}
@@ -0,0 +1,215 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+// Append-only log of Race mutations. A record is
+//
+//   int payload length, payload (byte operation, float time, ID bytes), int CRC32 of the payload
+//
+// append only copies the record into memory. commit makes everything appended up to a sequence
+// number durable, and callers that commit while another thread is syncing wait for it and are
+// then usually covered by the next sync together, so one fsync serves a whole group of records.
+//
+// A sync that fails cuts the file back to the end of the last durable record before its records
+// are queued again, so a retry never writes them after a torn copy that would end the log early
+// on replay. If even that fails the log is broken: appends and commits refuse from then on.
+class RaceLog implements AutoCloseable {
+    static final byte ADD_RUNNER = 1;
+    static final byte REMOVE_RUNNER = 2;
+    static final byte ADD_RUN = 3;
+    static final byte REMOVE_RUN = 4;
+
+    private static final int HEADER_BYTES = Integer.BYTES;
+    private static final int PAYLOAD_FIXED_BYTES = 1 + Float.BYTES;
+    private static final int INITIAL_BUFFER = 1 << 16;
+
+    // Receives the records of a log in order while it is replayed
+    interface Replayer {
+        void apply(byte operation, byte[] id, float time);
+    }
+
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER); // Appended, not yet written
+    private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER); // Swapped in while a sync writes pending
+    private long appended; // Sequence number of the last appended record
+    private long durable; // Sequence number of the last record known to be on disk
+    private long durableEnd; // File offset just after that record, only used by the syncing thread
+    private boolean syncing;
+    private IOException broken; // Why the file could not be cut back after a failed sync, or null
+    CrashPoint crashPoint = CrashPoint.NONE;
+
+    // Opens path for appending after validEnd, dropping whatever a crash left beyond it
+    RaceLog(Path path, long validEnd) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(validEnd);
+        channel.position(validEnd);
+        channel.force(true);
+        this.appended = 0;
+        this.durable = 0;
+        this.durableEnd = validEnd;
+        this.syncing = false;
+        this.broken = null;
+    }
+
+    // Returns the record's sequence number, pass it to commit to wait until it is durable
+    synchronized long append(byte operation, byte[] id, float time) {
+        checkWritable();
+        int payloadLength = PAYLOAD_FIXED_BYTES + id.length;
+        int recordLength = HEADER_BYTES + payloadLength + Integer.BYTES;
+        if (pending.remaining() < recordLength) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + recordLength));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        pending.putInt(payloadLength);
+        int payloadStart = pending.position();
+        pending.put(operation);
+        pending.putFloat(time);
+        pending.put(id);
+        crc.reset();
+        crc.update(pending.array(), payloadStart, payloadLength);
+        pending.putInt((int) crc.getValue());
+        return ++appended;
+    }
+
+    synchronized long lastAppended() {
+        return appended;
+    }
+
+    // DurableRace calls this before changing the race, so a broken log does not fall behind it
+    synchronized void checkWritable() {
+        if (broken != null) {
+            throw new UncheckedIOException("The race log could not be repaired after a failed write.", broken);
+        }
+    }
+
+    // Blocks until every record up to sequence has been written and forced to disk
+    void commit(long sequence) throws IOException {
+        ByteBuffer batch;
+        long batchEnd;
+        synchronized (this) {
+            while (durable < sequence && syncing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the race log to sync.", e);
+                }
+            }
+            if (durable >= sequence) {
+                return;
+            }
+            if (broken != null) {
+                throw new IOException("The race log could not be repaired after a failed write.", broken);
+            }
+            // This thread syncs everything appended so far, later appends go to the other buffer
+            syncing = true;
+            batch = pending;
+            batchEnd = appended;
+            pending = spare;
+            pending.clear();
+        }
+
+        boolean written = false;
+        long writtenEnd = 0;
+        IOException repairFailure = null;
+        try {
+            batch.flip();
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+            crashPoint.reached("log written");
+            channel.force(false);
+            writtenEnd = channel.position();
+            written = true;
+        } finally {
+            if (!written) {
+                // Drop whatever part of the batch reached the file, the retry writes all of it again
+                try {
+                    channel.truncate(durableEnd);
+                    channel.position(durableEnd);
+                } catch (IOException e) {
+                    repairFailure = e;
+                }
+            }
+            synchronized (this) {
+                if (written) {
+                    durable = batchEnd;
+                    durableEnd = writtenEnd;
+                    batch.clear();
+                } else {
+                    broken = repairFailure;
+                    // Put the unwritten records back in front of the ones appended meanwhile
+                    batch.position(0);
+                    pending.flip();
+                    ByteBuffer merged = ByteBuffer.allocate(Math.max(INITIAL_BUFFER, batch.remaining() + pending.remaining()));
+                    merged.put(batch);
+                    merged.put(pending);
+                    pending = merged;
+                    batch.clear();
+                }
+                spare = batch;
+                syncing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            commit(lastAppended());
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Feeds every intact record of the log at path to replayer and returns the offset where the
+    // intact records end. A record cut short or failing its checksum, as a crash mid-write leaves
+    // behind, ends the log.
+    static long replay(Path path, Replayer replayer) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long offset = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            CRC32 crc = new CRC32();
+            while (size - offset >= HEADER_BYTES) {
+                header.clear();
+                readFully(channel, header, offset);
+                int payloadLength = header.getInt(0);
+                if (payloadLength < PAYLOAD_FIXED_BYTES || payloadLength > size - offset - HEADER_BYTES - Integer.BYTES) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.allocate(payloadLength + Integer.BYTES);
+                readFully(channel, record, offset + HEADER_BYTES);
+                crc.reset();
+                crc.update(record.array(), 0, payloadLength);
+                if (record.getInt(payloadLength) != (int) crc.getValue()) {
+                    break;
+                }
+                byte operation = record.get(0);
+                float time = record.getFloat(1);
+                byte[] id = new byte[payloadLength - PAYLOAD_FIXED_BYTES];
+                record.position(PAYLOAD_FIXED_BYTES);
+                record.get(id);
+                replayer.apply(operation, id, time);
+                offset += HEADER_BYTES + payloadLength + Integer.BYTES;
+            }
+            return offset;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Race log ended while reading a record.");
+            }
+        }
+    }
+}
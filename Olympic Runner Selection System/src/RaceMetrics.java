@@ -0,0 +1,114 @@
+import java.util.concurrent.atomic.AtomicLong;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// Per operation counts and latencies of a Race, plus how many ID tree nodes lookups visit. Attach
+// it with Race.setMetrics. A race without metrics only pays a null check per operation. When the
+// race.Operation JFR event is enabled in a recording, every timed operation is also emitted there.
+public class RaceMetrics {
+    public enum Operation {
+        ADD_RUNNER("addRunner"),
+        REMOVE_RUNNER("removeRunner"),
+        ADD_RUN("addRunToRunner"),
+        REMOVE_RUN("removeRunFromRunner"),
+        ADD_RUNS_BULK("addRunsBulk"),
+        REMOVE_RUNS_BULK("removeRunsBulk"),
+        FASTEST_AVG("getFastestRunnerAvg"),
+        FASTEST_MIN("getFastestRunnerMin"),
+        MIN_RUN("getMinRun"),
+        AVG_RUN("getAvgRun"),
+        RANK_AVG("getRankAvg"),
+        RANK_MIN("getRankMin"),
+        SELECT_AVG("selectByRankAvg"),
+        SELECT_MIN("selectByRankMin");
+
+        public final String methodName; // The Race method it times
+
+        Operation(String methodName) {
+            this.methodName = methodName;
+        }
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final EventType OPERATION_EVENT = EventType.getEventType(OperationEvent.class);
+
+    private final LatencyHistogram[] latencies;
+    private final AtomicLong treeLookups; // Lookups of IDs without a hash, which walk the ID tree
+    private final AtomicLong treeLookupHops;
+
+    public RaceMetrics() {
+        this.latencies = new LatencyHistogram[OPERATIONS.length];
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        this.treeLookups = new AtomicLong();
+        this.treeLookupHops = new AtomicLong();
+    }
+
+    public void record(Operation operation, long nanos) {
+        latencies[operation.ordinal()].record(nanos);
+        // Checked before allocating, so a race without a recording creates no event per operation
+        if (OPERATION_EVENT.isEnabled()) {
+            OperationEvent event = new OperationEvent();
+            event.operation = operation.methodName;
+            event.latency = nanos;
+            event.commit();
+        }
+    }
+
+    void recordTreeLookup(int hops) {
+        treeLookups.incrementAndGet();
+        treeLookupHops.addAndGet(hops);
+    }
+
+    public long count(Operation operation) {
+        return latencies[operation.ordinal()].count();
+    }
+
+    public LatencyHistogram latency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    public long treeLookups() {
+        return treeLookups.get();
+    }
+
+    public double averageTreeLookupHops() {
+        long lookups = treeLookups.get();
+        return lookups == 0 ? 0 : (double) treeLookupHops.get() / lookups;
+    }
+
+    // One line per operation that ran, latencies in nanoseconds
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        for (Operation operation : OPERATIONS) {
+            LatencyHistogram latency = latencies[operation.ordinal()];
+            if (latency.count() == 0) {
+                continue;
+            }
+            report.append(String.format("%-20s count=%d mean=%.0f p50=%d p99=%d p99.9=%d max=%d%n",
+                    operation.methodName, latency.count(), latency.mean(), latency.valueAtPercentile(50),
+                    latency.valueAtPercentile(99), latency.valueAtPercentile(99.9), latency.max()));
+        }
+        if (treeLookups.get() > 0) {
+            report.append(String.format("ID tree lookups=%d average hops=%.2f%n", treeLookups.get(), averageTreeLookupHops()));
+        }
+        return report.toString();
+    }
+
+    @Name("race.Operation")
+    @Label("Race Operation")
+    @Category("Race")
+    static class OperationEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+    }
+}
@@ -0,0 +1,37 @@
+import java.util.concurrent.CompletableFuture;
+
+// One partition of a ShardedRace. Every call is asynchronous and takes and returns only IDs, floats
+// and ints, so a shard can be a Race in this JVM (LocalRaceShard) or a stub for one in another
+// process. A shard is only sent calls for the runners that hash to it.
+public interface RaceShard extends AutoCloseable {
+    CompletableFuture<Void> init();
+
+    CompletableFuture<Void> addRunner(RunnerID id);
+
+    CompletableFuture<Void> removeRunner(RunnerID id);
+
+    CompletableFuture<Void> addRunToRunner(RunnerID id, float time);
+
+    CompletableFuture<Void> removeRunFromRunner(RunnerID id, float time);
+
+    CompletableFuture<Void> addRunsBulk(RunnerID[] ids, float[] times);
+
+    CompletableFuture<Void> removeRunsBulk(RunnerID[] ids, float[] times);
+
+    CompletableFuture<Float> getMinRun(RunnerID id);
+
+    CompletableFuture<Float> getAvgRun(RunnerID id);
+
+    // How many of the shard's runners come before (score, id) in the AvgTree and MinTree order
+    CompletableFuture<Integer> countBeforeAvg(float avg, RunnerID id);
+
+    CompletableFuture<Integer> countBeforeMin(float min, RunnerID id);
+
+    // The shard's fastest runner with its average or minimum as the time, or null if it has no runners
+    CompletableFuture<RunResult> fastestByAvg();
+
+    CompletableFuture<RunResult> fastestByMin();
+
+    @Override
+    void close();
+}
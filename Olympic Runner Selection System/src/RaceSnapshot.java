@@ -0,0 +1,222 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+
+// Read-only view of a Race at the moment Race.snapshot() was called. It shares its nodes with the
+// live race and reads each one as it was at the snapshot version. Close it when done, so the race
+// stops keeping old node versions around for it.
+public class RaceSnapshot implements AutoCloseable {
+    private final SnapshotClock clock;
+    private final long version;
+    private final StampedLock lock; // Guards reads when the race is updated from other threads, may be null
+    private final Race.Node idRoot;
+    private final AvgTree avgTree;
+    private final FloatNode avgRoot;
+    private final FloatNode fastestByAvg;
+    private final MinTree minTree;
+    private final FloatNode minRoot;
+    private final FloatNode fastestByMin;
+    private boolean closed;
+
+    RaceSnapshot(SnapshotClock clock, long version, StampedLock lock, Race.Node idRoot,
+                 AvgTree avgTree, FloatNode avgRoot, FloatNode fastestByAvg,
+                 MinTree minTree, FloatNode minRoot, FloatNode fastestByMin) {
+        this.clock = clock;
+        this.version = version;
+        this.lock = lock;
+        this.idRoot = idRoot;
+        this.avgTree = avgTree;
+        this.avgRoot = avgRoot;
+        this.fastestByAvg = fastestByAvg;
+        this.minTree = minTree;
+        this.minRoot = minRoot;
+        this.fastestByMin = fastestByMin;
+        this.closed = false;
+    }
+
+    public RunnerID getFastestRunnerAvg() {
+        checkOpen();
+        if (fastestByAvg == null) {
+            throw new IllegalArgumentException("No runners in the race.");
+        }
+        return fastestByAvg.id;
+    }
+
+    public RunnerID getFastestRunnerMin() {
+        checkOpen();
+        if (fastestByMin == null) {
+            throw new IllegalArgumentException("No runners in the race.");
+        }
+        return fastestByMin.id;
+    }
+
+    public float getMinRun(RunnerID id) {
+        long stamp = readLock();
+        try {
+            Race.Node runnerNode = findRunner(id);
+            return runnerNode.numRuns == 0 ? Float.MAX_VALUE : runnerNode.minRunTime;
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    public float getAvgRun(RunnerID id) {
+        long stamp = readLock();
+        try {
+            Race.Node runnerNode = findRunner(id);
+            return runnerNode.numRuns == 0 ? Float.MAX_VALUE : runnerNode.avgRunTime;
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    public int getRankAvg(RunnerID id) {
+        long stamp = readLock();
+        try {
+            Race.Node runnerNode = findRunner(id);
+            return avgTree.rankAt(avgRoot, version, runnerNode.avgRunTime, runnerNode.id) + 1;
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    public int getRankMin(RunnerID id) {
+        long stamp = readLock();
+        try {
+            Race.Node runnerNode = findRunner(id);
+            return minTree.rankAt(minRoot, version, runnerNode.minRunTime, runnerNode.id) + 1;
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    public RunnerID selectByRankAvg(int rank) {
+        long stamp = readLock();
+        try {
+            FloatNode node = avgTree.selectAt(avgRoot, version, rank - 1);
+            if (node == null) {
+                throw new IllegalArgumentException("Rank " + rank + " is out of range.");
+            }
+            return node.id;
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    public RunnerID selectByRankMin(int rank) {
+        long stamp = readLock();
+        try {
+            FloatNode node = minTree.selectAt(minRoot, version, rank - 1);
+            if (node == null) {
+                throw new IllegalArgumentException("Rank " + rank + " is out of range.");
+            }
+            return node.id;
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    public int size() {
+        long stamp = readLock();
+        try {
+            return ScoreTree.size(FloatNode.at(avgRoot, version));
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    // Runners from fastest to slowest average as of the snapshot
+    public Iterable<RunnerID> runnersByAvg() {
+        return () -> new InOrderIterator(avgRoot);
+    }
+
+    // Runners from fastest to slowest minimum as of the snapshot
+    public Iterable<RunnerID> runnersByMin() {
+        return () -> new InOrderIterator(minRoot);
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        long stamp = lock == null ? 0 : lock.writeLock();
+        try {
+            clock.close(version);
+        } finally {
+            if (lock != null) {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    private Race.Node findRunner(RunnerID id) {
+        Race.Node runnerNode = Race.findNodeAt(id, idRoot, version);
+        if (runnerNode == null) {
+            throw new IllegalArgumentException("Runner with ID " + id.toString() + " does not exist.");
+        }
+        return runnerNode;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalArgumentException("The snapshot has been closed.");
+        }
+    }
+
+    private long readLock() {
+        checkOpen();
+        return lock == null ? 0 : lock.readLock();
+    }
+
+    private void unlockRead(long stamp) {
+        if (lock != null) {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Walks a score tree in order with an explicit stack, one node per call to next(). A node on the
+    // stack may be the live one, which the race can write to between two calls, so it is resolved to
+    // the snapshot version again before its right child is read.
+    private class InOrderIterator implements Iterator<RunnerID> {
+        private final ArrayDeque<FloatNode> stack = new ArrayDeque<>();
+
+        InOrderIterator(FloatNode root) {
+            long stamp = readLock();
+            try {
+                pushLeft(FloatNode.at(root, version));
+            } finally {
+                unlockRead(stamp);
+            }
+        }
+
+        private void pushLeft(FloatNode node) {
+            while (node != null) {
+                stack.push(node);
+                node = FloatNode.at(node.left, version);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty();
+        }
+
+        @Override
+        public RunnerID next() {
+            if (stack.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            long stamp = readLock();
+            try {
+                FloatNode node = FloatNode.at(stack.pop(), version);
+                pushLeft(FloatNode.at(node.right, version));
+                return node.id;
+            } finally {
+                unlockRead(stamp);
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+// Shape of a Race's trees at one moment, see Race.structure()
+public class RaceStructure {
+    public final int runners;
+    public final int idTreeHeight;
+    public final int avgTreeSize;
+    public final int avgTreeHeight;
+    public final int minTreeSize;
+    public final int minTreeHeight;
+    public final long totalRuns;
+    public final int maxRunsPerRunner;
+
+    public RaceStructure(int runners, int idTreeHeight, int avgTreeSize, int avgTreeHeight,
+                         int minTreeSize, int minTreeHeight, long totalRuns, int maxRunsPerRunner) {
+        this.runners = runners;
+        this.idTreeHeight = idTreeHeight;
+        this.avgTreeSize = avgTreeSize;
+        this.avgTreeHeight = avgTreeHeight;
+        this.minTreeSize = minTreeSize;
+        this.minTreeHeight = minTreeHeight;
+        this.totalRuns = totalRuns;
+        this.maxRunsPerRunner = maxRunsPerRunner;
+    }
+
+    @Override
+    public String toString() {
+        return "runners=" + runners + " idTreeHeight=" + idTreeHeight
+                + " avgTree(size=" + avgTreeSize + ", height=" + avgTreeHeight + ")"
+                + " minTree(size=" + minTreeSize + ", height=" + minTreeHeight + ")"
+                + " totalRuns=" + totalRuns + " maxRunsPerRunner=" + maxRunsPerRunner;
+    }
+}
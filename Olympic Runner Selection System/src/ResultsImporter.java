@@ -0,0 +1,369 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Imports a results file of one "runnerId,time" line per run. The ID and time may also be split by
+// ';', tabs or spaces, so padded fixed-width files work too, and a first line whose time is not a
+// number is skipped as a header. The file is memory-mapped in chunks that end on line breaks, and
+// lines are parsed straight from the mapped bytes: only the RunnerID objects are allocated per line.
+// With more than one thread, chunks are parsed in parallel but still fed to the race in file order,
+// batchSize runs per addRunsBulk call.
+//
+// Times are plain decimals: digits with an optional sign and point, no exponent, suffix or hex. A
+// malformed line stops the import with an IOException that says how many runs were imported:
+// every run before the line is in the race and none after it. The import is not rolled back, the
+// file is never held in memory at once. A batch the race refuses fails with the race's
+// IllegalArgumentException, the batches before it stay applied.
+//
+// Example: new ResultsImporter((bytes, start, end) -> new RunnerIDInt(ResultsImporter.parseInt(bytes, start, end)),
+//                              Runtime.getRuntime().availableProcessors(), 4096, true).importInto(path, race);
+public class ResultsImporter {
+    private static final long DEFAULT_CHUNK_BYTES = 64L << 20;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    // Builds the RunnerID written in bytes[start, end)
+    public interface IdParser {
+        RunnerID parse(ByteBuffer bytes, int start, int end);
+    }
+
+    private interface BatchSink {
+        void accept(RunnerID[] ids, float[] times);
+    }
+
+    private final IdParser idParser;
+    private final int threads;
+    private final int batchSize;
+    private final boolean addMissingRunners; // Otherwise a run of an unknown runner fails the import
+    long chunkBytes; // Package-private so tests can force many small chunks
+
+    public ResultsImporter(IdParser idParser, int threads, int batchSize, boolean addMissingRunners) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required.");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size must be positive.");
+        }
+        this.idParser = idParser;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.addMissingRunners = addMissingRunners;
+        this.chunkBytes = DEFAULT_CHUNK_BYTES;
+    }
+
+    // Returns the number of runs imported
+    public long importInto(Path file, Race race) throws IOException {
+        return importFile(file, (ids, times) -> {
+            if (addMissingRunners) {
+                for (RunnerID id : ids) {
+                    if (!race.hasRunner(id)) {
+                        race.addRunner(id);
+                    }
+                }
+            }
+            race.addRunsBulk(ids, times);
+        });
+    }
+
+    public long importInto(Path file, ConcurrentRace race) throws IOException {
+        return importFile(file, (ids, times) -> {
+            if (addMissingRunners) {
+                for (RunnerID id : ids) {
+                    if (!race.hasRunner(id)) {
+                        race.addRunner(id);
+                    }
+                }
+            }
+            race.addRunsBulk(ids, times);
+        });
+    }
+
+    private long importFile(Path file, BatchSink sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ArrayList<long[]> chunks = splitIntoChunks(channel);
+            long imported = 0;
+            if (threads == 1) {
+                for (long[] chunk : chunks) {
+                    imported += feed(parseChunk(channel, chunk[0], chunk[1]), sink, imported);
+                }
+                return imported;
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                // At most threads chunks are parsed ahead of the one being fed, which bounds memory use
+                ArrayDeque<Future<ParsedChunk>> inFlight = new ArrayDeque<>();
+                int next = 0;
+                while (next < chunks.size() || !inFlight.isEmpty()) {
+                    while (next < chunks.size() && inFlight.size() < threads) {
+                        long[] chunk = chunks.get(next++);
+                        inFlight.add(executor.submit(() -> parseChunk(channel, chunk[0], chunk[1])));
+                    }
+                    imported += feed(await(inFlight.poll()), sink, imported);
+                }
+                return imported;
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static ParsedChunk await(Future<ParsedChunk> parsed) throws IOException {
+        try {
+            return parsed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while importing results.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // Feeds the runs before a malformed line too, so the race ends at that line
+    private static long feed(ParsedChunk chunk, BatchSink sink, long imported) throws IOException {
+        long fed = 0;
+        for (Batch batch : chunk.batches) {
+            sink.accept(batch.ids, batch.times);
+            fed += batch.times.length;
+        }
+        if (chunk.malformedAt >= 0) {
+            throw new IOException("Malformed results line at byte " + chunk.malformedAt + ", after "
+                    + (imported + fed) + " imported runs.");
+        }
+        return fed;
+    }
+
+    // [start, end) byte ranges of about chunkBytes each, every one ending just after a line break
+    private ArrayList<long[]> splitIntoChunks(FileChannel channel) throws IOException {
+        ArrayList<long[]> chunks = new ArrayList<>();
+        long size = channel.size();
+        long start = 0;
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        while (start < size) {
+            long end = Math.min(size, start + chunkBytes);
+            // Move end past the next line break, a line is never split between two chunks
+            while (end < size) {
+                probe.clear();
+                int read = channel.read(probe, end - 1);
+                int newline = -1;
+                for (int i = 0; i < read; i++) {
+                    if (probe.get(i) == '\n') {
+                        newline = i;
+                        break;
+                    }
+                }
+                if (newline >= 0) {
+                    end = Math.min(size, end + newline);
+                    break;
+                }
+                end = Math.min(size, end + read);
+            }
+            chunks.add(new long[] {start, end});
+            start = end;
+        }
+        return chunks;
+    }
+
+    private ParsedChunk parseChunk(FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        ParsedChunk parsed = new ParsedChunk();
+        ArrayList<Batch> batches = parsed.batches;
+        RunnerID[] ids = new RunnerID[batchSize];
+        float[] times = new float[batchSize];
+        int count = 0;
+        boolean firstLine = start == 0;
+
+        int limit = bytes.limit();
+        int position = 0;
+        while (position < limit) {
+            int lineEnd = position;
+            while (lineEnd < limit && bytes.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int lineStart = skipBlanks(bytes, position, lineEnd);
+            int contentEnd = lineEnd;
+            while (contentEnd > lineStart && isBlank(bytes.get(contentEnd - 1))) {
+                contentEnd--;
+            }
+
+            if (lineStart < contentEnd) {
+                int idEnd = lineStart;
+                while (idEnd < contentEnd && !isSeparator(bytes.get(idEnd))) {
+                    idEnd++;
+                }
+                int timeStart = idEnd;
+                while (timeStart < contentEnd && isSeparator(bytes.get(timeStart))) {
+                    timeStart++;
+                }
+                float time = parseFloat(bytes, timeStart, contentEnd);
+                if (Float.isNaN(time)) {
+                    if (!firstLine) {
+                        parsed.malformedAt = start + position;
+                        break;
+                    }
+                } else {
+                    ids[count] = idParser.parse(bytes, lineStart, idEnd);
+                    times[count] = time;
+                    if (++count == batchSize) {
+                        batches.add(new Batch(ids, times));
+                        ids = new RunnerID[batchSize];
+                        times = new float[batchSize];
+                        count = 0;
+                    }
+                }
+                firstLine = false;
+            }
+            position = lineEnd + 1;
+        }
+        if (count > 0) {
+            RunnerID[] lastIds = new RunnerID[count];
+            float[] lastTimes = new float[count];
+            System.arraycopy(ids, 0, lastIds, 0, count);
+            System.arraycopy(times, 0, lastTimes, 0, count);
+            batches.add(new Batch(lastIds, lastTimes));
+        }
+        return parsed;
+    }
+
+    // Parses a decimal integer from bytes[start, end), for IdParsers of numeric IDs
+    public static int parseInt(ByteBuffer bytes, int start, int end) {
+        boolean negative = start < end && bytes.get(start) == '-';
+        int position = negative ? start + 1 : start;
+        if (position == end) {
+            throw new IllegalArgumentException("Runner ID is not a number.");
+        }
+        long value = 0;
+        for (; position < end; position++) {
+            int digit = bytes.get(position) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("Runner ID is not a number.");
+            }
+            value = value * 10 + digit;
+            if (value > Integer.MAX_VALUE + 1L) {
+                throw new IllegalArgumentException("Runner ID is out of range.");
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Runner ID is out of range.");
+        }
+        return (int) value;
+    }
+
+    // Parses a decimal number from bytes[start, end) to the nearest float, or NaN if it is not one or
+    // is too large for a float. Plain numbers with few digits are exact in double arithmetic, longer
+    // ones take Float.parseFloat. Anything but digits, one point and a leading sign is refused before
+    // that, as Float.parseFloat would take exponents, "f" suffixes, hex and "Infinity".
+    static float parseFloat(ByteBuffer bytes, int start, int end) {
+        int position = start;
+        boolean negative = false;
+        if (position < end && (bytes.get(position) == '-' || bytes.get(position) == '+')) {
+            negative = bytes.get(position) == '-';
+            position++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean seenPoint = false;
+        for (; position < end; position++) {
+            byte b = bytes.get(position);
+            if (b >= '0' && b <= '9') {
+                if (mantissa >= MAX_EXACT_MANTISSA / 10) {
+                    return parseFloatSlowly(bytes, start, end);
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (seenPoint) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                return Float.NaN;
+            }
+        }
+        if (digits == 0) {
+            return Float.NaN;
+        }
+        if (fractionDigits >= POWERS_OF_TEN.length) {
+            return parseFloatSlowly(bytes, start, end);
+        }
+        // Both operands are exact doubles, so the quotient is the correctly rounded double
+        double value = mantissa / POWERS_OF_TEN[fractionDigits];
+        // Rounding that double to float again is only wrong when it sits exactly halfway between two floats
+        if ((Double.doubleToRawLongBits(value) & ((1L << 29) - 1)) == 1L << 28) {
+            return parseFloatSlowly(bytes, start, end);
+        }
+        float time = (float) value;
+        return negative ? -time : time;
+    }
+
+    private static float parseFloatSlowly(ByteBuffer bytes, int start, int end) {
+        byte[] text = new byte[end - start];
+        boolean seenDigit = false;
+        boolean seenPoint = false;
+        for (int i = 0; i < text.length; i++) {
+            text[i] = bytes.get(start + i);
+            if (text[i] >= '0' && text[i] <= '9') {
+                seenDigit = true;
+            } else if (text[i] == '.' && !seenPoint) {
+                seenPoint = true;
+            } else if (i > 0 || (text[i] != '-' && text[i] != '+')) {
+                return Float.NaN;
+            }
+        }
+        if (!seenDigit) {
+            return Float.NaN;
+        }
+        float time = Float.parseFloat(new String(text, StandardCharsets.US_ASCII));
+        return Float.isInfinite(time) ? Float.NaN : time;
+    }
+
+    private static int skipBlanks(ByteBuffer bytes, int position, int end) {
+        while (position < end && isBlank(bytes.get(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ',' || b == ';' || b == ' ' || b == '\t';
+    }
+
+    // The batches of a chunk, up to its first malformed line if it has one
+    private static class ParsedChunk {
+        final ArrayList<Batch> batches = new ArrayList<>();
+        long malformedAt = -1; // File offset of the malformed line
+    }
+
+    private static class Batch {
+        final RunnerID[] ids;
+        final float[] times;
+
+        Batch(RunnerID[] ids, float[] times) {
+            this.ids = ids;
+            this.times = times;
+        }
+    }
+}
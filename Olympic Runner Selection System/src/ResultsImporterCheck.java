@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+// Writes random results files and checks that ResultsImporter reads the same runs whatever the
+// chunk size, thread count and batch size: lines split across chunk boundaries, CRLF and LF line
+// breaks, blank lines, a header, padded separators and a missing final newline. Chunks down to a
+// single byte make every line cross a boundary. A malformed line must stop the import right
+// before it, and times that Float.parseFloat takes but are not plain decimals must count as
+// malformed. Exits with an AssertionError on the first difference.
+//
+// Usage: java ResultsImporterCheck [seed] [files]
+public class ResultsImporterCheck {
+    private static final int IDS = 40;
+    private static final long[] CHUNK_BYTES = {1, 2, 3, 5, 8, 13, 64, 1 << 20};
+    private static final String[] SEPARATORS = {",", ";", "\t", " ", " , ", "  "};
+    // The last two are too long for the exact path, so they reach Float.parseFloat
+    private static final String[] NOT_DECIMAL = {"Infinity", "-Infinity", "NaN", "1.5f", "2d", "0x1p3", "1e40",
+            "1.5e1", "1.2.3", "+", ".", "1" + "0".repeat(40), "12345678901234567890e5"};
+
+    public static void main(String[] args) throws IOException {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        Random random = new Random(seed);
+        Path file = Files.createTempFile("results", ".csv");
+        try {
+            for (int round = 0; round < files; round++) {
+                checkFile(random, file, round);
+            }
+            checkMalformedLine(file);
+            checkStrictTimes(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        System.out.println("ResultsImporterCheck OK");
+    }
+
+    private static void checkFile(Random random, Path file, int round) throws IOException {
+        Race expected = new Race();
+        expected.init();
+        StringBuilder text = new StringBuilder();
+        boolean crlf = random.nextBoolean();
+        String lineBreak = crlf ? "\r\n" : "\n";
+        if (random.nextBoolean()) {
+            text.append("runner,time").append(lineBreak);
+        }
+        int lines = random.nextInt(60);
+        for (int line = 0; line < lines; line++) {
+            if (random.nextInt(10) == 0) {
+                text.append(random.nextBoolean() ? "" : "  ").append(lineBreak);
+            }
+            RunnerIDInt id = new RunnerIDInt(random.nextInt(IDS));
+            float time = random.nextInt(2000) / 100f;
+            if (!expected.hasRunner(id)) {
+                expected.addRunner(id);
+            }
+            expected.addRunToRunner(id, time);
+            text.append(random.nextBoolean() ? "" : " ").append(id).append(SEPARATORS[random.nextInt(SEPARATORS.length)])
+                    .append(time);
+            if (line < lines - 1 || random.nextBoolean()) {
+                text.append(lineBreak);
+            }
+        }
+        Files.write(file, text.toString().getBytes(StandardCharsets.US_ASCII));
+
+        for (long chunkBytes : CHUNK_BYTES) {
+            for (int threads = 1; threads <= 3; threads += 2) {
+                ResultsImporter importer = new ResultsImporter(
+                        (bytes, start, end) -> new RunnerIDInt(ResultsImporter.parseInt(bytes, start, end)),
+                        threads, 1 + random.nextInt(8), true);
+                importer.chunkBytes = chunkBytes;
+                Race race = new Race();
+                race.init();
+                long imported = importer.importInto(file, race);
+                String label = "file " + round + (crlf ? " (CRLF)" : " (LF)") + " in " + chunkBytes + " byte chunks on "
+                        + threads + " threads";
+                Checks.check(imported == lines, label + ": imported " + imported + " of " + lines + " runs");
+                same(label, expected, race);
+            }
+        }
+    }
+
+    private static void same(String label, Race expected, Race actual) {
+        for (int number = 0; number < IDS; number++) {
+            RunnerIDInt id = new RunnerIDInt(number);
+            Checks.check(expected.hasRunner(id) == actual.hasRunner(id), label + ": runner " + id + " differs");
+            if (expected.hasRunner(id)) {
+                Checks.check(expected.getMinRun(id) == actual.getMinRun(id), label + ": minimum of " + id + " differs");
+                Checks.check(expected.getAvgRun(id) == actual.getAvgRun(id), label + ": average of " + id + " differs");
+                Checks.check(expected.getRankAvg(id) == actual.getRankAvg(id), label + ": average rank of " + id + " differs");
+            }
+        }
+    }
+
+    // Only a first line may be a header, a bad line later on fails whichever chunk holds it, and the
+    // runs before it are imported on any number of threads
+    private static void checkMalformedLine(Path file) throws IOException {
+        Files.write(file, "1,2.5\r\n2,3\r\n3,fast\r\n4,1\r\n".getBytes(StandardCharsets.US_ASCII));
+        for (long chunkBytes : CHUNK_BYTES) {
+            for (int threads = 1; threads <= 3; threads += 2) {
+                ResultsImporter importer = new ResultsImporter(
+                        (bytes, start, end) -> new RunnerIDInt(ResultsImporter.parseInt(bytes, start, end)), threads, 1,
+                        true);
+                importer.chunkBytes = chunkBytes;
+                Race race = new Race();
+                race.init();
+                String label = "malformed line in " + chunkBytes + " byte chunks on " + threads + " threads";
+                try {
+                    importer.importInto(file, race);
+                    throw new AssertionError(label + " was imported");
+                } catch (IOException e) {
+                    Checks.check(e.getMessage().equals("Malformed results line at byte 12, after 2 imported runs."),
+                            label + " reported as: " + e.getMessage());
+                }
+                Checks.check(race.hasRunner(new RunnerIDInt(1)) && race.hasRunner(new RunnerIDInt(2)),
+                        label + ": the runs before it were not imported");
+                Checks.check(!race.hasRunner(new RunnerIDInt(3)) && !race.hasRunner(new RunnerIDInt(4)),
+                        label + ": runs from it onwards were imported");
+            }
+        }
+    }
+
+    private static void checkStrictTimes(Path file) throws IOException {
+        ResultsImporter importer = new ResultsImporter(
+                (bytes, start, end) -> new RunnerIDInt(ResultsImporter.parseInt(bytes, start, end)), 1, 4, true);
+        for (String time : NOT_DECIMAL) {
+            Files.write(file, ("1,2\n2," + time + "\n").getBytes(StandardCharsets.US_ASCII));
+            Race race = new Race();
+            race.init();
+            try {
+                importer.importInto(file, race);
+                throw new AssertionError("the time " + time + " was imported as " + race.getMinRun(new RunnerIDInt(2)));
+            } catch (IOException e) {
+                Checks.check(e.getMessage().equals("Malformed results line at byte 4, after 1 imported runs."),
+                        "the time " + time + " reported as: " + e.getMessage());
+            }
+        }
+
+        // Long plain decimals still take the slow path to the nearest float
+        Files.write(file, "1,12345678901234567890.5\n2,0.000000000000000000000001\n".getBytes(StandardCharsets.US_ASCII));
+        Race race = new Race();
+        race.init();
+        Checks.check(importer.importInto(file, race) == 2, "long decimals were not imported");
+        Checks.check(race.getMinRun(new RunnerIDInt(1)) == 12345678901234567890.5f,
+                "a long decimal was not rounded to the nearest float");
+        Checks.check(race.getMinRun(new RunnerIDInt(2)) == 1e-24f, "a long fraction was not rounded to the nearest float");
+    }
+}
@@ -0,0 +1,9 @@
+public class RunResult {
+    public final RunnerID id;
+    public final float time;
+
+    public RunResult(RunnerID id, float time) {
+        this.id = id;
+        this.time = time;
+    }
+}
@@ -0,0 +1,216 @@
+// Every run time in a race, as an AVL tree of distinct times where each node counts its own runs
+// and the runs in its subtree. Counting the runs below a time, finding the k'th fastest run and
+// adding or removing a run are all O(log d) in the d distinct times. See Race.setRunTimeIndex.
+public class RunTimeIndex {
+    private Node root;
+
+    public void addRun(float time) {
+        root = add(root, time);
+    }
+
+    // Removes one run of the given time, returns false if there is none
+    public boolean removeRun(float time) {
+        if (countOf(time) == 0) {
+            return false;
+        }
+        root = remove(root, time);
+        return true;
+    }
+
+    public long size() {
+        return runs(root);
+    }
+
+    // Number of runs strictly faster than time
+    public long countBelow(float time) {
+        long count = 0;
+        Node node = root;
+        while (node != null) {
+            if (node.time < time) {
+                count += runs(node.left) + node.count;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return count;
+    }
+
+    // Number of runs of exactly time
+    public long countOf(float time) {
+        Node node = root;
+        while (node != null) {
+            if (time < node.time) {
+                node = node.left;
+            } else if (time > node.time) {
+                node = node.right;
+            } else {
+                return node.count;
+            }
+        }
+        return 0;
+    }
+
+    // The k'th fastest run, k from 1 to size()
+    public float kthRun(long k) {
+        if (k < 1 || k > size()) {
+            throw new IllegalArgumentException("Run " + k + " is out of range, the race has " + size() + " runs.");
+        }
+        Node node = root;
+        while (true) {
+            long left = runs(node.left);
+            if (k <= left) {
+                node = node.left;
+            } else if (k <= left + node.count) {
+                return node.time;
+            } else {
+                k -= left + node.count;
+                node = node.right;
+            }
+        }
+    }
+
+    // The run at percentile p (0 < p <= 1) by nearest rank, or Float.MAX_VALUE if there are no runs
+    public float percentileRun(double p) {
+        if (!(p > 0 && p <= 1)) {
+            throw new IllegalArgumentException("Percentile " + p + " is not in (0, 1].");
+        }
+        long n = size();
+        if (n == 0) {
+            return Float.MAX_VALUE;
+        }
+        return kthRun((long) Math.max(1, Math.ceil(p * n)));
+    }
+
+    // Run counts between ascending bounds: counts[0] is below bounds[0], counts[i] is in
+    // [bounds[i-1], bounds[i]) and the last one is from the last bound up. O(b log d) for b bounds.
+    public long[] histogram(float[] bounds) {
+        for (int i = 1; i < bounds.length; i++) {
+            if (!(bounds[i - 1] < bounds[i])) {
+                throw new IllegalArgumentException("Histogram bounds must be strictly ascending.");
+            }
+        }
+        long[] counts = new long[bounds.length + 1];
+        long below = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            long upTo = countBelow(bounds[i]);
+            counts[i] = upTo - below;
+            below = upTo;
+        }
+        counts[bounds.length] = size() - below;
+        return counts;
+    }
+
+    private Node add(Node node, float time) {
+        if (node == null) {
+            return new Node(time);
+        }
+        if (time < node.time) {
+            node.left = add(node.left, time);
+        } else if (time > node.time) {
+            node.right = add(node.right, time);
+        } else {
+            node.count++;
+            node.subtreeRuns++;
+            return node;
+        }
+        return rebalance(node);
+    }
+
+    // time must be in the subtree
+    private Node remove(Node node, float time) {
+        if (time < node.time) {
+            node.left = remove(node.left, time);
+        } else if (time > node.time) {
+            node.right = remove(node.right, time);
+        } else if (node.count > 1) {
+            node.count--;
+            node.subtreeRuns--;
+            return node;
+        } else if (node.left == null || node.right == null) {
+            return node.left != null ? node.left : node.right;
+        } else {
+            // The successor's time and runs move up here, then its node is taken out of the right subtree
+            Node successor = node.right;
+            while (successor.left != null) {
+                successor = successor.left;
+            }
+            node.time = successor.time;
+            node.count = successor.count;
+            node.right = removeSmallest(node.right);
+        }
+        return rebalance(node);
+    }
+
+    private Node removeSmallest(Node node) {
+        if (node.left == null) {
+            return node.right;
+        }
+        node.left = removeSmallest(node.left);
+        return rebalance(node);
+    }
+
+    private static long runs(Node node) {
+        return node == null ? 0 : node.subtreeRuns;
+    }
+
+    private static int height(Node node) {
+        return node == null ? 0 : node.height;
+    }
+
+    private static void update(Node node) {
+        node.height = 1 + Math.max(height(node.left), height(node.right));
+        node.subtreeRuns = runs(node.left) + runs(node.right) + node.count;
+    }
+
+    private static Node rebalance(Node node) {
+        update(node);
+        int balance = height(node.left) - height(node.right);
+        if (balance > 1) {
+            if (height(node.left.left) < height(node.left.right)) {
+                node.left = rotateLeft(node.left);
+            }
+            return rotateRight(node);
+        }
+        if (balance < -1) {
+            if (height(node.right.right) < height(node.right.left)) {
+                node.right = rotateRight(node.right);
+            }
+            return rotateLeft(node);
+        }
+        return node;
+    }
+
+    private static Node rotateRight(Node node) {
+        Node left = node.left;
+        node.left = left.right;
+        left.right = node;
+        update(node);
+        update(left);
+        return left;
+    }
+
+    private static Node rotateLeft(Node node) {
+        Node right = node.right;
+        node.right = right.left;
+        right.left = node;
+        update(node);
+        update(right);
+        return right;
+    }
+
+    private static class Node {
+        float time;
+        int count; // Runs of this time
+        long subtreeRuns; // Runs in the subtree rooted here
+        int height;
+        Node left, right;
+
+        Node(float time) {
+            this.time = time;
+            this.count = 1;
+            this.subtreeRuns = 1;
+            this.height = 1;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+// The runs in one runner's form window, oldest first, see FormWindow. Adding a run and dropping the
+// oldest one are O(1) amortized. The window min is the front of a deque of the runs that are
+// faster than every run after them, and the average comes from a running weighted sum.
+class RunWindow {
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final FormWindow form;
+
+    // The runs as a ring buffer of size runs starting at head
+    private long[] sequences; // Race wide run numbers, ascending
+    private long[] stamps;
+    private float[] times;
+    private int head;
+    private int size;
+
+    // Deque of min candidates as a ring buffer: runs no later run is faster than, in window order
+    private long[] candidateSequences;
+    private float[] candidateTimes;
+    private int candidateHead;
+    private int candidateCount;
+
+    // Sum of weight * time and of the weights over the window. Weights are relative to newestStamp,
+    // the newest run weighs 1. Without a half life every weight is 1.
+    private double weightedSum;
+    private double sumCompensation; // Rounding error weightedSum has lost, as in Race.addToSum
+    private double totalWeight;
+    private long newestStamp;
+
+    RunWindow(FormWindow form) {
+        this.form = form;
+        this.sequences = new long[INITIAL_CAPACITY];
+        this.stamps = new long[INITIAL_CAPACITY];
+        this.times = new float[INITIAL_CAPACITY];
+        this.candidateSequences = new long[INITIAL_CAPACITY];
+        this.candidateTimes = new float[INITIAL_CAPACITY];
+    }
+
+    // stamp must not be older than the newest run in the window
+    void add(long sequence, long stamp, float time) {
+        if (size == sequences.length) {
+            int capacity = sequences.length * 2;
+            sequences = unwrap(sequences, capacity);
+            stamps = unwrap(stamps, capacity);
+            times = unwrap(times, capacity);
+            head = 0;
+        }
+        int slot = (head + size) % sequences.length;
+        sequences[slot] = sequence;
+        stamps[slot] = stamp;
+        times[slot] = time;
+        size++;
+
+        // The new run outlives every slower or equal candidate before it, so they can never be the min again
+        while (candidateCount > 0 && candidateTimes[candidateSlot(candidateCount - 1)] >= time) {
+            candidateCount--;
+        }
+        if (candidateCount == candidateSequences.length) {
+            int capacity = candidateSequences.length * 2;
+            candidateSequences = unwrap(candidateSequences, candidateHead, candidateCount, capacity);
+            candidateTimes = unwrap(candidateTimes, candidateHead, candidateCount, capacity);
+            candidateHead = 0;
+        }
+        int candidate = candidateSlot(candidateCount);
+        candidateSequences[candidate] = sequence;
+        candidateTimes[candidate] = time;
+        candidateCount++;
+
+        if (form.halfLife > 0 && size > 1 && stamp > newestStamp) {
+            double decay = Math.pow(0.5, (double) (stamp - newestStamp) / form.halfLife);
+            weightedSum *= decay;
+            sumCompensation *= decay;
+            totalWeight *= decay;
+        }
+        newestStamp = stamp;
+        addToSum(time);
+        totalWeight += 1;
+
+        if (form.maxRuns > 0 && size > form.maxRuns) {
+            removeOldest();
+        }
+    }
+
+    void removeOldest() {
+        long sequence = sequences[head];
+        double weight = weight(stamps[head]);
+        float time = times[head];
+        head = (head + 1) % sequences.length;
+        size--;
+        if (candidateCount > 0 && candidateSequences[candidateHead] == sequence) {
+            candidateHead = (candidateHead + 1) % candidateSequences.length;
+            candidateCount--;
+        }
+        if (size == 0) {
+            clearSums();
+        } else {
+            addToSum(-weight * time);
+            totalWeight -= weight;
+        }
+    }
+
+    // Removes the oldest of the runner's runs of the given time, remaining being how many of them
+    // the runner still has afterwards. The window holds the newest runs, so the removed run was in
+    // it only if every run of that time is, and otherwise the window is left as it is. Returns
+    // whether it changed. This is a correction rather than the normal flow of runs, so it is
+    // O(size): the runs after it shift down and the deque and sums are rebuilt.
+    boolean remove(float time, int remaining) {
+        int index = -1;
+        int inWindow = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            if (times[(head + i) % times.length] == time) {
+                index = i;
+                inWindow++;
+            }
+        }
+        if (inWindow == 0 || remaining >= inWindow) {
+            return false;
+        }
+        long[] oldSequences = new long[size - 1];
+        long[] oldStamps = new long[size - 1];
+        float[] oldTimes = new float[size - 1];
+        for (int i = 0, j = 0; i < size; i++) {
+            if (i != index) {
+                int slot = (head + i) % times.length;
+                oldSequences[j] = sequences[slot];
+                oldStamps[j] = stamps[slot];
+                oldTimes[j] = times[slot];
+                j++;
+            }
+        }
+        clear();
+        for (int i = 0; i < oldTimes.length; i++) {
+            add(oldSequences[i], oldStamps[i], oldTimes[i]);
+        }
+        return true;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long oldestSequence() {
+        return sequences[head];
+    }
+
+    // The fastest run in the window, or Float.MAX_VALUE if it is empty
+    float min() {
+        return candidateCount == 0 ? Float.MAX_VALUE : candidateTimes[candidateHead];
+    }
+
+    // The (weighted) average of the window, or Float.MAX_VALUE if it is empty
+    float average() {
+        if (size == 0) {
+            return Float.MAX_VALUE;
+        }
+        return (float) ((weightedSum + sumCompensation) / totalWeight);
+    }
+
+    private double weight(long stamp) {
+        if (form.halfLife == 0) {
+            return 1;
+        }
+        return Math.pow(0.5, (double) (newestStamp - stamp) / form.halfLife);
+    }
+
+    private void addToSum(double value) {
+        double sum = weightedSum + value;
+        if (Math.abs(weightedSum) >= Math.abs(value)) {
+            sumCompensation += (weightedSum - sum) + value;
+        } else {
+            sumCompensation += (value - sum) + weightedSum;
+        }
+        weightedSum = sum;
+    }
+
+    private void clear() {
+        head = 0;
+        size = 0;
+        candidateHead = 0;
+        candidateCount = 0;
+        clearSums();
+    }
+
+    // Start the next run from exact zeros instead of whatever error is left
+    private void clearSums() {
+        weightedSum = 0.0;
+        sumCompensation = 0.0;
+        totalWeight = 0.0;
+    }
+
+    private int candidateSlot(int i) {
+        return (candidateHead + i) % candidateSequences.length;
+    }
+
+    // Copies of a full ring buffer with the oldest entry first
+    private long[] unwrap(long[] ring, int capacity) {
+        return unwrap(ring, head, size, capacity);
+    }
+
+    private float[] unwrap(float[] ring, int capacity) {
+        return unwrap(ring, head, size, capacity);
+    }
+
+    private static long[] unwrap(long[] ring, int start, int count, int capacity) {
+        long[] copy = new long[capacity];
+        for (int i = 0; i < count; i++) {
+            copy[i] = ring[(start + i) % ring.length];
+        }
+        return copy;
+    }
+
+    private static float[] unwrap(float[] ring, int start, int count, int capacity) {
+        float[] copy = new float[capacity];
+        for (int i = 0; i < count; i++) {
+            copy[i] = ring[(start + i) % ring.length];
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,8 @@
+// Turns runner IDs into bytes and back for Race.save and Race.load. RunnerID has no serialized
+// form of its own, so every kind of ID that is saved needs a codec.
+public interface RunnerIDCodec {
+    byte[] encode(RunnerID id);
+
+    // Must return an ID equal to the one that was encoded, as far as isSmaller can tell
+    RunnerID decode(byte[] bytes);
+}
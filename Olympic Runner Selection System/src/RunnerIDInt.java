@@ -0,0 +1,27 @@
+class RunnerIDInt extends RunnerID implements HashableRunnerID{
+    private int id;
+    public RunnerIDInt(int id){
+        super();
+        this.id = id;
+    }
+    @Override
+    public boolean isSmaller(RunnerID other) {
+        return this.id < ((RunnerIDInt)other).id;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(this.id);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof RunnerIDInt && this.id == ((RunnerIDInt)other).id;
+    }
+
+    @Override
+    public int hashCode() {
+        return Integer.hashCode(this.id);
+    }
+
+}
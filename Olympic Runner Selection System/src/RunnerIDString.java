@@ -0,0 +1,18 @@
+// Slow to compare and without a hash, so every lookup walks Race's ID tree with string compares
+class RunnerIDString extends RunnerID {
+    private final String id;
+    public RunnerIDString(int id){
+        super();
+        this.id = "runner-" + String.format("%09d", id);
+    }
+    @Override
+    public boolean isSmaller(RunnerID other) {
+        return this.id.compareTo(((RunnerIDString)other).id) < 0;
+    }
+
+    @Override
+    public String toString() {
+        return this.id;
+    }
+
+}
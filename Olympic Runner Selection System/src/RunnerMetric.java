@@ -0,0 +1,39 @@
+// A score computed from a runner's runs, for ranking runners with Race.addScoreIndex. Lower scores
+// rank first. A runner the metric cannot score yet, for example one without runs, gets
+// Float.MAX_VALUE and ranks last. The score must depend on nothing but the runs.
+public interface RunnerMetric {
+    float score(RunsForRunnerTree runs);
+
+    // The median run, the mean of the two middle runs when there is an even number of them
+    static RunnerMetric median() {
+        return RunsForRunnerTree::medianRun;
+    }
+
+    // The run at percentile p (0 < p <= 1) by nearest rank: the ceil(p * n)'th fastest of n runs
+    static RunnerMetric percentile(double p) {
+        if (!(p > 0 && p <= 1)) {
+            throw new IllegalArgumentException("Percentile " + p + " is not in (0, 1].");
+        }
+        return runs -> runs.percentileRun(p);
+    }
+
+    // The mean of the runner's k fastest runs, runners with fewer than k runs are not scored
+    static RunnerMetric bestOf(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("At least one run must count.");
+        }
+        return runs -> {
+            if (runs.size() < k) {
+                return Float.MAX_VALUE;
+            }
+            double sum = 0;
+            int left = k;
+            for (int i = 0; left > 0; i++) {
+                int taken = Math.min(left, runs.countAt(i));
+                sum += (double) runs.timeAt(i) * taken;
+                left -= taken;
+            }
+            return (float) (sum / k);
+        };
+    }
+}
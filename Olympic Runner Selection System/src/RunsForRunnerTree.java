@@ -1,48 +1,171 @@
+import java.util.Arrays;
+
+// A runner's run times as a sorted multiset with order statistics. Distinct times are kept in
+// ascending order in a primitive array, and a parallel array holds how many runs are at or below
+// each of them, so the k'th fastest run is a binary search and adding a run allocates nothing
+// once the arrays have grown to fit.
+//
+// The price is that addRun and removeRun are O(distinct): a new time shifts every larger time up
+// by one, and any change updates the counts of every larger time. That is a few cache lines for the
+// handful of times a runner usually has, and O(1) when runs come in ascending order, but a runner
+// with many distinct times pays for the whole suffix when a new fastest run arrives.
 public class RunsForRunnerTree {
-    public FloatNode runRoot;
+    private static final int INITIAL_CAPACITY = 4;
+
+    private float[] times; // Distinct run times, ascending in [0, distinct)
+    private int[] ends; // ends[i] is the number of runs of times[0..i], so runs[ends[i-1]..ends[i]) are times[i]
+    private int distinct; // Number of distinct run times
+    private int numRuns; // Number of runs, duplicates included
 
     public RunsForRunnerTree(){
-        this.runRoot = null;
+        this.times = new float[INITIAL_CAPACITY];
+        this.ends = new int[INITIAL_CAPACITY];
+        this.distinct = 0;
+        this.numRuns = 0;
     }
-    public void addRun(RunnerID id, float time) {
-        FloatNode newNode = new FloatNode(id);
-        newNode.time = time;
-        runRoot = insertRun(runRoot, newNode);
+
+    // Takes over sorted distinct times and how often each was run, used when loading a saved race
+    RunsForRunnerTree(float[] times, int[] counts, int distinct, int numRuns){
+        this.times = times;
+        this.ends = counts;
+        for (int i = 1; i < distinct; i++) {
+            ends[i] += ends[i - 1];
+        }
+        this.distinct = distinct;
+        this.numRuns = numRuns;
     }
 
+    public void addRun(float time) {
+        int index = indexOf(time);
+        if (index < 0) {
+            index = -(index + 1);
+            if (distinct == times.length) {
+                int capacity = Math.max(INITIAL_CAPACITY, distinct * 2);
+                times = Arrays.copyOf(times, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+            }
+            // Shift the larger times up by one to make room
+            System.arraycopy(times, index, times, index + 1, distinct - index);
+            System.arraycopy(ends, index, ends, index + 1, distinct - index);
+            times[index] = time;
+            ends[index] = index == 0 ? 0 : ends[index - 1];
+            distinct++;
+        }
+        // The new run is counted at its own time and every larger one
+        for (int i = index; i < distinct; i++) {
+            ends[i]++;
+        }
+        numRuns++;
+    }
 
-    public FloatNode insertRun(FloatNode node, FloatNode newNode) {
-        if (node == null) {
-            return newNode; // If the current node is null, insert the new node here
+    // Removes one run of the given time, returns false if there is none
+    public boolean removeRun(float time) {
+        int index = indexOf(time);
+        if (index < 0) {
+            return false;
+        }
+        for (int i = index; i < distinct; i++) {
+            ends[i]--;
         }
+        if (countAt(index) == 0) {
+            System.arraycopy(times, index + 1, times, index, distinct - index - 1);
+            System.arraycopy(ends, index + 1, ends, index, distinct - index - 1);
+            distinct--;
+        }
+        numRuns--;
+        return true;
+    }
+
+    public boolean containsRun(float time) {
+        return indexOf(time) >= 0;
+    }
 
-        if (newNode.time < node.time) {
-            // If the average run time of the new node is smaller, insert it in the left subtree
-            node.left = insertRun(node.left, newNode);
-        } else if (newNode.time > node.time) {
-            // If the average run time of the new node is larger, insert it in the right subtree
-            node.right = insertRun(node.right, newNode);
-        } else {
-            node.middle = insertRun(node.middle, newNode);
+    // The fastest run, or Float.MAX_VALUE if there are no runs
+    public float minRun() {
+        return distinct == 0 ? Float.MAX_VALUE : times[0];
+    }
+
+    // The k'th fastest run, k from 1 to size(), in O(log distinct)
+    public float kthRun(int k) {
+        if (k < 1 || k > numRuns) {
+            throw new IllegalArgumentException("Run " + k + " is out of range, the runner has " + numRuns + " runs.");
         }
-        return node;
+        // The first distinct time whose runs reach k
+        int low = 0;
+        int high = distinct - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ends[middle] < k) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return times[low];
     }
 
-    public FloatNode findRun(FloatNode node, float time) {
-        if (node == null) {
-            return null;
+    // The median run, the mean of the two middle runs when there is an even number of them, or
+    // Float.MAX_VALUE if there are no runs
+    public float medianRun() {
+        if (numRuns == 0) {
+            return Float.MAX_VALUE;
+        }
+        if (numRuns % 2 == 1) {
+            return kthRun(numRuns / 2 + 1);
         }
+        return (float) (((double) kthRun(numRuns / 2) + kthRun(numRuns / 2 + 1)) / 2);
+    }
+
+    // The run at percentile p (0 < p <= 1) by nearest rank, the ceil(p * n)'th fastest of n runs,
+    // or Float.MAX_VALUE if there are no runs
+    public float percentileRun(double p) {
+        if (!(p > 0 && p <= 1)) {
+            throw new IllegalArgumentException("Percentile " + p + " is not in (0, 1].");
+        }
+        if (numRuns == 0) {
+            return Float.MAX_VALUE;
+        }
+        return kthRun((int) Math.max(1, Math.ceil(p * numRuns)));
+    }
+
+    public int size() {
+        return numRuns;
+    }
+
+    // How many runs of exactly this time the runner has
+    public int countOf(float time) {
+        int index = indexOf(time);
+        return index < 0 ? 0 : countAt(index);
+    }
+
+    public int distinctRuns() {
+        return distinct;
+    }
+
+    // The i'th smallest distinct run time and how many runs of it there are
+    public float timeAt(int i) {
+        return times[i];
+    }
+
+    public int countAt(int i) {
+        return i == 0 ? ends[0] : ends[i] - ends[i - 1];
+    }
 
-        if (time < node.time) {
-            // If the time is smaller than the current node's minRunTime, search in the left subtree
-            return findRun(node.left, time);
-        } else if (time > node.time) {
-            // If the time is larger than the current node's minRunTime, search in the right subtree
-            return findRun(node.right, time);
-        } else {
-            // If the time matches the current node's minRunTime, search in the middle subtree
-            // or return the current node if the time is found
-            return node;
+    // Binary search on the distinct times, same result convention as Arrays.binarySearch.
+    // Times are compared with < and > so 0.0 and -0.0 count as the same time.
+    private int indexOf(float time) {
+        int low = 0;
+        int high = distinct - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (times[middle] < time) {
+                low = middle + 1;
+            } else if (times[middle] > time) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
         }
+        return -(low + 1);
     }
 }
@@ -0,0 +1,20 @@
+// A ranking of a race's runners by a RunnerMetric, see Race.addScoreIndex. The race scores every
+// runner again whenever its runs change, and only moves it in the index's tree when the score did.
+public class ScoreIndex {
+    public final String name;
+    final RunnerMetric metric;
+    MetricTree tree;
+    int slot; // Position of the runner's entry in Race.Node.metricEntries
+
+    ScoreIndex(String name, RunnerMetric metric, int slot) {
+        this.name = name;
+        this.metric = metric;
+        this.tree = new MetricTree();
+        this.slot = slot;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,488 @@
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+public abstract class ScoreTree {
+    // A batch touching at least 1/REBUILD_FRACTION of the nodes rebuilds the tree instead of moving nodes one by one
+    private static final int REBUILD_FRACTION = 16;
+
+    public FloatNode root;
+    private FloatNode smallest; // Leftmost node, cached so the fastest runner is O(1)
+    private final SnapshotClock clock;
+
+    public ScoreTree(){
+        this(new SnapshotClock());
+    }
+
+    public ScoreTree(SnapshotClock clock){
+        this.root = null;
+        this.smallest = null;
+        this.clock = clock;
+    }
+
+    // The score this tree is ordered by (average or minimum run time)
+    protected abstract float key(FloatNode node);
+
+    protected abstract void setKey(FloatNode node, float score);
+
+    protected FloatNode createNode(RunnerID id) {
+        FloatNode node = allocate(id);
+        node.version = clock.epoch;
+        return node;
+    }
+
+    // Trees whose nodes carry more than the two run time fields allocate a FloatNode subclass
+    protected FloatNode allocate(RunnerID id) {
+        return new FloatNode(id);
+    }
+
+    // Changes the score of a node in the tree, call reposition or repositionAll afterwards
+    public void setScore(FloatNode node, float score) {
+        touch(node);
+        setKey(node, score);
+    }
+
+    // Must run before any field a snapshot reads (children, size, height, score) is written
+    private void touch(FloatNode node) {
+        if (node.version == clock.epoch) {
+            return;
+        }
+        if (clock.hasOpenSnapshots()) {
+            node.prior = node.copy();
+            // Versions older than the one the oldest open snapshot sees can no longer be read
+            long oldest = clock.oldestOpen();
+            FloatNode kept = node.prior;
+            while (kept != null && kept.version > oldest) {
+                kept = kept.prior;
+            }
+            if (kept != null) {
+                kept.prior = null;
+            }
+        } else {
+            node.prior = null;
+        }
+        node.version = clock.epoch;
+    }
+
+    public void insert(FloatNode newNode) {
+        touch(newNode);
+        newNode.left = null;
+        newNode.right = null;
+        newNode.size = 1;
+        newNode.height = 1;
+
+        // Walk down to the leaf position of the new node
+        FloatNode parent = null;
+        FloatNode node = root;
+        boolean goLeft = false;
+        while (node != null) {
+            parent = node;
+            goLeft = compare(newNode, node) < 0;
+            node = goLeft ? node.left : node.right;
+        }
+
+        newNode.parent = parent;
+        if (parent == null) {
+            root = newNode;
+        } else {
+            touch(parent);
+            if (goLeft) {
+                parent.left = newNode;
+            } else {
+                parent.right = newNode;
+            }
+        }
+        rebalanceUp(parent);
+
+        if (smallest == null || compare(newNode, smallest) < 0) {
+            smallest = newNode;
+        }
+    }
+
+    // Detaches node from the tree through its parent pointers, no search is needed
+    public void unlink(FloatNode node) {
+        if (node == smallest) {
+            smallest = successor(node);
+        }
+
+        FloatNode start;
+        if (node.left != null && node.right != null) {
+            // Node has two children, its successor takes its place
+            FloatNode successor = leftmost(node.right);
+            touch(successor);
+            if (successor.parent == node) {
+                start = successor;
+            } else {
+                start = successor.parent;
+                replaceChild(successor.parent, successor, successor.right);
+                successor.right = node.right;
+                node.right.parent = successor;
+            }
+            successor.left = node.left;
+            node.left.parent = successor;
+            replaceChild(node.parent, node, successor);
+        } else {
+            start = node.parent;
+            replaceChild(node.parent, node, node.left != null ? node.left : node.right);
+        }
+
+        touch(node);
+        node.left = null;
+        node.right = null;
+        node.parent = null;
+        rebalanceUp(start);
+    }
+
+    // Moves node to its new position after its score changed. When it still sits between
+    // its neighbours the tree is left as it is, otherwise the same node is relinked.
+    public void reposition(FloatNode node) {
+        FloatNode previous = predecessor(node);
+        FloatNode next = successor(node);
+        if ((previous == null || compare(previous, node) < 0) && (next == null || compare(node, next) < 0)) {
+            return;
+        }
+        unlink(node);
+        insert(node);
+    }
+
+    // Repositions every node in changed. When a large share of the tree changed, the unchanged nodes
+    // (still in order) are merged with the sorted changed ones and the tree is rebuilt bottom up.
+    public void repositionAll(List<FloatNode> changed) {
+        if (changed.size() * REBUILD_FRACTION < size()) {
+            // Changed nodes may sit out of order next to each other, so none can be compared against
+            // while it is still linked. Take them all out before putting any back.
+            for (FloatNode node : changed) {
+                unlink(node);
+            }
+            for (FloatNode node : changed) {
+                insert(node);
+            }
+            return;
+        }
+
+        IdentityHashMap<FloatNode, Boolean> isChanged = new IdentityHashMap<>();
+        for (FloatNode node : changed) {
+            isChanged.put(node, Boolean.TRUE);
+        }
+        FloatNode[] sortedChanged = changed.toArray(new FloatNode[0]);
+        Arrays.sort(sortedChanged, this::compare);
+
+        // The links still describe the old order, so an in-order walk yields the unchanged nodes sorted
+        FloatNode[] nodes = new FloatNode[size()];
+        int count = 0;
+        int next = 0;
+        for (FloatNode node = leftmost(root); node != null; node = successor(node)) {
+            if (isChanged.containsKey(node)) {
+                continue;
+            }
+            while (next < sortedChanged.length && compare(sortedChanged[next], node) < 0) {
+                nodes[count++] = sortedChanged[next++];
+            }
+            nodes[count++] = node;
+        }
+        while (next < sortedChanged.length) {
+            nodes[count++] = sortedChanged[next++];
+        }
+        buildFrom(nodes);
+    }
+
+    // Replaces the tree with a balanced tree over nodes, which must already be in score order
+    public void buildFrom(FloatNode[] nodes) {
+        root = build(nodes, 0, nodes.length - 1, null);
+        smallest = nodes.length == 0 ? null : nodes[0];
+    }
+
+    private FloatNode build(FloatNode[] nodes, int low, int high, FloatNode parent) {
+        if (low > high) {
+            return null;
+        }
+        int middle = (low + high) >>> 1;
+        FloatNode node = nodes[middle];
+        touch(node);
+        node.parent = parent;
+        node.left = build(nodes, low, middle - 1, node);
+        node.right = build(nodes, middle + 1, high, node);
+        update(node);
+        return node;
+    }
+
+    public FloatNode first() {
+        return smallest;
+    }
+
+    public int size() {
+        return size(root);
+    }
+
+    public int height() {
+        return height(root);
+    }
+
+    // Number of nodes ordered before node, found by walking up to the root
+    public int rank(FloatNode node) {
+        int rank = size(node.left);
+        while (node.parent != null) {
+            if (node == node.parent.right) {
+                rank += 1 + size(node.parent.left);
+            }
+            node = node.parent;
+        }
+        return rank;
+    }
+
+    // Number of nodes ordered before (score, id), found by adding up left subtree sizes on the way down
+    public int rank(float score, RunnerID id) {
+        int rank = 0;
+        FloatNode node = root;
+        while (node != null) {
+            int comparison = compare(score, id, node);
+            if (comparison < 0) {
+                node = node.left;
+            } else if (comparison > 0) {
+                rank += 1 + size(node.left);
+                node = node.right;
+            } else {
+                return rank + size(node.left);
+            }
+        }
+        return rank;
+    }
+
+    // The node at the given zero based position in score order, or null if there is none
+    public FloatNode select(int index) {
+        FloatNode node = root;
+        while (node != null) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index > leftSize) {
+                index -= leftSize + 1;
+                node = node.right;
+            } else {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    // The first node whose score is at least score, or null if there is none
+    public FloatNode ceiling(float score) {
+        FloatNode candidate = null;
+        FloatNode node = root;
+        while (node != null) {
+            if (key(node) >= score) {
+                candidate = node;
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+        return candidate;
+    }
+
+    // Runner IDs in score order from node on, stopping after limit of them or at the first score above maxScore
+    public Iterator<RunnerID> iterator(FloatNode from, int limit, float maxScore) {
+        return new Iterator<RunnerID>() {
+            private FloatNode next = from;
+            private int remaining = limit;
+
+            @Override
+            public boolean hasNext() {
+                return next != null && remaining > 0 && key(next) <= maxScore;
+            }
+
+            @Override
+            public RunnerID next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                FloatNode node = next;
+                next = successor(node);
+                remaining--;
+                return node.id;
+            }
+        };
+    }
+
+    // Snapshot counterparts of rank and select, reading every node as it was at version
+    public int rankAt(FloatNode root, long version, float score, RunnerID id) {
+        int rank = 0;
+        FloatNode node = FloatNode.at(root, version);
+        while (node != null) {
+            int comparison = compare(score, id, node);
+            FloatNode left = FloatNode.at(node.left, version);
+            if (comparison < 0) {
+                node = left;
+            } else if (comparison > 0) {
+                rank += 1 + size(left);
+                node = FloatNode.at(node.right, version);
+            } else {
+                return rank + size(left);
+            }
+        }
+        return rank;
+    }
+
+    public FloatNode selectAt(FloatNode root, long version, int index) {
+        FloatNode node = FloatNode.at(root, version);
+        while (node != null) {
+            FloatNode left = FloatNode.at(node.left, version);
+            int leftSize = size(left);
+            if (index < leftSize) {
+                node = left;
+            } else if (index > leftSize) {
+                index -= leftSize + 1;
+                node = FloatNode.at(node.right, version);
+            } else {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    // Nodes are ordered by score first and by RunnerID.isSmaller when the scores are equal
+    public int compare(float score, RunnerID id, FloatNode node) {
+        float nodeScore = key(node);
+        if (score < nodeScore) {
+            return -1;
+        } else if (score > nodeScore) {
+            return 1;
+        } else if (id.isSmaller(node.id)) {
+            return -1;
+        } else if (node.id.isSmaller(id)) {
+            return 1;
+        }
+        return 0;
+    }
+
+    private int compare(FloatNode first, FloatNode second) {
+        return compare(key(first), first.id, second);
+    }
+
+    public static FloatNode successor(FloatNode node) {
+        if (node.right != null) {
+            return leftmost(node.right);
+        }
+        while (node.parent != null && node == node.parent.right) {
+            node = node.parent;
+        }
+        return node.parent;
+    }
+
+    public static FloatNode predecessor(FloatNode node) {
+        if (node.left != null) {
+            node = node.left;
+            while (node.right != null) {
+                node = node.right;
+            }
+            return node;
+        }
+        while (node.parent != null && node == node.parent.left) {
+            node = node.parent;
+        }
+        return node.parent;
+    }
+
+    private static FloatNode leftmost(FloatNode node) {
+        if (node == null) {
+            return null;
+        }
+        while (node.left != null) {
+            node = node.left;
+        }
+        return node;
+    }
+
+    public static int size(FloatNode node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static int height(FloatNode node) {
+        return node == null ? 0 : node.height;
+    }
+
+    private void update(FloatNode node) {
+        touch(node);
+        node.size = 1 + size(node.left) + size(node.right);
+        node.height = 1 + Math.max(height(node.left), height(node.right));
+    }
+
+    // Puts child where oldChild was under parent, or at the root when parent is null
+    private void replaceChild(FloatNode parent, FloatNode oldChild, FloatNode child) {
+        if (parent == null) {
+            root = child;
+        } else {
+            touch(parent);
+            if (parent.left == oldChild) {
+                parent.left = child;
+            } else {
+                parent.right = child;
+            }
+        }
+        // Parent pointers are not read by snapshots, so the child is not touched
+        if (child != null) {
+            child.parent = parent;
+        }
+    }
+
+    private void rotateRight(FloatNode node) {
+        FloatNode pivot = node.left;
+        touch(node);
+        touch(pivot);
+        node.left = pivot.right;
+        if (pivot.right != null) {
+            pivot.right.parent = node;
+        }
+        replaceChild(node.parent, node, pivot);
+        pivot.right = node;
+        node.parent = pivot;
+        update(node);
+        update(pivot);
+    }
+
+    private void rotateLeft(FloatNode node) {
+        FloatNode pivot = node.right;
+        touch(node);
+        touch(pivot);
+        node.right = pivot.left;
+        if (pivot.left != null) {
+            pivot.left.parent = node;
+        }
+        replaceChild(node.parent, node, pivot);
+        pivot.left = node;
+        node.parent = pivot;
+        update(node);
+        update(pivot);
+    }
+
+    // Restores the AVL property at node, assuming both subtrees are balanced, and returns the subtree root
+    private FloatNode rebalance(FloatNode node) {
+        update(node);
+        int balance = height(node.left) - height(node.right);
+        if (balance > 1) {
+            if (height(node.left.left) < height(node.left.right)) {
+                rotateLeft(node.left);
+            }
+            rotateRight(node);
+            return node.parent;
+        }
+        if (balance < -1) {
+            if (height(node.right.right) < height(node.right.left)) {
+                rotateRight(node.right);
+            }
+            rotateLeft(node);
+            return node.parent;
+        }
+        return node;
+    }
+
+    // Fixes sizes, heights and balance from node up to the root
+    private void rebalanceUp(FloatNode node) {
+        while (node != null) {
+            node = rebalance(node).parent;
+        }
+    }
+
+}
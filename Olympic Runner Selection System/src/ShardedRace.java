@@ -0,0 +1,242 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// Race split over shards by runner ID hash. Each runner lives in one shard, so runs for runners
+// of different shards are added in parallel, each shard on its own thread. Queries are answered
+// by asking every shard and merging: a runner's rank is one plus the number of runners each shard
+// orders before the runner's (score, ID), and the fastest runner is the fastest of the shards'
+// fastest. The order is the same (score, ID) order in every shard, so the merged answers match a
+// single Race holding all the runners.
+//
+// Shards are only reached through RaceShard, so they can be LocalRaceShards or stubs for shards
+// in other processes. While runs are still coming in, a merged answer is only as consistent as the
+// shards were when each of them was asked.
+//
+// Only HashableRunnerIDs are spread over the shards. Other IDs have no hash that agrees with
+// isSmaller, so they all go to shard 0: a race of such IDs is not sharded at all, one shard holds
+// every runner and does all the work while the others stay empty.
+public class ShardedRace implements AutoCloseable {
+    private final RaceShard[] shards;
+
+    public ShardedRace(int shardCount) {
+        this(localShards(shardCount));
+    }
+
+    public ShardedRace(RaceShard[] shards) {
+        if (shards.length < 1) {
+            throw new IllegalArgumentException("At least one shard is required.");
+        }
+        this.shards = shards.clone();
+    }
+
+    private static RaceShard[] localShards(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("At least one shard is required.");
+        }
+        RaceShard[] shards = new RaceShard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new LocalRaceShard(i);
+        }
+        return shards;
+    }
+
+    private int shardIndex(RunnerID id) {
+        if (!(id instanceof HashableRunnerID)) {
+            return 0;
+        }
+        int hash = id.hashCode();
+        hash ^= (hash >>> 16);
+        return Math.floorMod(hash, shards.length);
+    }
+
+    private RaceShard shardOf(RunnerID id) {
+        return shards[shardIndex(id)];
+    }
+
+    public void init() {
+        CompletableFuture<?>[] done = new CompletableFuture<?>[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            done[i] = shards[i].init();
+        }
+        awaitAll(done);
+    }
+
+    public void addRunner(RunnerID id) {
+        await(shardOf(id).addRunner(id));
+    }
+
+    public void removeRunner(RunnerID id) {
+        await(shardOf(id).removeRunner(id));
+    }
+
+    public void addRunToRunner(RunnerID id, float time) {
+        await(shardOf(id).addRunToRunner(id, time));
+    }
+
+    public void removeRunFromRunner(RunnerID id, float time) {
+        await(shardOf(id).removeRunFromRunner(id, time));
+    }
+
+    // The batch is split by shard and the parts are added in parallel. A bad entry leaves its own
+    // shard unchanged, but the parts for the other shards may already have been added.
+    public void addRunsBulk(RunnerID[] ids, float[] times) {
+        bulk(ids, times, true);
+    }
+
+    public void removeRunsBulk(RunnerID[] ids, float[] times) {
+        bulk(ids, times, false);
+    }
+
+    private void bulk(RunnerID[] ids, float[] times, boolean add) {
+        if (ids.length != times.length) {
+            throw new IllegalArgumentException("Got " + ids.length + " runner IDs but " + times.length + " run times.");
+        }
+        int[] shardOfRun = new int[ids.length];
+        int[] counts = new int[shards.length];
+        for (int i = 0; i < ids.length; i++) {
+            shardOfRun[i] = shardIndex(ids[i]);
+            counts[shardOfRun[i]]++;
+        }
+        RunnerID[][] shardIds = new RunnerID[shards.length][];
+        float[][] shardTimes = new float[shards.length][];
+        for (int s = 0; s < shards.length; s++) {
+            shardIds[s] = new RunnerID[counts[s]];
+            shardTimes[s] = new float[counts[s]];
+            counts[s] = 0;
+        }
+        // Runs keep their batch order within each shard
+        for (int i = 0; i < ids.length; i++) {
+            int s = shardOfRun[i];
+            shardIds[s][counts[s]] = ids[i];
+            shardTimes[s][counts[s]] = times[i];
+            counts[s]++;
+        }
+
+        CompletableFuture<?>[] done = new CompletableFuture<?>[shards.length];
+        for (int s = 0; s < shards.length; s++) {
+            if (counts[s] == 0) {
+                done[s] = CompletableFuture.completedFuture(null);
+            } else if (add) {
+                done[s] = shards[s].addRunsBulk(shardIds[s], shardTimes[s]);
+            } else {
+                done[s] = shards[s].removeRunsBulk(shardIds[s], shardTimes[s]);
+            }
+        }
+        awaitAll(done);
+    }
+
+    public float getMinRun(RunnerID id) {
+        return await(shardOf(id).getMinRun(id));
+    }
+
+    public float getAvgRun(RunnerID id) {
+        return await(shardOf(id).getAvgRun(id));
+    }
+
+    public int getRankAvg(RunnerID id) {
+        float avg = getAvgRun(id);
+        CompletableFuture<Integer>[] counts = newIntegerFutures();
+        for (int i = 0; i < shards.length; i++) {
+            counts[i] = shards[i].countBeforeAvg(avg, id);
+        }
+        return 1 + sum(counts);
+    }
+
+    public int getRankMin(RunnerID id) {
+        float min = getMinRun(id);
+        CompletableFuture<Integer>[] counts = newIntegerFutures();
+        for (int i = 0; i < shards.length; i++) {
+            counts[i] = shards[i].countBeforeMin(min, id);
+        }
+        return 1 + sum(counts);
+    }
+
+    public RunnerID getFastestRunnerAvg() {
+        CompletableFuture<RunResult>[] fastest = newResultFutures();
+        for (int i = 0; i < shards.length; i++) {
+            fastest[i] = shards[i].fastestByAvg();
+        }
+        return fastestOf(fastest);
+    }
+
+    public RunnerID getFastestRunnerMin() {
+        CompletableFuture<RunResult>[] fastest = newResultFutures();
+        for (int i = 0; i < shards.length; i++) {
+            fastest[i] = shards[i].fastestByMin();
+        }
+        return fastestOf(fastest);
+    }
+
+    // Same order as the score trees: lower time first, ties broken by the smaller ID
+    private static RunnerID fastestOf(CompletableFuture<RunResult>[] candidates) {
+        RunResult best = null;
+        for (CompletableFuture<RunResult> candidate : candidates) {
+            RunResult result = await(candidate);
+            if (result != null && (best == null || result.time < best.time
+                    || (result.time == best.time && result.id.isSmaller(best.id)))) {
+                best = result;
+            }
+        }
+        if (best == null) {
+            throw new IllegalArgumentException("No runners in the race.");
+        }
+        return best.id;
+    }
+
+    private static int sum(CompletableFuture<Integer>[] counts) {
+        int total = 0;
+        for (CompletableFuture<Integer> count : counts) {
+            total += await(count);
+        }
+        return total;
+    }
+
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Integer>[] newIntegerFutures() {
+        return (CompletableFuture<Integer>[]) new CompletableFuture<?>[shards.length];
+    }
+
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<RunResult>[] newResultFutures() {
+        return (CompletableFuture<RunResult>[]) new CompletableFuture<?>[shards.length];
+    }
+
+    // Waits for every shard before reporting the first failure, so no call is left running
+    private static void awaitAll(CompletableFuture<?>[] futures) {
+        RuntimeException failure = null;
+        for (CompletableFuture<?> future : futures) {
+            try {
+                await(future);
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Rethrows what the shard threw, such as the IllegalArgumentException for an unknown runner
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        for (RaceShard shard : shards) {
+            shard.close();
+        }
+    }
+}
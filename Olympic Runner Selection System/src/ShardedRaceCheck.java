@@ -0,0 +1,267 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+// Runs the same random operations against a single Race and a ShardedRace and checks that every
+// result and error message is the same: runners, single and bulk runs, mins, averages, both ranks
+// and both fastest runners. The ShardedRace mixes LocalRaceShards with StubRaceShards, which pass
+// every ID and result through a RunnerIDCodec as a shard in another process would. A second round
+// uses RunnerIDStrings, which are not hashable, and checks that they all land in shard 0.
+// Exits with an AssertionError on the first difference.
+//
+// Usage: java ShardedRaceCheck [seed] [operations]
+public class ShardedRaceCheck {
+    private static final int IDS = 300;
+
+    private interface IdMaker {
+        RunnerID make(int number);
+    }
+
+    // Stands in for a shard in another process: arguments and results cross as bytes, on the
+    // stub's own thread, so the ShardedRace only ever sees fresh copies of the IDs it sent
+    private static class StubRaceShard implements RaceShard {
+        private final Race race = new Race();
+        private final RunnerIDCodec codec;
+        private final ExecutorService executor = Executors.newSingleThreadExecutor();
+        int runnersAdded; // Changed on the stub's thread, read after its calls completed
+
+        StubRaceShard(RunnerIDCodec codec) {
+            this.codec = codec;
+        }
+
+        @Override
+        public CompletableFuture<Void> init() {
+            return call(() -> {
+                race.init();
+                return null;
+            });
+        }
+
+        @Override
+        public CompletableFuture<Void> addRunner(RunnerID id) {
+            byte[] sent = codec.encode(id);
+            return call(() -> {
+                race.addRunner(codec.decode(sent));
+                runnersAdded++;
+                return null;
+            });
+        }
+
+        @Override
+        public CompletableFuture<Void> removeRunner(RunnerID id) {
+            byte[] sent = codec.encode(id);
+            return call(() -> {
+                race.removeRunner(codec.decode(sent));
+                return null;
+            });
+        }
+
+        @Override
+        public CompletableFuture<Void> addRunToRunner(RunnerID id, float time) {
+            byte[] sent = codec.encode(id);
+            return call(() -> {
+                race.addRunToRunner(codec.decode(sent), time);
+                return null;
+            });
+        }
+
+        @Override
+        public CompletableFuture<Void> removeRunFromRunner(RunnerID id, float time) {
+            byte[] sent = codec.encode(id);
+            return call(() -> {
+                race.removeRunFromRunner(codec.decode(sent), time);
+                return null;
+            });
+        }
+
+        @Override
+        public CompletableFuture<Void> addRunsBulk(RunnerID[] ids, float[] times) {
+            byte[][] sent = encodeAll(ids);
+            float[] sentTimes = times.clone();
+            return call(() -> {
+                race.addRunsBulk(decodeAll(sent), sentTimes);
+                return null;
+            });
+        }
+
+        @Override
+        public CompletableFuture<Void> removeRunsBulk(RunnerID[] ids, float[] times) {
+            byte[][] sent = encodeAll(ids);
+            float[] sentTimes = times.clone();
+            return call(() -> {
+                race.removeRunsBulk(decodeAll(sent), sentTimes);
+                return null;
+            });
+        }
+
+        @Override
+        public CompletableFuture<Float> getMinRun(RunnerID id) {
+            byte[] sent = codec.encode(id);
+            return call(() -> race.getMinRun(codec.decode(sent)));
+        }
+
+        @Override
+        public CompletableFuture<Float> getAvgRun(RunnerID id) {
+            byte[] sent = codec.encode(id);
+            return call(() -> race.getAvgRun(codec.decode(sent)));
+        }
+
+        @Override
+        public CompletableFuture<Integer> countBeforeAvg(float avg, RunnerID id) {
+            byte[] sent = codec.encode(id);
+            return call(() -> race.countBeforeAvg(avg, codec.decode(sent)));
+        }
+
+        @Override
+        public CompletableFuture<Integer> countBeforeMin(float min, RunnerID id) {
+            byte[] sent = codec.encode(id);
+            return call(() -> race.countBeforeMin(min, codec.decode(sent)));
+        }
+
+        @Override
+        public CompletableFuture<RunResult> fastestByAvg() {
+            return call(() -> reply(race.getFastestResultAvg()));
+        }
+
+        @Override
+        public CompletableFuture<RunResult> fastestByMin() {
+            return call(() -> reply(race.getFastestResultMin()));
+        }
+
+        @Override
+        public void close() {
+            executor.shutdown();
+        }
+
+        private RunResult reply(RunResult result) {
+            return result == null ? null : new RunResult(codec.decode(codec.encode(result.id)), result.time);
+        }
+
+        private byte[][] encodeAll(RunnerID[] ids) {
+            byte[][] encoded = new byte[ids.length][];
+            for (int i = 0; i < ids.length; i++) {
+                encoded[i] = codec.encode(ids[i]);
+            }
+            return encoded;
+        }
+
+        private RunnerID[] decodeAll(byte[][] encoded) {
+            RunnerID[] ids = new RunnerID[encoded.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = codec.decode(encoded[i]);
+            }
+            return ids;
+        }
+
+        private <T> CompletableFuture<T> call(Supplier<T> operation) {
+            return CompletableFuture.supplyAsync(operation, executor);
+        }
+    }
+
+    private static class StringCodec implements RunnerIDCodec {
+        @Override
+        public byte[] encode(RunnerID id) {
+            return id.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        // RunnerIDString writes its number after "runner-"
+        @Override
+        public RunnerID decode(byte[] bytes) {
+            return new RunnerIDString(Integer.parseInt(new String(bytes, StandardCharsets.UTF_8).substring(7)));
+        }
+    }
+
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        StubRaceShard[] stubs = {new StubRaceShard(new Checks.IntCodec()), new StubRaceShard(new Checks.IntCodec())};
+        try (ShardedRace sharded = new ShardedRace(new RaceShard[] {new LocalRaceShard(0), stubs[0],
+                new LocalRaceShard(2), stubs[1]})) {
+            compareRandomOperations(new Random(seed), operations, sharded, RunnerIDInt::new);
+            Checks.check(stubs[0].runnersAdded > 0 && stubs[1].runnersAdded > 0,
+                    "hashable IDs were not spread over the shards");
+            checkThreadNames();
+        }
+
+        // IDs without a hash are all sent to shard 0, so the stubs at 1 and 3 must see none of them
+        StubRaceShard[] unused = {new StubRaceShard(new StringCodec()), new StubRaceShard(new StringCodec())};
+        try (ShardedRace sharded = new ShardedRace(new RaceShard[] {new StubRaceShard(new StringCodec()), unused[0],
+                new LocalRaceShard(2), unused[1]})) {
+            compareRandomOperations(new Random(seed + 1), operations / 4, sharded, RunnerIDString::new);
+            Checks.check(unused[0].runnersAdded == 0 && unused[1].runnersAdded == 0, "an unhashable ID left shard 0");
+        }
+        System.out.println("ShardedRaceCheck OK");
+    }
+
+    private static void compareRandomOperations(Random random, int operations, ShardedRace sharded, IdMaker ids) {
+        Race race = new Race();
+        race.init();
+        sharded.init();
+        Checks.same("empty race", () -> race.getFastestRunnerAvg(), () -> sharded.getFastestRunnerAvg());
+
+        for (int step = 0; step < operations; step++) {
+            RunnerID id = ids.make(random.nextInt(IDS));
+            float time = random.nextInt(20);
+            String label = "step " + step;
+            switch (random.nextInt(10)) {
+                case 0:
+                case 1:
+                    Checks.same(label + " addRunner", () -> Checks.run(() -> race.addRunner(id)),
+                            () -> Checks.run(() -> sharded.addRunner(id)));
+                    break;
+                case 2:
+                    Checks.same(label + " removeRunner", () -> Checks.run(() -> race.removeRunner(id)),
+                            () -> Checks.run(() -> sharded.removeRunner(id)));
+                    break;
+                case 3:
+                case 4:
+                    Checks.same(label + " addRunToRunner", () -> Checks.run(() -> race.addRunToRunner(id, time)),
+                            () -> Checks.run(() -> sharded.addRunToRunner(id, time)));
+                    break;
+                case 5:
+                    Checks.same(label + " removeRunFromRunner", () -> Checks.run(() -> race.removeRunFromRunner(id, time)),
+                            () -> Checks.run(() -> sharded.removeRunFromRunner(id, time)));
+                    break;
+                case 6: {
+                    // Only batches of existing runners, a bad entry may leave other shards' parts applied
+                    RunnerID[] batch = new RunnerID[1 + random.nextInt(6)];
+                    float[] times = new float[batch.length];
+                    boolean allExist = true;
+                    for (int i = 0; i < batch.length; i++) {
+                        batch[i] = ids.make(random.nextInt(IDS));
+                        times[i] = random.nextInt(20);
+                        allExist &= race.hasRunner(batch[i]);
+                    }
+                    if (allExist) {
+                        Checks.same(label + " addRunsBulk", () -> Checks.run(() -> race.addRunsBulk(batch, times)),
+                                () -> Checks.run(() -> sharded.addRunsBulk(batch, times)));
+                    }
+                    break;
+                }
+                default:
+                    Checks.same(label + " getMinRun", () -> race.getMinRun(id), () -> sharded.getMinRun(id));
+                    Checks.same(label + " getAvgRun", () -> race.getAvgRun(id), () -> sharded.getAvgRun(id));
+                    Checks.same(label + " getRankAvg", () -> race.getRankAvg(id), () -> sharded.getRankAvg(id));
+                    Checks.same(label + " getRankMin", () -> race.getRankMin(id), () -> sharded.getRankMin(id));
+                    Checks.same(label + " getFastestRunnerAvg", () -> race.getFastestRunnerAvg(),
+                            () -> sharded.getFastestRunnerAvg());
+                    Checks.same(label + " getFastestRunnerMin", () -> race.getFastestRunnerMin(),
+                            () -> sharded.getFastestRunnerMin());
+            }
+        }
+    }
+
+    private static void checkThreadNames() {
+        boolean[] seen = new boolean[3];
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            for (int index : new int[] {0, 2}) {
+                seen[index] |= thread.getName().equals("race-shard-" + index);
+            }
+        }
+        Checks.check(seen[0] && seen[2], "local shard threads are not named by their index");
+    }
+}
@@ -0,0 +1,146 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Checks that a RaceSnapshot keeps showing the race as it was while the race changes underneath,
+// including halfway through iterating its leaderboards. Exits with an AssertionError on the first
+// difference.
+//
+// Usage: java SnapshotCheck [seed] [rounds]
+public class SnapshotCheck {
+    private static final int RUNNERS = 50;
+
+    public static void main(String[] args) throws InterruptedException {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        Random random = new Random(seed);
+        for (int round = 0; round < rounds; round++) {
+            checkIterationWhileMutating(random);
+        }
+        checkIterationAgainstWriterThread(random, rounds);
+        System.out.println("SnapshotCheck OK");
+    }
+
+    // Reads part of each leaderboard, changes the race, then reads the rest
+    private static void checkIterationWhileMutating(Random random) {
+        Race race = new Race();
+        race.init();
+        for (int i = 0; i < RUNNERS; i++) {
+            RunnerIDInt id = new RunnerIDInt(i);
+            race.addRunner(id);
+            for (int run = random.nextInt(4); run > 0; run--) {
+                race.addRunToRunner(id, random.nextInt(20));
+            }
+        }
+        ArrayList<RunnerID> expectedByAvg = list(race.topKByAvg(RUNNERS));
+        ArrayList<RunnerID> expectedByMin = list(race.topKByMin(RUNNERS));
+
+        try (RaceSnapshot snapshot = race.snapshot()) {
+            Iterator<RunnerID> byAvg = snapshot.runnersByAvg().iterator();
+            Iterator<RunnerID> byMin = snapshot.runnersByMin().iterator();
+            ArrayList<RunnerID> seenByAvg = new ArrayList<>();
+            ArrayList<RunnerID> seenByMin = new ArrayList<>();
+            int readFirst = random.nextInt(RUNNERS + 1);
+            for (int i = 0; i < readFirst; i++) {
+                seenByAvg.add(byAvg.next());
+                seenByMin.add(byMin.next());
+            }
+
+            mutate(race, random);
+
+            while (byAvg.hasNext()) {
+                seenByAvg.add(byAvg.next());
+            }
+            while (byMin.hasNext()) {
+                seenByMin.add(byMin.next());
+            }
+            Checks.check(seenByAvg.equals(expectedByAvg), "average order changed: " + seenByAvg + " vs " + expectedByAvg);
+            Checks.check(seenByMin.equals(expectedByMin), "minimum order changed: " + seenByMin + " vs " + expectedByMin);
+            Checks.check(snapshot.size() == RUNNERS, "size " + snapshot.size() + " instead of " + RUNNERS);
+            for (int rank = 1; rank <= RUNNERS; rank++) {
+                RunnerID id = expectedByAvg.get(rank - 1);
+                Checks.check(snapshot.selectByRankAvg(rank).equals(id), "selectByRankAvg(" + rank + ") changed");
+                Checks.check(snapshot.getRankAvg(id) == rank, "getRankAvg(" + id + ") changed");
+            }
+        }
+    }
+
+    // Runs, new runners and removed runners, enough to rebalance the score trees many times
+    private static void mutate(Race race, Random random) {
+        for (int i = 0; i < 200; i++) {
+            RunnerIDInt id = new RunnerIDInt(random.nextInt(RUNNERS * 2));
+            switch (random.nextInt(4)) {
+                case 0:
+                    if (race.hasRunner(id)) {
+                        race.removeRunner(id);
+                    } else {
+                        race.addRunner(id);
+                    }
+                    break;
+                default:
+                    if (race.hasRunner(id)) {
+                        race.addRunToRunner(id, random.nextInt(20));
+                    }
+            }
+        }
+    }
+
+    // A ConcurrentRace changed by another thread the whole time snapshots of it are being read
+    private static void checkIterationAgainstWriterThread(Random random, int rounds) throws InterruptedException {
+        ConcurrentRace race = new ConcurrentRace();
+        race.init();
+        for (int i = 0; i < RUNNERS; i++) {
+            race.addRunner(new RunnerIDInt(i));
+            race.addRunToRunner(new RunnerIDInt(i), random.nextInt(20));
+        }
+        AtomicBoolean stop = new AtomicBoolean(false);
+        long writerSeed = random.nextLong();
+        Thread writer = new Thread(() -> {
+            Random writes = new Random(writerSeed);
+            while (!stop.get()) {
+                RunnerIDInt id = new RunnerIDInt(writes.nextInt(RUNNERS * 2));
+                if (writes.nextInt(4) == 0) {
+                    if (race.hasRunner(id)) {
+                        race.removeRunner(id);
+                    } else {
+                        race.addRunner(id);
+                    }
+                } else if (race.hasRunner(id)) {
+                    race.addRunToRunner(id, writes.nextInt(20));
+                }
+            }
+        });
+        writer.start();
+        try {
+            for (int round = 0; round < rounds; round++) {
+                try (RaceSnapshot snapshot = race.snapshot()) {
+                    int size = snapshot.size();
+                    int rank = 0;
+                    float previous = -1;
+                    for (RunnerID id : snapshot.runnersByAvg()) {
+                        rank++;
+                        Checks.check(rank <= size, "iteration returned more than " + size + " runners");
+                        Checks.check(snapshot.selectByRankAvg(rank).equals(id),
+                                "iteration and selectByRankAvg differ at " + rank);
+                        float avg = snapshot.getAvgRun(id);
+                        Checks.check(avg >= previous, "averages out of order at rank " + rank);
+                        previous = avg;
+                    }
+                    Checks.check(rank == size, "iteration returned " + rank + " of " + size + " runners");
+                }
+            }
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+    }
+
+    private static ArrayList<RunnerID> list(Iterable<RunnerID> runners) {
+        ArrayList<RunnerID> list = new ArrayList<>();
+        for (RunnerID id : runners) {
+            list.add(id);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,34 @@
+import java.util.TreeMap;
+
+// Version counter shared by a Race and its trees. Taking a snapshot starts a new epoch. A node
+// written for the first time in an epoch first keeps a copy of its old fields in its prior chain,
+// but only while an open snapshot may still need them, so without snapshots nothing is copied.
+public class SnapshotClock {
+    long epoch; // Version stamped on every node written now
+    private final TreeMap<Long, Integer> openSnapshots; // Open snapshot versions and how many share each
+
+    public SnapshotClock() {
+        this.epoch = 0;
+        this.openSnapshots = new TreeMap<>();
+    }
+
+    // Returns the version a new snapshot reads, later writes belong to the next epoch
+    long open() {
+        long version = epoch;
+        epoch++;
+        openSnapshots.merge(version, 1, Integer::sum);
+        return version;
+    }
+
+    void close(long version) {
+        openSnapshots.computeIfPresent(version, (v, count) -> count == 1 ? null : count - 1);
+    }
+
+    boolean hasOpenSnapshots() {
+        return !openSnapshots.isEmpty();
+    }
+
+    long oldestOpen() {
+        return openSnapshots.firstKey();
+    }
+}